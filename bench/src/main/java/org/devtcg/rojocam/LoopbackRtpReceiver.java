@@ -0,0 +1,111 @@
+package org.devtcg.rojocam;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Stands in for a viewer: an RTP/RTCP port pair on loopback which counts
+ * what arrives and throws it away.
+ */
+class LoopbackRtpReceiver extends Thread {
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private final DatagramChannel mRtp;
+    private final DatagramChannel mRtcp;
+
+    private volatile long mPackets;
+    private volatile long mBytes;
+    private volatile long mFrames;
+
+    private LoopbackRtpReceiver(DatagramChannel rtp, DatagramChannel rtcp) {
+        super(LoopbackRtpReceiver.class.getSimpleName() + "-" +
+                rtp.socket().getLocalPort());
+        mRtp = rtp;
+        mRtcp = rtcp;
+        setDaemon(true);
+    }
+
+    /**
+     * Binds an even RTP port and the RTCP port after it, as RTP/AVP peers
+     * are expected to, and starts counting.
+     */
+    public static LoopbackRtpReceiver open() throws IOException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            DatagramChannel rtp = DatagramChannel.open();
+            rtp.socket().bind(new InetSocketAddress(LOOPBACK, 0));
+            int port = rtp.socket().getLocalPort();
+            if ((port & 1) == 0) {
+                DatagramChannel rtcp = DatagramChannel.open();
+                try {
+                    rtcp.socket().bind(new InetSocketAddress(LOOPBACK, port + 1));
+                    LoopbackRtpReceiver receiver = new LoopbackRtpReceiver(rtp, rtcp);
+                    receiver.start();
+                    return receiver;
+                } catch (IOException e) {
+                    rtcp.close();
+                }
+            }
+            rtp.close();
+        }
+        throw new IOException("Unable to find a free RTP port pair");
+    }
+
+    public String getHostAddress() {
+        return LOOPBACK;
+    }
+
+    public int getRtpPort() {
+        return mRtp.socket().getLocalPort();
+    }
+
+    public int getRtcpPort() {
+        return mRtcp.socket().getLocalPort();
+    }
+
+    public long getPackets() {
+        return mPackets;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** Packets with the marker bit set, i.e. the last packet of each frame. */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+        try {
+            while (true) {
+                buf.clear();
+                mRtp.receive(buf);
+                int size = buf.position();
+                mPackets++;
+                mBytes += size;
+                if (size >= 2 && (buf.get(1) & 0x80) != 0) {
+                    mFrames++;
+                }
+            }
+        } catch (ClosedChannelException e) {
+            /* Closed by close(). */
+        } catch (IOException e) {
+            System.err.println(getName() + ": " + e);
+        }
+    }
+
+    public void close() {
+        try {
+            mRtp.close();
+        } catch (IOException e) {
+        }
+        try {
+            mRtcp.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.devtcg.rojocam;
+
+import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
+import org.devtcg.rojocam.rtp.RtpEndpoint;
+import org.devtcg.rojocam.rtp.RtpPacer;
+import org.devtcg.rojocam.rtp.RtpSender;
+import org.devtcg.rojocam.rtsp.RtpParticipant;
+import org.devtcg.rojocam.util.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Drives the whole streaming path (convert, encode, packetize and send) on a
+ * plain JVM, with a {@link SyntheticFrameSource} or {@link FileFrameSource}
+ * in place of the camera and {@link LoopbackRtpReceiver}s in place of the
+ * viewers. For each viewer count it reports the encoded and delivered frame
+ * rates, throughput, capture to send latency and CPU use.
+ * <p>
+ * Needs the host build of the native library (jni/Makefile.host):
+ *
+ * <pre>
+ * java -Djava.library.path=jni/host -cp bench/target/benchmarks.jar \
+ *     org.devtcg.rojocam.StreamingHarness --viewers=1,2,4,8 --duration=20
+ * </pre>
+ *
+ * Options:
+ * <dl>
+ * <dt>--viewers=N,N,...</dt><dd>Viewer counts to run, in order (1,2,4,8).</dd>
+ * <dt>--source=synthetic|FILE</dt><dd>Raw NV21 file to replay instead of
+ * synthetic frames.</dd>
+ * <dt>--size=WxH</dt><dd>Capture size (480x320).</dd>
+ * <dt>--fps=N</dt><dd>Capture frame rate (the stream's frame rate).</dd>
+ * <dt>--threads=N</dt><dd>Encoder slice threads (one per core, up to 4).</dd>
+ * <dt>--budget=KBIT</dt><dd>Uplink budget shared by the viewers, in kbit/s
+ * (see {@link RtpPacer}; 2048).</dd>
+ * <dt>--warmup=S, --duration=S</dt><dd>Seconds discarded before, and
+ * measured in, each run (3, 10).</dd>
+ * </dl>
+ */
+public class StreamingHarness {
+    private final HashMap<String, String> mOptions;
+
+    private static final Metrics.Counter sEncodedFrames = Metrics.counter("encoder.frames");
+    private static final Metrics.Timer sLatency = Metrics.timer("pipeline.latency");
+
+    private StreamingHarness(HashMap<String, String> options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (String arg: args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Unrecognized argument: " + arg);
+                System.exit(1);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new StreamingHarness(options).run();
+    }
+
+    private String getOption(String name, String defaultValue) {
+        String value = mOptions.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int getIntOption(String name, int defaultValue) {
+        return Integer.parseInt(getOption(name, String.valueOf(defaultValue)));
+    }
+
+    private void run() throws Exception {
+        String[] size = getOption("size", "480x320").split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        int warmup = getIntOption("warmup", 3);
+        int duration = getIntOption("duration", 10);
+
+        System.out.println(String.format("%7s %8s %8s %8s %8s %9s %6s",
+                "viewers", "enc_fps", "min_fps", "avg_fps", "Mbit/s", "lat_ms", "cpu%"));
+        for (String viewers: getOption("viewers", "1,2,4,8").split(",")) {
+            runOnce(Integer.parseInt(viewers.trim()), width, height, warmup, duration);
+        }
+    }
+
+    private FrameSource newSource(int width, int height, int fps) throws IOException {
+        String source = getOption("source", "synthetic");
+        if (source.equals("synthetic")) {
+            return new SyntheticFrameSource(width, height, fps);
+        } else {
+            return new FileFrameSource(new File(source), width, height, fps);
+        }
+    }
+
+    private void runOnce(int viewerCount, int width, int height, int warmup, int duration)
+            throws IOException, InterruptedException {
+        FFStreamConfig config = mOptions.containsKey("threads") ?
+                FFStreamConfig.createDefault(getIntOption("threads", 1)) :
+                FFStreamConfig.createDefault();
+        FrameStreamer streamer = new FrameStreamer(config);
+        FrameSource source = newSource(width, height,
+                getIntOption("fps", config.getFrameRate()));
+        List<LoopbackRtpReceiver> receivers = new ArrayList<LoopbackRtpReceiver>();
+        RtpEndpoint endpoint = RtpEndpoint.open(0);
+        endpoint.getPacer().setBudget(
+                getIntOption("budget", RtpPacer.DEFAULT_BUDGET * 8 / 1024) * 1024 / 8);
+
+        try {
+            streamer.start(source, 1, null);
+            for (int i = 0; i < viewerCount; i++) {
+                LoopbackRtpReceiver receiver = LoopbackRtpReceiver.open();
+                receivers.add(receiver);
+                streamer.addRtpSender(new RtpSender(endpoint.register(
+                        new RtpParticipant(receiver.getHostAddress(), receiver.getRtpPort(),
+                                receiver.getRtcpPort()), null)));
+            }
+            source.start(streamer);
+
+            Thread.sleep(warmup * 1000L);
+            Snapshot before = new Snapshot(receivers);
+            Thread.sleep(duration * 1000L);
+            Snapshot after = new Snapshot(receivers);
+
+            report(viewerCount, before, after);
+        } finally {
+            source.stop();
+            streamer.stop();
+            for (LoopbackRtpReceiver receiver: receivers) {
+                receiver.close();
+            }
+            endpoint.close();
+            config.close();
+        }
+    }
+
+    private static void report(int viewerCount, Snapshot before, Snapshot after) {
+        double seconds = (after.wallNanos - before.wallNanos) / 1e9;
+        double minFps = Double.MAX_VALUE;
+        double totalFps = 0;
+        long bytes = 0;
+        for (int i = 0; i < viewerCount; i++) {
+            double fps = (after.frames[i] - before.frames[i]) / seconds;
+            minFps = Math.min(minFps, fps);
+            totalFps += fps;
+            bytes += after.bytes[i] - before.bytes[i];
+        }
+        long latencyCount = after.latencyCount - before.latencyCount;
+        double latency = latencyCount > 0 ?
+                (double)(after.latencyTotal - before.latencyTotal) / latencyCount : 0;
+
+        System.out.println(String.format("%7d %8.1f %8.1f %8.1f %8.2f %9.1f %6.0f",
+                viewerCount,
+                (after.encodedFrames - before.encodedFrames) / seconds,
+                minFps,
+                totalFps / viewerCount,
+                bytes * 8 / seconds / 1e6,
+                latency,
+                100.0 * (after.cpuNanos - before.cpuNanos) / (after.wallNanos - before.wallNanos)));
+    }
+
+    private static long getProcessCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static class Snapshot {
+        final long wallNanos;
+        final long cpuNanos;
+        final long encodedFrames;
+        final long latencyCount;
+        final long latencyTotal;
+        final long[] frames;
+        final long[] bytes;
+
+        Snapshot(List<LoopbackRtpReceiver> receivers) {
+            wallNanos = System.nanoTime();
+            cpuNanos = getProcessCpuNanos();
+            encodedFrames = sEncodedFrames.get();
+            synchronized (sLatency) {
+                latencyCount = sLatency.getCount();
+                latencyTotal = sLatency.getTotal();
+            }
+            frames = new long[receivers.size()];
+            bytes = new long[receivers.size()];
+            for (int i = 0; i < receivers.size(); i++) {
+                frames[i] = receivers.get(i).getFrames();
+                bytes[i] = receivers.get(i).getBytes();
+            }
+        }
+    }
+}
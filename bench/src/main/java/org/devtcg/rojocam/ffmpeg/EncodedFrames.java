@@ -0,0 +1,26 @@
+package org.devtcg.rojocam.ffmpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Makes {@link EncodedFrame}s without an encoder, so that the RTP path can be
+ * driven with made-up frames and no native library.
+ */
+public class EncodedFrames {
+    private EncodedFrames() {
+    }
+
+    /**
+     * Returns a frame holding a copy of <code>data</code>.
+     */
+    public static EncodedFrame wrap(byte[] data, long ptsUsec, boolean keyFrame) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.clear();
+        EncodedFrame frame = new EncodedFrame(buffer);
+        frame.size = data.length;
+        frame.ptsUsec = ptsUsec;
+        frame.keyFrame = keyFrame;
+        return frame;
+    }
+}
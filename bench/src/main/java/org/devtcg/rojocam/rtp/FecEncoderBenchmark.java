@@ -0,0 +1,80 @@
+package org.devtcg.rojocam.rtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FEC cost per media packet: XORing it into the parity of every level in use
+ * (paid once per packet however many peers there are), and stamping one
+ * peer's fields onto a completed parity packet (paid per peer per group).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FecEncoderBenchmark {
+    /* A full packet, and a typical P-frame at our bitrate. */
+    @Param({ "1446", "600" })
+    public int payloadSize;
+
+    /* Bitmask of levels in use: just the lightest, just the heaviest, all. */
+    @Param({ "2", "16", "30" })
+    public int levels;
+
+    private FecEncoder mEncoder;
+    private PacketizedFrame mFrame;
+    private ByteBuffer mPayload;
+    private long mNextId;
+
+    private FecParity mParity;
+
+    @Setup
+    public void setUp() {
+        mPayload = ByteBuffer.allocateDirect(payloadSize);
+        Random random = new Random(0);
+        while (mPayload.hasRemaining()) {
+            mPayload.put((byte)random.nextInt());
+        }
+        mPayload.flip();
+        mEncoder = new FecEncoder();
+        mFrame = new PacketizedFrame(null);
+
+        /* A completed group to stamp. */
+        FecEncoder encoder = new FecEncoder();
+        PacketizedFrame frame = new PacketizedFrame(null);
+        encoder.beginFrame(frame);
+        for (int i = 0; i < FecEncoder.getGroupSize(FecEncoder.LEVEL_COUNT - 1); i++) {
+            encoder.addPacket(mPayload, 0x60, 3600 * i, i, i, 1 << (FecEncoder.LEVEL_COUNT - 1));
+        }
+        mParity = frame.getParity(0);
+    }
+
+    @Benchmark
+    public int encode() {
+        /* One packet per frame, the worst case for recycling parity. */
+        mEncoder.beginFrame(mFrame);
+        mEncoder.addPacket(mPayload, 0xe0, mNextId * 3600, mNextId, 0, levels);
+        mNextId++;
+        return mFrame.getParityCount();
+    }
+
+    @Benchmark
+    public ByteBuffer preparePeerPacket() {
+        return mParity.preparePacket(1234, 0x12345678, 4321, 0x7654321);
+    }
+}
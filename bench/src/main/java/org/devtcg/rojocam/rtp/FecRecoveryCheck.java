@@ -0,0 +1,235 @@
+package org.devtcg.rojocam.rtp;
+
+import org.devtcg.rojocam.ffmpeg.EncodedFrames;
+import org.devtcg.rojocam.util.MediaClock;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks that the parity we send is enough to rebuild a lost packet, the way
+ * an RFC 5109 receiver does it. A made-up stream is packetized as for a peer
+ * and protected at every level at once. For each parity packet, every packet
+ * of its group is dropped in turn, rebuilt from the parity and the rest of
+ * the group, and compared byte for byte with the packet that was sent.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar org.devtcg.rojocam.rtp.FecRecoveryCheck \
+ *     --frames=2000
+ * </pre>
+ *
+ * Options:
+ * <dl>
+ * <dt>--frames=N</dt><dd>Frames to send (500).</dd>
+ * <dt>--seed=N</dt><dd>Seed for frame sizes and contents (0).</dd>
+ * </dl>
+ * Exits with status 1 if a check fails.
+ */
+public class FecRecoveryCheck {
+    /* One peer's fields; its sequence numbers wrap early on. */
+    private static final int SSRC = 0x12345678;
+    private static final int FEC_SSRC = 0x0badf00d;
+    private static final int FIRST_SEQUENCE = 0xfff0;
+    private static final int TIMESTAMP_OFFSET = 0x7654321;
+
+    /* Every level but 0, which is off. */
+    private static final int ALL_LEVELS = (1 << FecEncoder.LEVEL_COUNT) - 2;
+
+    /* The FEC header, then the level 0 header (RFC 5109, 7.3 and 7.4). */
+    private static final int FEC_OFFSET = RtpPacketizer.HEADER_SIZE;
+    private static final int ULP_OFFSET = FEC_OFFSET + 10;
+
+    /* Failures described in full; the rest are only counted. */
+    private static final int MAX_REPORTED = 10;
+
+    private final HashMap<String, String> mOptions;
+
+    /* Media packets as sent, by sequence number. */
+    private final HashMap<Integer, byte[]> mSent = new HashMap<Integer, byte[]>();
+
+    private int mGroups;
+    private int mRebuilt;
+    private int mFailures;
+
+    private FecRecoveryCheck(HashMap<String, String> options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (String arg: args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Unrecognized argument: " + arg);
+                System.exit(1);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        if (!new FecRecoveryCheck(options).run()) {
+            System.exit(1);
+        }
+    }
+
+    private int getIntOption(String name, int defaultValue) {
+        String value = mOptions.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private boolean run() {
+        int frameCount = getIntOption("frames", 500);
+        Random random = new Random(getIntOption("seed", 0));
+
+        RtpPacketizer packetizer = new RtpPacketizer(new MediaClock(24));
+        PacketHistory history = new PacketHistory(PacketHistory.DEFAULT_CAPACITY);
+        FecEncoder fec = new FecEncoder();
+        int fecSequence = 0;
+
+        for (int n = 0; n < frameCount; n++) {
+            /* Mostly P-frames of a packet or less, and a keyframe of several each second. */
+            boolean keyFrame = n % 24 == 0;
+            byte[] data = new byte[keyFrame ? 4000 + random.nextInt(8000) :
+                    1 + random.nextInt(2000)];
+            random.nextBytes(data);
+
+            PacketizedFrame packets = packetizer.packetize(
+                    EncodedFrames.wrap(data, n * 1000000L / 24, keyFrame));
+            history.store(packets);
+
+            /* As RtpFanout protects a frame, then as RtpSender sends it. */
+            fec.beginFrame(packets);
+            for (int i = 0; i < packets.getPacketCount(); i++) {
+                fec.addPacket(packets.getPayload(i), packets.getMarkerPt(i),
+                        packets.getRtpTime(), packets.getPacketId(i), i, ALL_LEVELS);
+            }
+            int timestamp = TIMESTAMP_OFFSET + (int)packets.getRtpTime();
+            for (int i = 0; i < packets.getPacketCount(); i++) {
+                int sequence = getSequence(packets.getPacketId(i));
+                mSent.put(sequence, toArray(packets.preparePacket(i, sequence, timestamp, SSRC)));
+            }
+            for (int i = 0; i < packets.getParityCount(); i++) {
+                FecParity parity = packets.getParity(i);
+                byte[] packet = toArray(parity.preparePacket(fecSequence, FEC_SSRC,
+                        getSequence(parity.getFirstId()), TIMESTAMP_OFFSET));
+                fecSequence = (fecSequence + 1) & 0xffff;
+                check(parity.getLevel(), ByteBuffer.wrap(packet));
+            }
+            packets.release();
+        }
+
+        System.out.println("Parity packets checked: " + mGroups + ", packets rebuilt: " +
+                mRebuilt);
+        boolean ok = true;
+        if (mGroups == 0) {
+            System.out.println("FAIL: no parity was produced");
+            ok = false;
+        }
+        if (mFailures > 0) {
+            System.out.println("FAIL: " + mFailures + " packets not rebuilt exactly");
+            ok = false;
+        }
+        if (ok) {
+            System.out.println("OK");
+        }
+        return ok;
+    }
+
+    private static int getSequence(long id) {
+        return (FIRST_SEQUENCE + (int)id) & 0xffff;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+
+    private void check(int level, ByteBuffer fec) {
+        int seqBase = fec.getShort(FEC_OFFSET + 2) & 0xffff;
+        int protectionLength = fec.getShort(ULP_OFFSET) & 0xffff;
+        int mask = fec.getShort(ULP_OFFSET + 2) & 0xffff;
+
+        int[] group = new int[Integer.bitCount(mask)];
+        int count = 0;
+        for (int bit = 0; bit < 16; bit++) {
+            if ((mask & (0x8000 >>> bit)) != 0) {
+                group[count++] = (seqBase + bit) & 0xffff;
+            }
+        }
+        mGroups++;
+        if (count != FecEncoder.getGroupSize(level)) {
+            fail("level " + level + " parity protects " + count + " packets, not " +
+                    FecEncoder.getGroupSize(level));
+            return;
+        }
+
+        for (int lost: group) {
+            byte[] rebuilt = rebuild(fec, group, lost, protectionLength);
+            if (Arrays.equals(rebuilt, mSent.get(lost))) {
+                mRebuilt++;
+            } else {
+                fail("level " + level + " parity from " + seqBase + " rebuilt packet " +
+                        lost + " wrongly");
+            }
+        }
+    }
+
+    private void fail(String what) {
+        if (mFailures++ < MAX_REPORTED) {
+            System.out.println("  " + what);
+        }
+    }
+
+    /*
+     * Recovers one packet from the parity and the others in its group, as
+     * RFC 5109 describes, or returns null if the parity doesn't cover it.
+     */
+    private byte[] rebuild(ByteBuffer fec, int[] group, int lost, int protectionLength) {
+        /* Laid out as in the FEC header: RTP header bytes 0, 1 and 4-7, then the length. */
+        byte[] bits = new byte[10];
+        bits[0] = fec.get(FEC_OFFSET);
+        bits[1] = fec.get(FEC_OFFSET + 1);
+        for (int i = 4; i < 10; i++) {
+            bits[i] = fec.get(FEC_OFFSET + i);
+        }
+        byte[] payload = new byte[protectionLength];
+        for (int i = 0; i < protectionLength; i++) {
+            payload[i] = fec.get(FecParity.HEADER_SIZE + i);
+        }
+
+        int ssrc = 0;
+        for (int sequence: group) {
+            if (sequence == lost) {
+                continue;
+            }
+            byte[] packet = mSent.get(sequence);
+            int length = packet.length - RtpPacketizer.HEADER_SIZE;
+            bits[0] ^= packet[0];
+            bits[1] ^= packet[1];
+            for (int i = 4; i < 8; i++) {
+                bits[i] ^= packet[i];
+            }
+            bits[8] ^= (byte)(length >> 8);
+            bits[9] ^= (byte)length;
+            for (int i = 0; i < Math.min(length, protectionLength); i++) {
+                payload[i] ^= packet[RtpPacketizer.HEADER_SIZE + i];
+            }
+            ssrc = ByteBuffer.wrap(packet).getInt(8);
+        }
+
+        int length = ((bits[8] & 0xff) << 8) | (bits[9] & 0xff);
+        if (length > protectionLength) {
+            return null;
+        }
+        ByteBuffer packet = ByteBuffer.allocate(RtpPacketizer.HEADER_SIZE + length);
+        /* Version 2, then P, X and CC as recovered. */
+        packet.put((byte)(0x80 | (bits[0] & 0x3f)));
+        packet.put(bits[1]);
+        packet.putShort((short)lost);
+        packet.put(bits, 4, 4);
+        packet.putInt(ssrc);
+        packet.put(payload, 0, length);
+        return packet.array();
+    }
+}
@@ -0,0 +1,79 @@
+package org.devtcg.rojocam.rtsp;
+
+import org.apache.http.io.HttpTransportMetrics;
+import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.util.CharArrayBuffer;
+
+/**
+ * Session buffer over a fixed message, so that request parsing can be
+ * measured without a socket in the way. {@link #rewind()} makes the same
+ * bytes available again without allocating.
+ */
+class ByteArraySessionInputBuffer implements SessionInputBuffer {
+    private final byte[] mData;
+    private int mPos;
+
+    public ByteArraySessionInputBuffer(byte[] data) {
+        mData = data;
+    }
+
+    public void rewind() {
+        mPos = 0;
+    }
+
+    public int read(byte[] b, int off, int len) {
+        if (mPos == mData.length) {
+            return -1;
+        }
+        int n = Math.min(len, mData.length - mPos);
+        System.arraycopy(mData, mPos, b, off, n);
+        mPos += n;
+        return n;
+    }
+
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    public int read() {
+        if (mPos == mData.length) {
+            return -1;
+        }
+        return mData[mPos++] & 0xff;
+    }
+
+    public int readLine(CharArrayBuffer buffer) {
+        if (mPos == mData.length) {
+            return -1;
+        }
+        int start = mPos;
+        int end = start;
+        while (end < mData.length && mData[end] != '\n') {
+            end++;
+        }
+        mPos = end < mData.length ? end + 1 : end;
+
+        /* Message headers are ASCII, strip the line terminator. */
+        int len = end - start;
+        if (len > 0 && mData[end - 1] == '\r') {
+            len--;
+        }
+        for (int i = 0; i < len; i++) {
+            buffer.append((char)(mData[start + i] & 0xff));
+        }
+        return len;
+    }
+
+    public String readLine() {
+        CharArrayBuffer buffer = new CharArrayBuffer(64);
+        return readLine(buffer) >= 0 ? buffer.toString() : null;
+    }
+
+    public boolean isDataAvailable(int timeout) {
+        return mPos < mData.length;
+    }
+
+    public HttpTransportMetrics getMetrics() {
+        return null;
+    }
+}
@@ -0,0 +1,69 @@
+package org.devtcg.rojocam.rtsp;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpMessage;
+import org.apache.http.io.HttpMessageParser;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+/**
+ * Parses requests with the parser and request factory the server installs
+ * on each connection, minus the socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+    private static final String URI = "rtsp://127.0.0.1:5454/camera";
+
+    @Param({ RtspMethods.OPTIONS, RtspMethods.SETUP, RtspMethods.PLAY })
+    public String method;
+
+    private ByteArraySessionInputBuffer mBuffer;
+    private HttpMessageParser mParser;
+
+    @Setup
+    public void setUp() {
+        StringBuilder b = new StringBuilder();
+        if (method.equals(RtspMethods.SETUP)) {
+            b.append("SETUP " + URI + "/trackID=0 RTSP/1.0\r\n");
+            b.append("CSeq: 3\r\n");
+            b.append("Transport: RTP/AVP/UDP;unicast;client_port=5000-5001\r\n");
+        } else if (method.equals(RtspMethods.PLAY)) {
+            b.append("PLAY " + URI + " RTSP/1.0\r\n");
+            b.append("CSeq: 4\r\n");
+            b.append("Session: 5e1f3a9c0d2b7e64\r\n");
+            b.append("Range: npt=0.000-\r\n");
+        } else {
+            b.append(method + " " + URI + " RTSP/1.0\r\n");
+            b.append("CSeq: 1\r\n");
+        }
+        b.append("User-Agent: stagefright/1.1 (Linux;Android 2.3.4)\r\n");
+        b.append("\r\n");
+
+        HttpParams params = new BasicHttpParams();
+        mBuffer = new ByteArraySessionInputBuffer(b.toString().getBytes());
+        mParser = new AbstractRtspServer.RtspServerConnection().createRequestParser(mBuffer,
+                new AbstractRtspServer.RtspRequestFactory(), params);
+    }
+
+    @Benchmark
+    public HttpMessage parse() throws IOException, HttpException {
+        mBuffer.rewind();
+        return mParser.parse();
+    }
+}
@@ -0,0 +1,46 @@
+package org.devtcg.rojocam.rtsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+
+/**
+ * Transport header handling done for every SETUP.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtpTransportBenchmark {
+    /* As sent by the Android and VLC clients. */
+    private String mClientHeader;
+
+    private RtpTransport mServerTransport;
+
+    @Setup
+    public void setUp() throws ParseException {
+        mClientHeader = "RTP/AVP/UDP;unicast;client_port=5000-5001";
+        mServerTransport = new RtpTransport(RtpTransport.fromString(mClientHeader));
+        mServerTransport.serverRtpPort = 5002;
+        mServerTransport.serverRtcpPort = 5003;
+    }
+
+    @Benchmark
+    public RtpTransport fromString() throws ParseException {
+        return RtpTransport.fromString(mClientHeader);
+    }
+
+    @Benchmark
+    public String toHeaderString() {
+        return mServerTransport.toString();
+    }
+}
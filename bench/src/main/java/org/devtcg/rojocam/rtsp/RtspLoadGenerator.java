@@ -0,0 +1,449 @@
+package org.devtcg.rojocam.rtsp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates many viewers against a node, for sizing deployments. Each viewer
+ * repeatedly runs OPTIONS, DESCRIBE, SETUP and PLAY over a new connection,
+ * receives RTP on a loopback port pair for a while, then tears down and
+ * starts over. At the end it reports SETUP latency, time from PLAY to the
+ * first RTP packet, packet loss and interarrival jitter (as RFC 3550
+ * computes it) as percentiles over the sessions.
+ * <p>
+ * Without <code>--server</code>, runs against an in-process
+ * {@link SimpleRtspServer} with a streaming {@link SyntheticMediaHandler}:
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar org.devtcg.rojocam.rtsp.RtspLoadGenerator \
+ *     --viewers=200 --hold=10 --duration=60
+ * </pre>
+ *
+ * Options:
+ * <dl>
+ * <dt>--server=HOST:PORT</dt><dd>Node to load instead of the in-process
+ * server. Its RTP must be able to reach this host's loopback, so it has to
+ * run on the same machine.</dd>
+ * <dt>--feed=PATH</dt><dd>Feed to request (/camera).</dd>
+ * <dt>--viewers=N</dt><dd>Concurrent viewers, one thread each (100).</dd>
+ * <dt>--hold=S</dt><dd>Mean seconds a session plays before its viewer tears
+ * it down and starts another, drawn from half to one and a half times this
+ * (10). 0 plays each for the whole run.</dd>
+ * <dt>--ramp=S</dt><dd>Seconds over which the viewers start (5).</dd>
+ * <dt>--duration=S</dt><dd>Seconds to run, including the ramp (30).</dd>
+ * <dt>--fps=N, --payload=BYTES</dt><dd>Packet rate and size of the
+ * in-process server's stream (30, 1000).</dd>
+ * </dl>
+ */
+public class RtspLoadGenerator {
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private static final long PROGRESS_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /* Longest wait for a packet before checking whether the session is over. */
+    private static final int RECEIVE_TIMEOUT_MSEC = 100;
+
+    private static final int RTP_HEADER_SIZE = 12;
+
+    private final HashMap<String, String> mOptions;
+
+    private InetSocketAddress mAddress;
+    private String mUri;
+    private long mHoldNanos;
+    private long mDeadline;
+
+    private final Samples mSetupLatency = new Samples();
+    private final Samples mFirstPacket = new Samples();
+    private final Samples mJitter = new Samples();
+    private final Samples mLoss = new Samples();
+
+    private final AtomicInteger mSessions = new AtomicInteger();
+    private final AtomicInteger mPlaying = new AtomicInteger();
+    private final AtomicInteger mNoMedia = new AtomicInteger();
+    private final AtomicInteger mErrors = new AtomicInteger();
+    private long mExpected;
+    private long mLost;
+
+    /* Requests that failed, by method and status, e.g. "SETUP 453". */
+    private final Map<String, AtomicInteger> mFailures = new TreeMap<String, AtomicInteger>();
+
+    private RtspLoadGenerator(HashMap<String, String> options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (String arg: args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Unrecognized argument: " + arg);
+                System.exit(1);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new RtspLoadGenerator(options).run();
+    }
+
+    private String getOption(String name, String defaultValue) {
+        String value = mOptions.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int getIntOption(String name, int defaultValue) {
+        return Integer.parseInt(getOption(name, String.valueOf(defaultValue)));
+    }
+
+    private void run() throws Exception {
+        int viewerCount = getIntOption("viewers", 100);
+        int ramp = getIntOption("ramp", 5);
+        int duration = getIntOption("duration", 30);
+        String feed = getOption("feed", "/camera");
+        mHoldNanos = TimeUnit.SECONDS.toNanos(getIntOption("hold", 10));
+
+        SimpleRtspServer server = null;
+        SyntheticMediaHandler handler = null;
+        String target = mOptions.get("server");
+        if (target == null) {
+            handler = new SyntheticMediaHandler();
+            handler.startStreaming(getIntOption("fps", 30), getIntOption("payload", 1000));
+            server = new SimpleRtspServer();
+            server.bind(new InetSocketAddress(InetAddress.getByName(LOOPBACK), 0));
+            server.registerMedia(feed, handler);
+            server.start();
+            target = LOOPBACK + ":" + server.getPort();
+        }
+        int colon = target.lastIndexOf(':');
+        mAddress = new InetSocketAddress(InetAddress.getByName(target.substring(0, colon)),
+                Integer.parseInt(target.substring(colon + 1)));
+        mUri = "rtsp://" + target + feed;
+
+        System.out.println("Running " + viewerCount + " viewers against " + mUri + " for " +
+                duration + "s");
+        long start = System.nanoTime();
+        mDeadline = start + TimeUnit.SECONDS.toNanos(duration);
+        Thread[] threads = new Thread[viewerCount];
+        for (int i = 0; i < viewerCount; i++) {
+            long startAt = start + TimeUnit.SECONDS.toNanos(ramp) * i / viewerCount;
+            threads[i] = new Thread(new Viewer(i, startAt), "Viewer-" + i);
+            threads[i].start();
+        }
+        for (long now = System.nanoTime(); now < mDeadline; now = System.nanoTime()) {
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(Math.min(mDeadline - now,
+                    PROGRESS_NANOS)) + 1);
+            System.out.println(String.format("%5ds: %d playing, %d sessions, %d errors",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), mPlaying.get(),
+                    mSessions.get(), mErrors.get()));
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        if (server != null) {
+            server.shutdown();
+            handler.stopStreaming();
+        }
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    private void report(double seconds) {
+        System.out.println(String.format("Sessions: %d (%.1f/s), %d without media, %d errors",
+                mSessions.get(), mSessions.get() / seconds, mNoMedia.get(), mErrors.get()));
+        synchronized (mFailures) {
+            for (Map.Entry<String, AtomicInteger> entry: mFailures.entrySet()) {
+                System.out.println(String.format("  %-14s %8d", entry.getKey(),
+                        entry.getValue().get()));
+            }
+        }
+        synchronized (this) {
+            System.out.println(String.format("Packets lost: %d of %d (%.3f%%)", mLost, mExpected,
+                    mExpected > 0 ? 100.0 * mLost / mExpected : 0));
+        }
+        System.out.println(String.format("%-18s %9s %9s %9s %9s", "", "p50", "p90", "p99", "max"));
+        mSetupLatency.print("setup_ms");
+        mFirstPacket.print("first_packet_ms");
+        mJitter.print("jitter_ms");
+        mLoss.print("loss_%");
+    }
+
+    private void countFailure(String method, int statusCode) {
+        String key = method + " " + statusCode;
+        AtomicInteger count;
+        synchronized (mFailures) {
+            count = mFailures.get(key);
+            if (count == null) {
+                count = new AtomicInteger();
+                mFailures.put(key, count);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private synchronized void countPackets(long expected, long lost) {
+        mExpected += expected;
+        mLost += lost;
+    }
+
+    /* Values recorded per session, in thousandths of the unit reported. */
+    private static class Samples {
+        private long[] mValues = new long[1024];
+        private int mCount;
+
+        public synchronized void add(long value) {
+            if (mCount == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+            }
+            mValues[mCount++] = value;
+        }
+
+        public synchronized void print(String name) {
+            long[] sorted = Arrays.copyOf(mValues, mCount);
+            Arrays.sort(sorted);
+            System.out.println(String.format("%-18s %9.2f %9.2f %9.2f %9.2f", name,
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                    percentile(sorted, 100)));
+        }
+
+        private static double percentile(long[] sorted, int p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int)Math.ceil(sorted.length * p / 100.0);
+            return sorted[Math.max(rank - 1, 0)] / 1000.0;
+        }
+    }
+
+    /*
+     * What arrived during one session, as RFC 3550 appendix A.1 and A.8
+     * track it: the extended highest sequence number, for loss, and the
+     * interarrival jitter, in 90kHz units.
+     */
+    private static class Reception {
+        int received;
+        int baseSeq;
+        long maxSeq;
+        long lastTransit;
+        double jitter;
+
+        void onPacket(int seq, int timestamp, long arrivalNanos) {
+            long arrival = (long)(arrivalNanos * 0.00009);
+            long transit = arrival - (timestamp & 0xffffffffL);
+            if (received == 0) {
+                baseSeq = seq;
+                maxSeq = seq;
+            } else {
+                /* Extend across wraps, taking the nearest to the highest so far. */
+                long extended = (maxSeq & ~0xffffL) | seq;
+                if (extended < maxSeq - 0x8000) {
+                    extended += 0x10000;
+                } else if (extended > maxSeq + 0x8000) {
+                    extended -= 0x10000;
+                }
+                maxSeq = Math.max(maxSeq, extended);
+                jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+            }
+            lastTransit = transit;
+            received++;
+        }
+
+        long getExpected() {
+            return received > 0 ? maxSeq - baseSeq + 1 : 0;
+        }
+
+        long getLost() {
+            return Math.max(getExpected() - received, 0);
+        }
+    }
+
+    private class Viewer implements Runnable {
+        private final Random mRandom;
+        private final long mStartAt;
+
+        public Viewer(int seed, long startAt) {
+            mRandom = new Random(seed);
+            mStartAt = startAt;
+        }
+
+        public void run() {
+            long wait = mStartAt - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(wait));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            while (System.nanoTime() < mDeadline) {
+                long end = mDeadline;
+                if (mHoldNanos > 0) {
+                    end = Math.min(end, System.nanoTime() +
+                            (long)(mHoldNanos * (0.5 + mRandom.nextDouble())));
+                }
+                boolean ok;
+                try {
+                    ok = watch(end);
+                } catch (IOException e) {
+                    mErrors.incrementAndGet();
+                    System.out.println(Thread.currentThread().getName() + ": " + e);
+                    ok = false;
+                }
+                if (!ok) {
+                    /* Don't hammer a node that is refusing us. */
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /*
+         * Runs one session, playing until end. Returns false if a request
+         * was refused.
+         */
+        private boolean watch(long end) throws IOException {
+            DatagramSocket rtp = null;
+            DatagramSocket rtcp = null;
+            SimpleRtspClient client = null;
+            try {
+                /* An even RTP port and the RTCP port after it, as RTP/AVP expects. */
+                for (int attempt = 0; rtcp == null; attempt++) {
+                    if (attempt == 100) {
+                        throw new IOException("Unable to find a free RTP port pair");
+                    }
+                    rtp = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+                    int port = rtp.getLocalPort();
+                    if ((port & 1) == 0) {
+                        try {
+                            rtcp = new DatagramSocket(new InetSocketAddress(LOOPBACK, port + 1));
+                            break;
+                        } catch (IOException e) {
+                        }
+                    }
+                    rtp.close();
+                    rtp = null;
+                }
+                rtp.setSoTimeout(RECEIVE_TIMEOUT_MSEC);
+
+                client = new SimpleRtspClient(mAddress);
+                SimpleRtspClient.Response r = client.request(RtspMethods.OPTIONS, mUri);
+                if (!check(RtspMethods.OPTIONS, r)) {
+                    return false;
+                }
+                r = client.request(RtspMethods.DESCRIBE, mUri, RtspHeaders.ACCEPT,
+                        "application/sdp");
+                if (!check(RtspMethods.DESCRIBE, r)) {
+                    return false;
+                }
+
+                long setupStart = System.nanoTime();
+                r = client.request(RtspMethods.SETUP, mUri + "/trackID=0", RtspHeaders.TRANSPORT,
+                        "RTP/AVP/UDP;unicast;client_port=" + rtp.getLocalPort() + "-" +
+                        rtcp.getLocalPort());
+                if (!check(RtspMethods.SETUP, r)) {
+                    return false;
+                }
+                mSetupLatency.add((System.nanoTime() - setupStart) / 1000);
+                String session = r.getHeader(RtspHeaders.SESSION);
+                checkTransport(r.getHeader(RtspHeaders.TRANSPORT), rtp.getLocalPort());
+                mSessions.incrementAndGet();
+
+                long playStart = System.nanoTime();
+                r = client.request(RtspMethods.PLAY, mUri, RtspHeaders.SESSION, session,
+                        RtspHeaders.RANGE, "npt=0.000-");
+                if (!check(RtspMethods.PLAY, r)) {
+                    client.request(RtspMethods.TEARDOWN, mUri, RtspHeaders.SESSION, session);
+                    return false;
+                }
+                mPlaying.incrementAndGet();
+                Reception reception;
+                try {
+                    reception = receive(rtp, playStart, end);
+                } finally {
+                    mPlaying.decrementAndGet();
+                }
+                check(RtspMethods.TEARDOWN, client.request(RtspMethods.TEARDOWN, mUri,
+                        RtspHeaders.SESSION, session));
+
+                if (reception.received == 0) {
+                    mNoMedia.incrementAndGet();
+                } else {
+                    mJitter.add((long)(reception.jitter * 1000000 / 90000));
+                    mLoss.add(reception.getLost() * 100000 / reception.getExpected());
+                    countPackets(reception.getExpected(), reception.getLost());
+                }
+                return true;
+            } finally {
+                if (client != null) {
+                    client.close();
+                }
+                if (rtp != null) {
+                    rtp.close();
+                }
+                if (rtcp != null) {
+                    rtcp.close();
+                }
+            }
+        }
+
+        private Reception receive(DatagramSocket rtp, long playStart, long end)
+                throws IOException {
+            Reception reception = new Reception();
+            DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+            while (System.nanoTime() < end) {
+                try {
+                    rtp.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (packet.getLength() < RTP_HEADER_SIZE) {
+                    continue;
+                }
+                byte[] data = packet.getData();
+                int seq = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+                int timestamp = ((data[4] & 0xff) << 24) | ((data[5] & 0xff) << 16) |
+                        ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+                if (reception.received == 0) {
+                    mFirstPacket.add((now - playStart) / 1000);
+                }
+                reception.onPacket(seq, timestamp, now);
+            }
+            return reception;
+        }
+
+        private boolean check(String method, SimpleRtspClient.Response response) {
+            if (response.statusCode != RtspStatus.SC_OK) {
+                countFailure(method, response.statusCode);
+                return false;
+            }
+            return true;
+        }
+
+        private void checkTransport(String header, int rtpPort) throws IOException {
+            if (header == null) {
+                throw new IOException("SETUP reply has no transport");
+            }
+            try {
+                RtpTransport transport = RtpTransport.fromString(header);
+                if (transport.clientRtpPort != rtpPort) {
+                    throw new IOException("SETUP reply names the wrong port: " + header);
+                }
+            } catch (ParseException e) {
+                throw new IOException("Unparseable transport: " + header);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.devtcg.rojocam.rtsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Complete sessions (OPTIONS, DESCRIBE, SETUP, PLAY and TEARDOWN) against a
+ * {@link SimpleRtspServer} on loopback, either over a connection kept open
+ * between sessions or over a fresh one each time. The latter includes the
+ * server's per-connection worker thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RtspRoundTripBenchmark {
+    private static final String FEED = "/camera";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        SimpleRtspServer server;
+        SyntheticMediaHandler handler;
+        InetSocketAddress address;
+        String uri;
+
+        @Setup
+        public void start() throws IOException {
+            handler = new SyntheticMediaHandler();
+            server = new SimpleRtspServer();
+            server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            server.registerMedia(FEED, handler);
+            server.start();
+            address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), server.getPort());
+            uri = "rtsp://127.0.0.1:" + server.getPort() + FEED;
+        }
+
+        @TearDown
+        public void stop() {
+            server.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        SimpleRtspClient client;
+
+        @Setup(Level.Iteration)
+        public void connect(Server server) throws IOException {
+            client = new SimpleRtspClient(server.address);
+        }
+
+        @TearDown(Level.Iteration)
+        public void disconnect() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public int persistentConnection(Server server, Client client) throws IOException {
+        return check(client.client.playAndTeardown(server.uri, 6970));
+    }
+
+    @Benchmark
+    public int newConnection(Server server) throws IOException {
+        SimpleRtspClient client = new SimpleRtspClient(server.address);
+        try {
+            return check(client.playAndTeardown(server.uri, 6970));
+        } finally {
+            client.close();
+        }
+    }
+
+    private static int check(SimpleRtspClient.Response response) throws IOException {
+        if (response.statusCode != 200) {
+            throw new IOException("Session failed with status " + response.statusCode);
+        }
+        return response.statusCode;
+    }
+}
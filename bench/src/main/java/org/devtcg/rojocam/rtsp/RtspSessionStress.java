@@ -0,0 +1,222 @@
+package org.devtcg.rojocam.rtsp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hammers a {@link SimpleRtspServer} on loopback with SETUP, PLAY, PAUSE and
+ * TEARDOWN from many connections at once, all acting on a small pool of
+ * shared sessions so that requests on one session keep racing. Then checks
+ * that the {@link SyntheticMediaHandler} behind it was never called on a
+ * session concurrently or after teardown, and that every session set up was
+ * torn down exactly once, even when some media calls throw.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar org.devtcg.rojocam.rtsp.RtspSessionStress \
+ *     --threads=32 --sessions=8 --duration=20
+ * </pre>
+ *
+ * Options:
+ * <dl>
+ * <dt>--threads=N</dt><dd>Client connections, one thread each (16).</dd>
+ * <dt>--sessions=N</dt><dd>Sessions shared between them (4).</dd>
+ * <dt>--delay=MS</dt><dd>Time each media call takes (1).</dd>
+ * <dt>--failures=PERMILLE</dt><dd>Media calls that throw, per thousand
+ * (10).</dd>
+ * <dt>--duration=S</dt><dd>Seconds to run (10).</dd>
+ * </dl>
+ * Exits with status 1 if a check fails.
+ */
+public class RtspSessionStress {
+    private static final String FEED = "/camera";
+
+    private static final String[] METHODS = {
+        RtspMethods.SETUP, RtspMethods.PLAY, RtspMethods.PAUSE, RtspMethods.TEARDOWN
+    };
+
+    private final HashMap<String, String> mOptions;
+
+    private InetSocketAddress mAddress;
+    private String mUri;
+    private AtomicReferenceArray<String> mSlots;
+    private volatile boolean mStopped;
+
+    /* Responses by method and status, e.g. "PLAY 455". */
+    private final Map<String, AtomicInteger> mResponses =
+            new TreeMap<String, AtomicInteger>();
+    private final AtomicInteger mErrors = new AtomicInteger();
+    private final AtomicInteger mSetups = new AtomicInteger();
+
+    private RtspSessionStress(HashMap<String, String> options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (String arg: args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Unrecognized argument: " + arg);
+                System.exit(1);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        if (!new RtspSessionStress(options).run()) {
+            System.exit(1);
+        }
+    }
+
+    private int getIntOption(String name, int defaultValue) {
+        String value = mOptions.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private boolean run() throws Exception {
+        int threadCount = getIntOption("threads", 16);
+        int duration = getIntOption("duration", 10);
+
+        SyntheticMediaHandler handler = new SyntheticMediaHandler();
+        handler.setDelay(getIntOption("delay", 1));
+        handler.setFailureRate(getIntOption("failures", 10) / 1000.0);
+        SimpleRtspServer server = new SimpleRtspServer();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        server.bind(new InetSocketAddress(loopback, 0));
+        server.registerMedia(FEED, handler);
+        server.start();
+        mAddress = new InetSocketAddress(loopback, server.getPort());
+        mUri = "rtsp://127.0.0.1:" + server.getPort() + FEED;
+        mSlots = new AtomicReferenceArray<String>(getIntOption("sessions", 4));
+
+        System.out.println("Running " + threadCount + " connections over " +
+                mSlots.length() + " sessions for " + duration + "s");
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(new Client(i), "Client-" + i);
+            threads[i].start();
+        }
+        Thread.sleep(duration * 1000L);
+        mStopped = true;
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        /* Whatever is left is torn down by the shutdown. */
+        server.shutdown();
+
+        synchronized (mResponses) {
+            for (Map.Entry<String, AtomicInteger> entry: mResponses.entrySet()) {
+                System.out.println(String.format("  %-14s %8d", entry.getKey(),
+                        entry.getValue().get()));
+            }
+        }
+        System.out.println("Sessions set up: " + mSetups.get() + ", media failures: " +
+                handler.getFailureCount());
+
+        boolean ok = true;
+        if (mErrors.get() > 0) {
+            System.out.println("FAIL: " + mErrors.get() + " unexpected responses or errors");
+            ok = false;
+        }
+        if (handler.getMisuseCount() > 0) {
+            System.out.println("FAIL: " + handler.getMisuseCount() +
+                    " media calls on a busy or torn down session");
+            ok = false;
+        }
+        if (handler.getActiveSessions() != 0) {
+            System.out.println("FAIL: " + handler.getActiveSessions() +
+                    " sessions torn down other than once");
+            ok = false;
+        }
+        if (ok) {
+            System.out.println("OK");
+        }
+        return ok;
+    }
+
+    private void count(String method, int statusCode) {
+        String key = method + " " + statusCode;
+        AtomicInteger count;
+        synchronized (mResponses) {
+            count = mResponses.get(key);
+            if (count == null) {
+                count = new AtomicInteger();
+                mResponses.put(key, count);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /*
+     * Statuses a request may get when it loses a race on its session, or
+     * when the media fails; any other refusal is a bug.
+     */
+    private static boolean isExpected(int statusCode) {
+        return statusCode == RtspStatus.SC_OK ||
+                statusCode == RtspStatus.SC_INTERNAL_SERVER_ERROR ||
+                statusCode == RtspStatus.SC_SESSION_NOT_FOUND ||
+                statusCode == RtspStatus.SC_METHOD_NOT_VALID_IN_THIS_STATE;
+    }
+
+    private class Client implements Runnable {
+        private final Random mRandom;
+
+        public Client(int seed) {
+            mRandom = new Random(seed);
+        }
+
+        public void run() {
+            SimpleRtspClient client = null;
+            try {
+                client = new SimpleRtspClient(mAddress);
+                while (!mStopped) {
+                    step(client);
+                }
+            } catch (IOException e) {
+                System.out.println(Thread.currentThread().getName() + ": " + e);
+                mErrors.incrementAndGet();
+            } finally {
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+
+        private void step(SimpleRtspClient client) throws IOException {
+            int slot = mRandom.nextInt(mSlots.length());
+            String session = mSlots.get(slot);
+            String method = session == null ? RtspMethods.SETUP :
+                    METHODS[1 + mRandom.nextInt(METHODS.length - 1)];
+
+            SimpleRtspClient.Response r;
+            if (session == null) {
+                r = client.request(method, mUri + "/trackID=0", RtspHeaders.TRANSPORT,
+                        "RTP/AVP/UDP;unicast;client_port=6970-6971");
+                if (r.statusCode == RtspStatus.SC_OK) {
+                    mSetups.incrementAndGet();
+                    String id = r.getHeader(RtspHeaders.SESSION);
+                    if (!mSlots.compareAndSet(slot, null, id)) {
+                        /* Someone else filled the slot first; don't leak ours. */
+                        client.request(RtspMethods.TEARDOWN, mUri, RtspHeaders.SESSION, id);
+                    }
+                }
+            } else {
+                r = client.request(method, mUri, RtspHeaders.SESSION, session);
+                if (method == RtspMethods.TEARDOWN ||
+                        r.statusCode == RtspStatus.SC_SESSION_NOT_FOUND) {
+                    mSlots.compareAndSet(slot, session, null);
+                }
+            }
+            count(method, r.statusCode);
+            if (!isExpected(r.statusCode)) {
+                mErrors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.devtcg.rojocam.rtsp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * Just enough of an RTSP client to walk {@link SimpleRtspServer} through a
+ * session over one persistent connection.
+ */
+class SimpleRtspClient {
+    private final Socket mSocket;
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final StringBuilder mLine = new StringBuilder();
+    private int mCSeq;
+
+    public static class Response {
+        public int statusCode;
+        public final HashMap<String, String> headers = new HashMap<String, String>();
+        public byte[] body;
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+    public SimpleRtspClient(InetSocketAddress server) throws IOException {
+        mSocket = new Socket();
+        mSocket.setTcpNoDelay(true);
+        mSocket.connect(server);
+        mIn = new BufferedInputStream(mSocket.getInputStream());
+        mOut = new BufferedOutputStream(mSocket.getOutputStream());
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @param headers Alternating header names and values.
+     */
+    public Response request(String method, String uri, String... headers) throws IOException {
+        StringBuilder b = new StringBuilder();
+        b.append(method).append(' ').append(uri).append(" RTSP/1.0\r\n");
+        b.append(RtspHeaders.CSEQ).append(": ").append(++mCSeq).append("\r\n");
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            b.append(headers[i]).append(": ").append(headers[i + 1]).append("\r\n");
+        }
+        b.append("\r\n");
+        mOut.write(b.toString().getBytes("US-ASCII"));
+        mOut.flush();
+        return readResponse();
+    }
+
+    private Response readResponse() throws IOException {
+        Response response = new Response();
+
+        /* RTSP/1.0 200 OK */
+        String statusLine = readLine();
+        int start = statusLine.indexOf(' ');
+        int end = statusLine.indexOf(' ', start + 1);
+        if (start < 0) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        try {
+            response.statusCode = Integer.parseInt(
+                    statusLine.substring(start + 1, end > 0 ? end : statusLine.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+
+        String line;
+        while ((line = readLine()).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                response.headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        String contentLength = response.getHeader("Content-Length");
+        int length = contentLength != null ? Integer.parseInt(contentLength) : 0;
+        response.body = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int r = mIn.read(response.body, n, length - n);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            n += r;
+        }
+        return response;
+    }
+
+    private String readLine() throws IOException {
+        mLine.setLength(0);
+        int c;
+        while ((c = mIn.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                mLine.append((char)c);
+            }
+        }
+        return mLine.toString();
+    }
+
+    /**
+     * Runs OPTIONS, DESCRIBE, SETUP and PLAY against the given feed, then
+     * tears the session down again.
+     *
+     * @param clientRtpPort Even port advertised to the server; it is never
+     *            actually bound.
+     * @return The final response, or the first that was not a 200.
+     */
+    public Response playAndTeardown(String uri, int clientRtpPort) throws IOException {
+        Response r = request(RtspMethods.OPTIONS, uri);
+        if (r.statusCode != 200) {
+            return r;
+        }
+        r = request(RtspMethods.DESCRIBE, uri, RtspHeaders.ACCEPT, "application/sdp");
+        if (r.statusCode != 200) {
+            return r;
+        }
+        r = request(RtspMethods.SETUP, uri + "/trackID=0", RtspHeaders.TRANSPORT,
+                "RTP/AVP/UDP;unicast;client_port=" + clientRtpPort + "-" + (clientRtpPort + 1));
+        if (r.statusCode != 200) {
+            return r;
+        }
+        String session = r.getHeader(RtspHeaders.SESSION);
+        r = request(RtspMethods.PLAY, uri, RtspHeaders.SESSION, session,
+                RtspHeaders.RANGE, "npt=0.000-");
+        if (r.statusCode != 200) {
+            return r;
+        }
+        return request(RtspMethods.TEARDOWN, uri, RtspHeaders.SESSION, session);
+    }
+
+    public void close() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.devtcg.rojocam.rtsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringUtilsBenchmark {
+    /* The Public header of an OPTIONS response. */
+    private String[] mMethods = {
+            RtspMethods.OPTIONS, RtspMethods.DESCRIBE, RtspMethods.SETUP,
+            RtspMethods.TEARDOWN, RtspMethods.PLAY, RtspMethods.PAUSE
+    };
+
+    private String mDelimiter = ", ";
+
+    @Benchmark
+    public String join() {
+        return StringUtils.join(mMethods, mDelimiter);
+    }
+}
@@ -0,0 +1,319 @@
+package org.devtcg.rojocam.rtsp;
+
+import org.devtcg.rojocam.util.SubscriberTable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Media handler with no media behind it: sessions succeed immediately and
+ * only count how often they were used. Lets the RTSP control path be driven
+ * off-device.
+ * <p>
+ * Optionally streams filler RTP to playing sessions (see
+ * {@link #startStreaming}), one packet per frame, for clients that measure
+ * delivery.
+ */
+class SyntheticMediaHandler implements MediaHandler {
+    static final int SERVER_RTP_PORT = 5000;
+    static final int SERVER_RTCP_PORT = 5001;
+
+    /* Similar to what the camcorder describes, minus the codec config. */
+    private static final String SDP =
+            "v=0\r\n" +
+            "o=- 0 0 IN IP4 127.0.0.1\r\n" +
+            "s=rojocam\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "t=0 0\r\n" +
+            "a=tool:libavformat\r\n" +
+            "m=video 0 RTP/AVP 96\r\n" +
+            "b=AS:256\r\n" +
+            "a=rtpmap:96 MP4V-ES/90000\r\n" +
+            "a=fmtp:96 profile-level-id=1\r\n";
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mPlays = new AtomicInteger();
+    private final AtomicInteger mMisuses = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    private volatile long mDelayMillis;
+    private volatile double mFailureRate;
+    private volatile Streamer mStreamer;
+
+    public String onDescribe(String feedUri) {
+        return SDP;
+    }
+
+    public MediaSession createSession(final InetAddress client, final RtpTransport transport,
+            PriorityClass priority, MediaSession.Terminator terminator) {
+        return new MediaSession() {
+            /* For catching the server acting on a session twice at once, or after teardown. */
+            private final AtomicInteger mBusy = new AtomicInteger();
+            private volatile boolean mTornDown;
+
+            private final Streamer mStreamedBy = mStreamer;
+            private final Stream mStream = mStreamedBy != null ?
+                    new Stream(new InetSocketAddress(client, transport.clientRtpPort)) : null;
+
+            public RtpTransport onSetup(String feedUri) {
+                enter();
+                try {
+                    maybeFail();
+                    mActive.incrementAndGet();
+                    RtpTransport serverTransport = new RtpTransport(transport);
+                    serverTransport.serverRtpPort = SERVER_RTP_PORT;
+                    serverTransport.serverRtcpPort = SERVER_RTCP_PORT;
+                    return serverTransport;
+                } finally {
+                    leave();
+                }
+            }
+
+            public void onPlay(String feedUri) {
+                enter();
+                try {
+                    maybeFail();
+                    mPlays.incrementAndGet();
+                    if (mStream != null) {
+                        mStreamedBy.add(mStream);
+                    }
+                } finally {
+                    leave();
+                }
+            }
+
+            public void onPause(String feedUri) {
+                enter();
+                try {
+                    maybeFail();
+                    if (mStream != null) {
+                        mStreamedBy.remove(mStream);
+                    }
+                } finally {
+                    leave();
+                }
+            }
+
+            public void onTeardown(String feedUri) {
+                enter();
+                try {
+                    if (mStream != null) {
+                        mStreamedBy.remove(mStream);
+                    }
+                    mTornDown = true;
+                    mActive.decrementAndGet();
+
+                    /* Torn down all the same; the server need only survive it. */
+                    maybeFail();
+                } finally {
+                    leave();
+                }
+            }
+
+            private void enter() {
+                if (mBusy.incrementAndGet() != 1 || mTornDown) {
+                    mMisuses.incrementAndGet();
+                }
+                delay();
+            }
+
+            private void leave() {
+                mBusy.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Makes every media call take this long, to widen the window in which
+     * requests on one session race.
+     */
+    public void setDelay(long millis) {
+        mDelayMillis = millis;
+    }
+
+    /**
+     * Sends every session that starts playing from now on one RTP packet
+     * of <code>payloadSize</code> bytes per frame, at <code>frameRate</code>,
+     * from one thread.
+     */
+    public void startStreaming(int frameRate, int payloadSize) throws IOException {
+        if (mStreamer != null) {
+            throw new IllegalStateException("Already streaming");
+        }
+        Streamer streamer = new Streamer(frameRate, payloadSize);
+        streamer.start();
+        mStreamer = streamer;
+    }
+
+    /**
+     * Stops the thread started by {@link #startStreaming}. Sessions stop
+     * receiving, though they still count as playing.
+     */
+    public void stopStreaming() {
+        Streamer streamer = mStreamer;
+        if (streamer == null) {
+            return;
+        }
+        mStreamer = null;
+        streamer.quit();
+    }
+
+    /**
+     * Makes this fraction of media calls throw a RuntimeException, as a
+     * buggy media implementation might. Calls other than onTeardown fail
+     * before taking effect.
+     */
+    public void setFailureRate(double rate) {
+        mFailureRate = rate;
+    }
+
+    /** Media calls made to throw by {@link #setFailureRate}. */
+    public int getFailureCount() {
+        return mFailures.get();
+    }
+
+    private void maybeFail() {
+        double rate = mFailureRate;
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            mFailures.incrementAndGet();
+            throw new IllegalStateException("Injected media failure");
+        }
+    }
+
+    private void delay() {
+        long millis = mDelayMillis;
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Sessions set up but not yet torn down. */
+    public int getActiveSessions() {
+        return mActive.get();
+    }
+
+    public int getPlayCount() {
+        return mPlays.get();
+    }
+
+    /**
+     * Media calls made on a session while another was in progress on it, or
+     * after it was torn down. The server should never make any.
+     */
+    public int getMisuseCount() {
+        return mMisuses.get();
+    }
+
+    /* One session's RTP stream. */
+    private static class Stream {
+        final InetSocketAddress target;
+        final int ssrc;
+        int seq;
+
+        Stream(InetSocketAddress target) {
+            Random random = new Random();
+            this.target = target;
+            ssrc = random.nextInt();
+            seq = random.nextInt(0x10000);
+        }
+    }
+
+    private static class Streamer extends Thread {
+        private static final int RTP_HEADER_SIZE = 12;
+        private static final int PAYLOAD_TYPE = 96;
+
+        private final SubscriberTable<Stream> mStreams = new SubscriberTable<Stream>();
+        private final DatagramChannel mChannel;
+        private final ByteBuffer mPacket;
+        private final long mIntervalNanos;
+        private volatile boolean mQuit;
+
+        Streamer(int frameRate, int payloadSize) throws IOException {
+            super(Streamer.class.getSimpleName());
+            setDaemon(true);
+            mChannel = DatagramChannel.open();
+            mPacket = ByteBuffer.allocateDirect(RTP_HEADER_SIZE + payloadSize);
+            mIntervalNanos = TimeUnit.SECONDS.toNanos(1) / frameRate;
+        }
+
+        void add(Stream stream) {
+            mStreams.add(stream);
+        }
+
+        void remove(Stream stream) {
+            mStreams.remove(stream);
+        }
+
+        void quit() {
+            mQuit = true;
+            boolean interrupted = false;
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            long next = start;
+            try {
+                while (!mQuit) {
+                    /* 90kHz, as for video. */
+                    int timestamp = (int)((next - start) * 9 / 100000);
+                    for (int i = 0; i < mStreams.getSlotCount(); i++) {
+                        Stream stream = mStreams.get(i);
+                        if (stream != null) {
+                            send(stream, timestamp);
+                        }
+                    }
+                    mStreams.reclaim();
+
+                    next += mIntervalNanos;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                }
+            } finally {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private void send(Stream stream, int timestamp) {
+            mPacket.clear();
+            mPacket.put((byte)0x80);
+            mPacket.put((byte)(0x80 | PAYLOAD_TYPE));
+            mPacket.putShort((short)stream.seq++);
+            mPacket.putInt(timestamp);
+            mPacket.putInt(stream.ssrc);
+            mPacket.position(mPacket.capacity());
+            mPacket.flip();
+            try {
+                mChannel.send(mPacket, stream.target);
+            } catch (IOException e) {
+                /* As a real sender would, carry on; the receiver sees the loss. */
+            }
+        }
+    }
+}
@@ -3,8 +3,13 @@
 #include <jni.h>
 
 #include <stdbool.h>
+#include <stdint.h>
 
+#ifdef __ANDROID__
 #include <android/log.h>
+#else
+#include <stdio.h>
+#endif
 
 #include <libavcodec/avcodec.h>
 #include <libavcodec/opt.h>
@@ -23,12 +28,27 @@
 
 #if 1
 #define LOG_TAG "ffmpeg-jni"
+#ifdef __ANDROID__
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 #define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, __VA_ARGS__)
 #else
+/* Off-device (see Makefile.host), log to stderr in the same shape as logcat. */
+#define LOG_PRINT(level, ...) \
+    do { \
+        fputs(level "/" LOG_TAG ": ", stderr); \
+        fprintf(stderr, __VA_ARGS__); \
+        fputc('\n', stderr); \
+    } while (0)
+#define LOGE(...) LOG_PRINT("E", __VA_ARGS__)
+#define LOGI(...) LOG_PRINT("I", __VA_ARGS__)
+#define LOGW(...) LOG_PRINT("W", __VA_ARGS__)
+#define LOGD(...) LOG_PRINT("D", __VA_ARGS__)
+#define LOGV(...) LOG_PRINT("V", __VA_ARGS__)
+#endif
+#else
 #define LOGE
 #define LOGI
 #define LOGW
@@ -163,25 +183,22 @@ static int opt_default(const char *opt, const char *arg,
     return ret;
 }
 
-jint Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeCreate(JNIEnv *env,
-        jclass clazz) {
-    FFStreamConfig *defaultConfig = NULL;
-    AVCodecContext *videoEnc = NULL;
-    AVStream *st = NULL;
-
-    defaultConfig = av_mallocz(sizeof(FFStreamConfig));
-    if (defaultConfig == NULL) {
-        jniThrowOOM(env);
-        goto fail;
-    }
-    defaultConfig->title = "rojocam feed";
-
+/**
+ * Allocate and open a video codec context with our stream parameters.  Every
+ * context opened here produces the same bitstream headers, so frames from one
+ * can be spliced into a stream described by another (see VideoEncoder's
+ * private contexts).
+ *
+ * @return The opened context, or NULL with an exception pending.
+ */
+static AVCodecContext *open_video_codec(JNIEnv *env, jint threadCount) {
     AVCodec *codec = avcodec_find_encoder(CODEC_ID_MPEG4);
+    AVCodecContext *videoEnc;
 
     videoEnc = avcodec_alloc_context2(AVMEDIA_TYPE_VIDEO);
     if (videoEnc == NULL) {
         jniThrowOOM(env);
-        goto fail;
+        return NULL;
     }
 
     /* XXX: We should attempt to encode with parameters that match our camera
@@ -201,12 +218,43 @@ jint Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeCreate(JNIEnv *env,
             AV_OPT_FLAG_VIDEO_PARAM | AV_OPT_FLAG_ENCODING_PARAM)) {
         LOGE("opt_default: flags, +global_header failed!");
         jniThrowException(env, "java/IO/IOException", "Failed to set encoder options");
-        goto fail;
+        av_free(videoEnc);
+        return NULL;
+    }
+
+    /* The MPEG-4 encoder splits each picture into one slice per thread and
+     * encodes the slices in parallel.  This must happen before avcodec_open. */
+    if (threadCount > 1) {
+        if (avcodec_thread_init(videoEnc, threadCount) < 0) {
+            LOGW("avcodec_thread_init(%d) failed, encoding single-threaded", threadCount);
+        }
     }
 
     if (avcodec_open(videoEnc, codec) < 0) {
         LOGE("avcodec_open failed!");
         jniThrowException(env, "java/lang/IllegalStateException", NULL);
+        av_free(videoEnc);
+        return NULL;
+    }
+
+    return videoEnc;
+}
+
+jlong Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeCreate(JNIEnv *env,
+        jclass clazz, jint threadCount) {
+    FFStreamConfig *defaultConfig = NULL;
+    AVCodecContext *videoEnc = NULL;
+    AVStream *st = NULL;
+
+    defaultConfig = av_mallocz(sizeof(FFStreamConfig));
+    if (defaultConfig == NULL) {
+        jniThrowOOM(env);
+        goto fail;
+    }
+    defaultConfig->title = "rojocam feed";
+
+    videoEnc = open_video_codec(env, threadCount);
+    if (videoEnc == NULL) {
         goto fail;
     }
 
@@ -220,25 +268,23 @@ jint Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeCreate(JNIEnv *env,
     st->codec = videoEnc;
     defaultConfig->streams[defaultConfig->num_streams++] = st;
 
-    return (jint)defaultConfig;
+    return (jlong)(intptr_t)defaultConfig;
 
 fail:
     if (defaultConfig != NULL) {
         av_free(defaultConfig);
     }
     if (videoEnc != NULL) {
+        avcodec_close(videoEnc);
         av_free(videoEnc);
     }
-    if (st != NULL) {
-        av_free(st);
-    }
     assert((*env)->ExceptionOccurred(env));
     return 0;
 }
 
 jstring Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeGetSDPDescription(JNIEnv *env,
-        jclass clazz, jint nativeInt) {
-    FFStreamConfig *config = (FFStreamConfig *)nativeInt;
+        jclass clazz, jlong handle) {
+    FFStreamConfig *config = (FFStreamConfig *)(intptr_t)handle;
     AVFormatContext *avc;
     AVStream *avs = NULL;
     char buf[2048];
@@ -275,12 +321,13 @@ jstring Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeGetSDPDescription(JN
 }
 
 void Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeDestroy(JNIEnv *env,
-        jclass clazz, jint nativeInt) {
-    FFStreamConfig *config = (FFStreamConfig *)nativeInt;
+        jclass clazz, jlong handle) {
+    FFStreamConfig *config = (FFStreamConfig *)(intptr_t)handle;
     int i;
 
     for (i = 0; i < config->num_streams; i++) {
         AVStream *stream = config->streams[i];
+        avcodec_close(stream->codec);
         av_free(stream->codec);
         av_free(stream);
     }
@@ -288,161 +335,108 @@ void Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeDestroy(JNIEnv *env,
     av_free(config);
 }
 
+jint Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeGetEncoderThreadCount(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    FFStreamConfig *config = (FFStreamConfig *)(intptr_t)handle;
+    return config->streams[0]->codec->thread_count;
+}
+
+jint Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeGetVideoWidth(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    FFStreamConfig *config = (FFStreamConfig *)(intptr_t)handle;
+    return config->streams[0]->codec->width;
+}
+
+jint Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeGetVideoHeight(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    FFStreamConfig *config = (FFStreamConfig *)(intptr_t)handle;
+    return config->streams[0]->codec->height;
+}
+
+jint Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeGetFrameRate(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    FFStreamConfig *config = (FFStreamConfig *)(intptr_t)handle;
+    AVCodecContext *codec = config->streams[0]->codec;
+    return codec->time_base.den / codec->time_base.num;
+}
+
+jbyteArray Java_org_devtcg_rojocam_ffmpeg_FFStreamConfig_nativeGetVideoExtradata(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    FFStreamConfig *config = (FFStreamConfig *)(intptr_t)handle;
+    AVCodecContext *codec = config->streams[0]->codec;
+    jbyteArray extradata;
+
+    extradata = (*env)->NewByteArray(env, codec->extradata_size);
+    if (extradata == NULL) {
+        return NULL;
+    }
+    (*env)->SetByteArrayRegion(env, extradata, 0, codec->extradata_size,
+            (jbyte *)codec->extradata);
+    return extradata;
+}
+
 /*****************************************************************************/
-/* org.devtcg.rojocam.ffmpeg.RtpOutputContext                                */
+/* org.devtcg.rojocam.ffmpeg.VideoEncoder                                    */
 /*****************************************************************************/
 
+/**
+ * Converts and encodes raw camera frames using the codec context owned by an
+ * FFStreamConfig.  The encoded output is handed back to Java so that it can
+ * be delivered to any number of peers (RTP, HLS, ...) without encoding the
+ * same picture more than once.
+ */
 typedef struct {
     FFStreamConfig *config;
-    URLContext *urlContext;
-    AVFormatContext *avContext;
 
-    /* The time the last frame was sent, or the time this object was created to
-     * begin. */
+    /* Either the config's codec context or, if ownsCodec, a private one
+     * opened with the same parameters. */
+    AVCodecContext *codec;
+    bool ownsCodec;
+
+    /* Encode the next picture as a keyframe regardless of the GOP. */
+    bool forceKeyFrame;
+
+    /* The time the last frame was encoded, or 0 before the first frame. */
     int64_t lastFrameTime;
 
     /**
      * Context we use to convert our NV21 frames into something our codec can
-     * handle.
+     * handle.  Lazily (re)initialized whenever the input geometry changes.
      */
     struct SwsContext *imgConvert;
+    int srcFormat;
+    int srcWidth;
+    int srcHeight;
 
     /**
      * Temporary buffer into which we put our output frame data.
      */
     AVFrame *tempFrame;
 
-    /**
-     * Holds the encoded video data while encoding and delivering to the RTP
-     * peer.
-     */
-    uint8_t tempEncodedBuf[200000];
+    /* Properties of the most recently encoded packet. */
+    int64_t ptsUsec;
+    int64_t durationUsec;
+    bool keyFrame;
 
 #if PROFILE_WRITE_FRAME
     long resampling_time;
     long encoding_time;
-    long write_time;
 #endif
-} RtpOutputContext;
-
-static void free_av_format_context(AVFormatContext *avContext) {
-    /* XXX: I'm hesitant to call avformat_free_context as we have not taken the
-     * "normal" API flow here by manually constructing this object so much...
-     * */
-    av_free(avContext->streams);
-    av_free(avContext);
-}
+} VideoEncoder;
 
-static void rtp_output_context_free(RtpOutputContext *rtpContext) {
-    if (rtpContext->urlContext != NULL) {
-        url_close(rtpContext->urlContext);
+static void video_encoder_free(VideoEncoder *encoder) {
+    if (encoder->tempFrame != NULL) {
+        avpicture_free((AVPicture *)encoder->tempFrame);
+        av_free(encoder->tempFrame);
     }
-    if (rtpContext->avContext != NULL) {
-        free_av_format_context(rtpContext->avContext);
+    if (encoder->imgConvert != NULL) {
+        sws_freeContext(encoder->imgConvert);
     }
-    if (rtpContext->tempFrame != NULL) {
-        avpicture_free((AVPicture *)rtpContext->tempFrame);
-        av_free(rtpContext->tempFrame);
+    if (encoder->ownsCodec) {
+        avcodec_close(encoder->codec);
+        av_free(encoder->codec);
     }
-    if (rtpContext->imgConvert != NULL) {
-        sws_freeContext(rtpContext->imgConvert);
-    }
-    av_free(rtpContext);
-}
-
-jint Java_org_devtcg_rojocam_ffmpeg_RtpOutputContext_nativeCreate(JNIEnv *env,
-        jclass clazz, jint streamConfigNativeInt, jlong nowNanoTime,
-        jstring hostAddress, jint rtpPort) {
-    FFStreamConfig *config = (FFStreamConfig *)streamConfigNativeInt;
-    RtpOutputContext *rtpContext = NULL;
-    AVFormatContext *avContext = NULL;
-    AVStream *st = NULL;
-    uint8_t *dummy_buf;
-    int max_packet_size;
-
-    rtpContext = av_mallocz(sizeof(RtpOutputContext));
-    if (rtpContext == NULL) {
-        jniThrowOOM(env);
-        goto cleanup;
-    }
-
-    rtpContext->lastFrameTime = nowNanoTime;
-    rtpContext->config = config;
-
-    avContext = avformat_alloc_context();
-    if (avContext == NULL) {
-        jniThrowOOM(env);
-        goto cleanup;
-    }
-    avContext->oformat = av_guess_format("rtp", NULL, NULL);
-    if (avContext->oformat == NULL) {
-        jniThrowException(env, "java/lang/IllegalStateException",
-                "rtp avformat is not available");
-        goto cleanup;
-    }
-
-    rtpContext->avContext = avContext;
-
-    st = av_mallocz(sizeof(AVStream));
-    if (st == NULL) {
-        jniThrowOOM(env);
-        goto cleanup;
-    }
-    avContext->nb_streams = 1;
-    avContext->streams = av_malloc(avContext->nb_streams * sizeof(*avContext->streams));
-    avContext->streams[0] = st;
-
-    /* XXX: What would we be doing if we supported audio as well? */
-    memcpy(st, config->streams[0], sizeof(AVStream));
-    st->priv_data = NULL;
-
-    const jbyte *hostAddress_str = (*env)->GetStringUTFChars(env,
-            hostAddress, NULL);
-    snprintf(avContext->filename, sizeof(avContext->filename),
-            "rtp://%s:%d?localrtpport=5000&localrtcpport=5001",
-            hostAddress_str, rtpPort);
-    (*env)->ReleaseStringUTFChars(env, hostAddress, hostAddress_str);
-
-    if (url_open(&rtpContext->urlContext,
-            avContext->filename, URL_WRONLY) < 0) {
-        LOGE("Cannot open url context for filename=%s", avContext->filename);
-        jniThrowException(env, "java/io/IOException", "Unable to open URL");
-        goto cleanup;
-    }
-
-    max_packet_size = url_get_max_packet_size(rtpContext->urlContext);
-
-    /* XXX: No idea what purpose this serves... */
-    url_open_dyn_packet_buf(&avContext->pb, max_packet_size);
-
-    av_set_parameters(avContext, NULL);
-    if (av_write_header(avContext) < 0) {
-        jniThrowException(env, "java/io/IOException", "Unexpected error writing dummy RTP header");
-        goto cleanup;
-    }
-
-    url_close_dyn_buf(avContext->pb, &dummy_buf);
-    av_free(dummy_buf);
-
-    return (jint)rtpContext;
-
-cleanup:
-    rtp_output_context_free(rtpContext);
-    assert((*env)->ExceptionOccurred(env));
-
-    return 0;
-}
-
-jint Java_org_devtcg_rojocam_ffmpeg_RtpOutputContext_nativeGetLocalRtpPort(JNIEnv *env,
-        jclass clazz, jint nativeInt) {
-    RtpOutputContext *rtpContext = (RtpOutputContext *)nativeInt;
-    return ff_rtp_get_local_rtp_port(rtpContext->urlContext);
-}
-
-jint Java_org_devtcg_rojocam_ffmpeg_RtpOutputContext_nativeGetLocalRtcpPort(JNIEnv *env,
-        jclass clazz, jint nativeInt) {
-    RtpOutputContext *rtpContext = (RtpOutputContext *)nativeInt;
-    return ff_rtp_get_local_rtcp_port(rtpContext->urlContext);
+    av_free(encoder);
 }
 
 static AVFrame *alloc_picture(enum PixelFormat pix_fmt, int width, int height) {
@@ -473,224 +467,271 @@ static int androidPixFmtToFFmpeg(jint androidPixFmt) {
     }
 }
 
+jlong Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeCreate(JNIEnv *env,
+        jclass clazz, jlong streamConfigHandle, jboolean privateCodec) {
+    FFStreamConfig *config = (FFStreamConfig *)(intptr_t)streamConfigHandle;
+    AVCodecContext *codec;
+    VideoEncoder *encoder;
+
+    encoder = av_mallocz(sizeof(VideoEncoder));
+    if (encoder == NULL) {
+        jniThrowOOM(env);
+        return 0;
+    }
+
+    encoder->config = config;
+
+    if (privateCodec) {
+        encoder->codec = open_video_codec(env, 1);
+        if (encoder->codec == NULL) {
+            video_encoder_free(encoder);
+            return 0;
+        }
+        encoder->ownsCodec = true;
+    } else {
+        encoder->codec = config->streams[0]->codec;
+    }
+    codec = encoder->codec;
+
+    encoder->tempFrame = alloc_picture(codec->pix_fmt,
+            codec->width, codec->height);
+    if (encoder->tempFrame == NULL) {
+        video_encoder_free(encoder);
+        jniThrowOOM(env);
+        return 0;
+    }
+
+    return (jlong)(intptr_t)encoder;
+}
+
 /**
- * Encode our raw camera picture to an output packet, ultimately to be written
- * using RTP.  The resulting packet has been timescaled to match the output
- * stream.
- *
- * @return True if the packet was written; false if the picture was buffered.
+ * Make sure our conversion context matches the incoming frame geometry.  The
+ * camera is not supposed to change this on us mid-stream, but nothing in our
+ * API enforces it.
+ */
+static bool ensure_img_convert(JNIEnv *env, VideoEncoder *encoder,
+        jint frameFormat, jint frameWidth, jint frameHeight) {
+    AVCodecContext *codec = encoder->codec;
+
+    if (encoder->imgConvert != NULL &&
+            encoder->srcFormat == frameFormat &&
+            encoder->srcWidth == frameWidth &&
+            encoder->srcHeight == frameHeight) {
+        return true;
+    }
+
+    encoder->imgConvert = sws_getCachedContext(encoder->imgConvert,
+            frameWidth, frameHeight, androidPixFmtToFFmpeg(frameFormat),
+            codec->width, codec->height, codec->pix_fmt,
+            SWS_BICUBIC, NULL, NULL, NULL);
+    if (encoder->imgConvert == NULL) {
+        jniThrowOOM(env);
+        return false;
+    }
+
+    encoder->srcFormat = frameFormat;
+    encoder->srcWidth = frameWidth;
+    encoder->srcHeight = frameHeight;
+
+    return true;
+}
+
+/**
+ * Convert a raw camera picture into the codec's format and geometry.
  */
-static bool encode_video_frame(RtpOutputContext *rtpContext,
-        AVStream *stream, AVFrame *tempFrame,
-        struct SwsContext *imgConvert, uint8_t *outbuf, int outbuf_size,
-        jbyte *data, jlong frameTime, jint frameDuration,
-        jint frameFormat, jint frameWidth, jint frameHeight,
-        jint frameBitsPerPixel, AVPacket *pkt) {
+static bool convert_picture(JNIEnv *env, VideoEncoder *encoder, jbyteArray data,
+        jint frameFormat, jint frameWidth, jint frameHeight, AVFrame *dst) {
     AVFrame frame;
     AVPicture *picture = (AVPicture *)&frame;
-    AVCodecContext *c;
-    int n;
+    jbyte *data_c;
 
-    c = stream->codec;
+    if (!ensure_img_convert(env, encoder, frameFormat, frameWidth, frameHeight)) {
+        LOGE("Error initializing conversion context, cannot encode");
+        return false;
+    }
+
+    if ((*env)->GetArrayLength(env, data) < avpicture_get_size(
+            androidPixFmtToFFmpeg(frameFormat), frameWidth, frameHeight)) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                "Buffer too small for frame dimensions");
+        return false;
+    }
 
 #if PROFILE_WRITE_FRAME
     struct timeval then;
     gettimeofday(&then, NULL);
 #endif
 
+    data_c = (*env)->GetByteArrayElements(env, data, NULL);
+
     /* XXX: Hmm, we're resampling here but perhaps this is a mistake.  Why not
      * just define the codec context to match our input close enough for fast
      * translation? */
     avcodec_get_frame_defaults(&frame);
-    avpicture_fill(picture, data, androidPixFmtToFFmpeg(frameFormat),
+    avpicture_fill(picture, data_c, androidPixFmtToFFmpeg(frameFormat),
             frameWidth, frameHeight);
 
-    sws_scale(imgConvert, picture->data, picture->linesize, 0,
-            frameHeight, tempFrame->data, tempFrame->linesize);
+    sws_scale(encoder->imgConvert, picture->data, picture->linesize, 0,
+            frameHeight, dst->data, dst->linesize);
+
+    (*env)->ReleaseByteArrayElements(env, data, data_c, JNI_ABORT);
 
 #if PROFILE_WRITE_FRAME
-    store_elapsed(&rtpContext->resampling_time, &then);
+    store_elapsed(&encoder->resampling_time, &then);
 #endif
 
+    return true;
+}
+
+/**
+ * Encode a converted picture into the caller supplied direct buffer.
+ *
+ * @return Number of encoded bytes written, or 0 if the picture was buffered
+ *     by the codec.
+ */
+static jint encode_picture(JNIEnv *env, VideoEncoder *encoder, AVFrame *src,
+        jlong frameTime, jobject outBuf) {
+    AVCodecContext *c = encoder->codec;
+    uint8_t *outbuf;
+    int outbuf_size;
+    int n;
+
+    outbuf = (*env)->GetDirectBufferAddress(env, outBuf);
+    outbuf_size = (*env)->GetDirectBufferCapacity(env, outBuf);
+    if (outbuf == NULL) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                "Output buffer must be direct");
+        return 0;
+    }
+
 #if PROFILE_WRITE_FRAME
+    struct timeval then;
     gettimeofday(&then, NULL);
 #endif
-    tempFrame->pts = av_rescale_q(frameTime, AV_TIME_BASE_Q, c->time_base);
-    n = avcodec_encode_video(c, outbuf, outbuf_size, tempFrame);
+
+    src->pts = av_rescale_q(frameTime, AV_TIME_BASE_Q, c->time_base);
+    src->pict_type = encoder->forceKeyFrame ? FF_I_TYPE : 0;
+    n = avcodec_encode_video(c, outbuf, outbuf_size, src);
+    encoder->forceKeyFrame = false;
+
 #if PROFILE_WRITE_FRAME
-    store_elapsed(&rtpContext->encoding_time, &then);
+    store_elapsed(&encoder->encoding_time, &then);
+    LOGI("resample@%ld ms; encode@%ld ms",
+            encoder->resampling_time, encoder->encoding_time);
 #endif
-    if (n > 0) {
-        av_init_packet(pkt);
 
+    if (n > 0) {
         if (c->coded_frame->pts != AV_NOPTS_VALUE) {
-            pkt->pts = av_rescale_q(c->coded_frame->pts,
-                    c->time_base, stream->time_base);
-        }
-
-        if (c->coded_frame->key_frame) {
-            pkt->flags |= AV_PKT_FLAG_KEY;
+            encoder->ptsUsec = av_rescale_q(c->coded_frame->pts,
+                    c->time_base, AV_TIME_BASE_Q);
+        } else {
+            encoder->ptsUsec = frameTime;
         }
+        encoder->keyFrame = c->coded_frame->key_frame;
+        encoder->durationUsec = encoder->lastFrameTime != 0 ?
+                frameTime - encoder->lastFrameTime : 0;
 
-        pkt->dts = pkt->pts;
-        pkt->duration = av_rescale_q(frameDuration, AV_TIME_BASE_Q, stream->time_base);
-        pkt->stream_index = stream->index;
-        pkt->data = outbuf;
-        pkt->size = n;
-
-        return true;
-    } else {
-        return false;
+        /* XXX: I dunno, ffserver.c does this... */
+        c->frame_number++;
     }
-}
-
-static ssize_t exhaustive_send(URLContext *urlContext, uint8_t *packetized_data,
-    int packetized_data_len) {
-    uint8_t *ptr = packetized_data;
-    uint8_t *end = packetized_data + packetized_data_len;
-    ssize_t numBytes = 0;
-
-    /* XXX: Do we need packet clock synchronization?  I don't think so... */
-    while (ptr < end) {
-        int remaining = end - ptr;
-        int len;
 
-        /* The size for each packet is actually encoded in the first 4 bytes of
-         * each of a series of packets contained in `rtp_data'. */
-        assert(remaining >= 4);
+    encoder->lastFrameTime = frameTime;
 
-        len = ptr[0] << 24 | ptr[1] << 16 | ptr[2] << 8 | ptr[3];
-        assert(len <= remaining - 4);
+    return n > 0 ? n : 0;
+}
 
-        ptr += 4;
-        int n = url_write(urlContext, ptr, len);
-        ptr += len;
+/**
+ * Convert and encode our raw camera picture in one go.
+ */
+jint Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeEncode(JNIEnv *env,
+        jclass clazz, jlong handle, jbyteArray data, jlong frameTime,
+        jint frameFormat, jint frameWidth, jint frameHeight, jobject outBuf) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
 
-        /* XXX: Our poor error handling comes courtesy of ffserver.c */
-        if (n > 0) {
-            numBytes += n;
-        }
+    if (!convert_picture(env, encoder, data, frameFormat, frameWidth, frameHeight,
+            encoder->tempFrame)) {
+        return 0;
     }
-
-    return numBytes;
+    return encode_picture(env, encoder, encoder->tempFrame, frameTime, outBuf);
 }
 
 /**
- * Perform some lazy initialization of the context on the first frame write,
- * assuming that all future frame writes will have the same dimensions.
- * Blargh, our API should be restructured.
+ * Allocate a picture in the codec's format and geometry, to be filled by
+ * nativeConvert and consumed by nativeEncodePicture.  Freed by
+ * Picture.nativeDestroy.
  */
-static bool first_frame_init(JNIEnv *env, RtpOutputContext *rtpContext,
-        jint frameFormat, jint frameWidth, jint frameHeight) {
-    AVCodecContext *codec = rtpContext->avContext->streams[0]->codec;
-    rtpContext->tempFrame = alloc_picture(codec->pix_fmt,
-            codec->width, codec->height);
-    if (rtpContext->tempFrame == NULL) {
-        jniThrowOOM(env);
-        return false;
-    }
+jlong Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeCreatePicture(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
+    AVCodecContext *codec = encoder->codec;
+    AVFrame *picture;
 
-    rtpContext->imgConvert = sws_getContext(frameWidth, frameHeight,
-            androidPixFmtToFFmpeg(frameFormat),
-            codec->width, codec->height, codec->pix_fmt,
-            SWS_BICUBIC, NULL, NULL, NULL);
-    if (rtpContext->imgConvert == NULL) {
+    picture = alloc_picture(codec->pix_fmt, codec->width, codec->height);
+    if (picture == NULL) {
         jniThrowOOM(env);
-        return false;
+        return 0;
     }
-
-    return true;
+    return (jlong)(intptr_t)picture;
 }
 
-/* XXX: This class should really pass the picture parameters by a separate API
- * so that we can, by contract, enforce that the frame size can't suddenly
- * change on us. */
-void Java_org_devtcg_rojocam_ffmpeg_RtpOutputContext_nativeWriteFrame(JNIEnv *env,
-        jclass clazz, jint nativeInt, jbyteArray data, jlong frameTime,
-        jint frameFormat, jint frameWidth, jint frameHeight,
-        jint frameBitsPerPixel) {
-    RtpOutputContext *rtpContext = (RtpOutputContext *)nativeInt;
-    AVFormatContext *avContext;
-    AVCodecContext *codec;
-    AVStream *outputStream;
-    AVPacket pkt;
-    jbyte *data_c;
-    int max_packet_size;
-    uint8_t *rtp_data;
-    int rtp_data_len;
-
-    avContext = rtpContext->avContext;
-    outputStream = avContext->streams[0];
-    codec = outputStream->codec;
-
-    if (rtpContext->tempFrame == NULL) {
-        if (!first_frame_init(env, rtpContext, frameFormat,
-                frameWidth, frameHeight)) {
-            LOGE("Error initializing encoding buffers, cannot stream");
-            return;
-        }
-    }
+void Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeConvert(JNIEnv *env,
+        jclass clazz, jlong handle, jbyteArray data, jint frameFormat,
+        jint frameWidth, jint frameHeight, jlong pictureHandle) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
+    AVFrame *picture = (AVFrame *)(intptr_t)pictureHandle;
 
-    data_c = (*env)->GetByteArrayElements(env, data, NULL);
-
-    /* Convert the input arguments to an AVPacket, simulating it as though we
-     * read this from the ffmpeg libraries but there was no need to do this as
-     * it was passed into us already as a raw video frame. */
-    int frameDuration = frameTime - rtpContext->lastFrameTime;
-    bool frameEncoded = encode_video_frame(rtpContext,
-            outputStream, rtpContext->tempFrame, rtpContext->imgConvert,
-            rtpContext->tempEncodedBuf, sizeof(rtpContext->tempEncodedBuf),
-            data_c, frameTime, frameDuration, frameFormat,
-            frameWidth, frameHeight, frameBitsPerPixel, &pkt);
-    rtpContext->lastFrameTime = frameTime;
-
-    (*env)->ReleaseByteArrayElements(env, data, data_c, JNI_ABORT);
-
-    if (frameEncoded) {
-#if PROFILE_WRITE_FRAME
-        struct timeval then;
-        gettimeofday(&then, NULL);
-#endif
+    convert_picture(env, encoder, data, frameFormat, frameWidth, frameHeight,
+            picture);
+}
 
-        max_packet_size = url_get_max_packet_size(rtpContext->urlContext);
-        url_open_dyn_packet_buf(&avContext->pb, max_packet_size);
+jint Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeEncodePicture(JNIEnv *env,
+        jclass clazz, jlong handle, jlong pictureHandle, jlong frameTime,
+        jobject outBuf) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
+    AVFrame *picture = (AVFrame *)(intptr_t)pictureHandle;
 
-        avContext->pb->seekable = 0;
+    return encode_picture(env, encoder, picture, frameTime, outBuf);
+}
 
-        /* This organizes our encoded packet into RTP packet segments (but it
-         * doesn't actually send anything over the network yet). */
-        if (av_write_frame(avContext, &pkt) < 0) {
-            jniThrowException(env, "java/io/IOException", "Error writing frame to output");
-        }
+void Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeRequestKeyFrame(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
+    encoder->forceKeyFrame = true;
+}
 
-        /* Actually deliver the packetized RTP data to the remote peer. */
-        rtp_data_len = url_close_dyn_buf(avContext->pb, &rtp_data);
-        exhaustive_send(rtpContext->urlContext, rtp_data, rtp_data_len);
-        av_free(rtp_data);
+jlong Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeGetPts(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
+    return encoder->ptsUsec;
+}
 
-        /* XXX: I dunno, ffserver.c does this... */
-        outputStream->codec->frame_number++;
+jlong Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeGetDuration(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
+    return encoder->durationUsec;
+}
 
-#if PROFILE_WRITE_FRAME
-        store_elapsed(&rtpContext->write_time, &then);
-#endif
-    } else {
-#if PROFILE_WRITE_TIME
-        rtpContext->write_time = 0;
-#endif
-    }
+jboolean Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeIsKeyFrame(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
+    return encoder->keyFrame;
+}
 
-#if PROFILE_WRITE_FRAME
-    LOGI("resample@%ld ms; encode@%ld ms; write@%ld ms",
-            rtpContext->resampling_time, rtpContext->encoding_time,
-            rtpContext->write_time);
-#endif
+void Java_org_devtcg_rojocam_ffmpeg_VideoEncoder_nativeDestroy(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    VideoEncoder *encoder = (VideoEncoder *)(intptr_t)handle;
+    video_encoder_free(encoder);
 }
 
-jint Java_org_devtcg_rojocam_ffmpeg_RtpOutputContext_nativeClose(JNIEnv *env,
-        jclass clazz, jint nativeInt) {
-    RtpOutputContext *rtpContext = (RtpOutputContext *)nativeInt;
-    rtp_output_context_free(rtpContext);
+/*****************************************************************************/
+/* org.devtcg.rojocam.ffmpeg.Picture                                         */
+/*****************************************************************************/
+
+void Java_org_devtcg_rojocam_ffmpeg_Picture_nativeDestroy(JNIEnv *env,
+        jclass clazz, jlong handle) {
+    AVFrame *picture = (AVFrame *)(intptr_t)handle;
+    avpicture_free((AVPicture *)picture);
+    av_free(picture);
 }
 
 /*****************************************************************************/
@@ -714,7 +755,7 @@ static void swsscaler_free(SwsScaler *scaler) {
     av_free(scaler);
 }
 
-jint Java_org_devtcg_rojocam_ffmpeg_SwsScaler_nativeCreate(JNIEnv *env,
+jlong Java_org_devtcg_rojocam_ffmpeg_SwsScaler_nativeCreate(JNIEnv *env,
         jclass clazz,
         jint srcPixFmt, jint srcWidth, jint srcHeight,
         jint dstPixFmt, jint dstWidth, jint dstHeight, jint flags) {
@@ -741,7 +782,7 @@ jint Java_org_devtcg_rojocam_ffmpeg_SwsScaler_nativeCreate(JNIEnv *env,
     scaler->dstWidth = dstWidth;
     scaler->dstHeight = dstHeight;
 
-    return (jint)scaler;
+    return (jlong)(intptr_t)scaler;
 
 cleanup:
     swsscaler_free(scaler);
@@ -751,19 +792,28 @@ cleanup:
 }
 
 void Java_org_devtcg_rojocam_ffmpeg_SwsScaler_nativeScale(JNIEnv *env,
-        jclass clazz, jint nativeInt, jbyteArray src, jbyteArray dst) {
+        jclass clazz, jlong handle, jbyteArray src, jbyteArray dst) {
     SwsScaler *scaler;
     AVPicture srcPic;
     AVPicture dstPic;
     jbyte *src_c;
     jbyte *dst_c;
 
-    if (nativeInt == 0 || src == NULL || dst == NULL) {
+    if (handle == 0 || src == NULL || dst == NULL) {
         jniThrowNPE(env, NULL);
         return;
     }
 
-    scaler = (SwsScaler *)nativeInt;
+    scaler = (SwsScaler *)(intptr_t)handle;
+
+    if ((*env)->GetArrayLength(env, src) < avpicture_get_size(scaler->srcPixFmt,
+                scaler->srcWidth, scaler->srcHeight) ||
+            (*env)->GetArrayLength(env, dst) < avpicture_get_size(scaler->dstPixFmt,
+                scaler->dstWidth, scaler->dstHeight)) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                "Buffer too small for scaler dimensions");
+        return;
+    }
 
     src_c = (*env)->GetByteArrayElements(env, src, NULL);
     dst_c = (*env)->GetByteArrayElements(env, dst, NULL);
@@ -781,8 +831,8 @@ void Java_org_devtcg_rojocam_ffmpeg_SwsScaler_nativeScale(JNIEnv *env,
 }
 
 void Java_org_devtcg_rojocam_ffmpeg_SwsScaler_nativeDestroy(JNIEnv *env,
-        jclass clazz, jint nativeInt) {
-    SwsScaler *scaler = (SwsScaler *)nativeInt;
+        jclass clazz, jlong handle) {
+    SwsScaler *scaler = (SwsScaler *)(intptr_t)handle;
     swsscaler_free(scaler);
 }
 
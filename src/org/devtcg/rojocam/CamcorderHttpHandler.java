@@ -0,0 +1,412 @@
+package org.devtcg.rojocam;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
+import org.devtcg.rojocam.hls.HlsSegmenter;
+import org.devtcg.rojocam.http.SimpleHttpServer;
+import org.devtcg.rojocam.util.IOUtils;
+import org.devtcg.rojocam.util.Metrics;
+import org.devtcg.rojocam.util.ReferenceCounter;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Serves the camera feed over plain HTTP as JPEG snapshots, a multipart MJPEG
+ * stream and low-latency HLS. The camera is acquired through the same
+ * {@link ReferenceCounter} as the RTSP sessions, so it only runs while
+ * someone is watching by any protocol.
+ * <p>
+ * HLS is fed from the same encoded stream as the RTP peers. Since HLS clients
+ * hold no connection open, the camera is kept for HLS until no HLS request
+ * has been seen for {@link #HLS_IDLE_TIMEOUT}.
+ */
+public class CamcorderHttpHandler {
+    private static final String TAG = CamcorderHttpHandler.class.getSimpleName();
+
+    public static final String SNAPSHOT_PATH = "/snapshot.jpg";
+    public static final String MJPEG_PATH = "/stream.mjpeg";
+    public static final String STATS_PATH = "/stats";
+    public static final String HLS_PREFIX = "/hls/";
+    public static final String HLS_PLAYLIST_NAME = "live.m3u8";
+
+    private static final String JPEG_CONTENT_TYPE = "image/jpeg";
+    private static final String MJPEG_BOUNDARY = "rojocamframe";
+    private static final String MJPEG_CONTENT_TYPE =
+            "multipart/x-mixed-replace; boundary=" + MJPEG_BOUNDARY;
+
+    /** Pollers within this window share the same compressed snapshot. */
+    private static final long SNAPSHOT_TTL = 500;
+
+    /** How long to wait for the camera to produce a frame before giving up. */
+    private static final long FRAME_TIMEOUT = 5000;
+
+    private static final String PLAYLIST_CONTENT_TYPE = "application/vnd.apple.mpegurl";
+    private static final String MP4_CONTENT_TYPE = "video/mp4";
+    private static final String SEGMENT_CONTENT_TYPE = "video/iso.segment";
+
+    /** Release the camera after HLS clients have been quiet this long. */
+    private static final long HLS_IDLE_TIMEOUT = 15000;
+
+    /** Upper bound on how long a blocking playlist reload may be held. */
+    private static final long HLS_BLOCKING_TIMEOUT = 6000;
+
+    private final ReferenceCounter<StreamingHeadlessCamcorder> mCamcorderRef;
+    private final FFStreamConfig mStreamConfig;
+    private final JpegFrameSource mFrameSource = new JpegFrameSource(SNAPSHOT_TTL);
+
+    private final Handler mHandler = new Handler();
+
+    /* Guarded by this. */
+    private int mClients;
+    private StreamingHeadlessCamcorder mCamcorder;
+
+    /* Guarded by this. */
+    private HlsSegmenter mHlsSegmenter;
+    private StreamingHeadlessCamcorder mHlsCamcorder;
+    private long mHlsLastAccess;
+
+    public CamcorderHttpHandler(ReferenceCounter<StreamingHeadlessCamcorder> camcorderRef,
+            FFStreamConfig streamConfig) {
+        mCamcorderRef = camcorderRef;
+        mStreamConfig = streamConfig;
+    }
+
+    public void registerWith(SimpleHttpServer server) {
+        server.registerHandler(SNAPSHOT_PATH, new SnapshotHandler());
+        server.registerHandler(MJPEG_PATH, new MjpegHandler());
+        server.registerHandler(STATS_PATH, new StatsHandler());
+        server.registerHandler(HLS_PREFIX + "*", new HlsHandler());
+    }
+
+    private synchronized JpegFrameSource acquireFrameSource() {
+        StreamingHeadlessCamcorder camcorder = mCamcorderRef.acquire();
+        if (mClients++ == 0) {
+            mCamcorder = camcorder;
+            mCamcorder.addFrameListener(mFrameSource);
+        }
+        return mFrameSource;
+    }
+
+    private synchronized void releaseFrameSource() {
+        if (--mClients == 0) {
+            mCamcorder.removeFrameListener(mFrameSource);
+            mCamcorder = null;
+            mFrameSource.reset();
+        }
+        mCamcorderRef.release();
+    }
+
+    private synchronized HlsSegmenter acquireHlsSegmenter() {
+        mHlsLastAccess = SystemClock.elapsedRealtime();
+        if (mHlsSegmenter == null) {
+            Log.i(TAG, "Starting HLS stream");
+            final StreamingHeadlessCamcorder camcorder = mCamcorderRef.acquire();
+            mHlsCamcorder = camcorder;
+            mHlsSegmenter = new HlsSegmenter(mStreamConfig,
+                    new HlsSegmenter.KeyFrameRequester() {
+                        public void requestKeyFrame() {
+                            camcorder.requestKeyFrame();
+                        }
+                    });
+            mHlsCamcorder.addReceiver(mHlsSegmenter);
+            mHandler.postDelayed(mHlsIdleCheck, HLS_IDLE_TIMEOUT);
+        }
+        return mHlsSegmenter;
+    }
+
+    /**
+     * Stops the HLS stream, if running, and gives back its camera reference.
+     * Call once the HTTP server has been shut down, so that no request can
+     * start it again.
+     */
+    public void shutdown() {
+        mHandler.removeCallbacks(mHlsIdleCheck);
+        synchronized (this) {
+            if (mHlsSegmenter == null) {
+                return;
+            }
+            Log.i(TAG, "Shutting down, stopping HLS stream");
+            stopHlsLocked();
+        }
+        mCamcorderRef.release();
+    }
+
+    /* The caller releases the camera reference, outside of the lock. */
+    private void stopHlsLocked() {
+        mHlsCamcorder.removeReceiver(mHlsSegmenter);
+        IOUtils.closeQuietly(mHlsSegmenter);
+        mHlsSegmenter = null;
+        mHlsCamcorder = null;
+    }
+
+    private final Runnable mHlsIdleCheck = new Runnable() {
+        public void run() {
+            synchronized (CamcorderHttpHandler.this) {
+                if (mHlsSegmenter == null) {
+                    return;
+                }
+                long idle = SystemClock.elapsedRealtime() - mHlsLastAccess;
+                if (idle < HLS_IDLE_TIMEOUT) {
+                    mHandler.postDelayed(this, HLS_IDLE_TIMEOUT - idle);
+                    return;
+                }
+                Log.i(TAG, "HLS clients idle, stopping HLS stream");
+                stopHlsLocked();
+            }
+            mCamcorderRef.release();
+        }
+    };
+
+    private class SnapshotHandler implements HttpRequestHandler {
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+                throws HttpException, IOException {
+            JpegFrameSource.Jpeg jpeg;
+            JpegFrameSource source = acquireFrameSource();
+            try {
+                jpeg = source.getSnapshot(FRAME_TIMEOUT);
+            } catch (InterruptedException e) {
+                jpeg = null;
+            } finally {
+                releaseFrameSource();
+            }
+
+            if (jpeg != null) {
+                ByteArrayEntity entity = new ByteArrayEntity(jpeg.data);
+                entity.setContentType(JPEG_CONTENT_TYPE);
+                response.setEntity(entity);
+                response.addHeader("Cache-Control", "no-cache");
+                response.setStatusCode(HttpStatus.SC_OK);
+            } else {
+                Log.w(TAG, "Timed out waiting for a snapshot frame");
+                response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+            }
+        }
+    }
+
+    private class MjpegHandler implements HttpRequestHandler {
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+                throws HttpException, IOException {
+            /*
+             * The camera is acquired only once the entity is actually being
+             * written so that the reference is always released from the same
+             * place, however the response ends.
+             */
+            response.setEntity(new MjpegEntity());
+            response.addHeader("Cache-Control", "no-cache");
+            response.addHeader("Connection", "close");
+            response.setStatusCode(HttpStatus.SC_OK);
+        }
+    }
+
+    private static class StatsHandler implements HttpRequestHandler {
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+                throws HttpException, IOException {
+            StringEntity entity = new StringEntity(Metrics.dump(), "UTF-8");
+            entity.setContentType("text/plain; charset=UTF-8");
+            response.setEntity(entity);
+            response.addHeader("Cache-Control", "no-cache");
+            response.setStatusCode(HttpStatus.SC_OK);
+        }
+    }
+
+    private class HlsHandler implements HttpRequestHandler {
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+                throws HttpException, IOException {
+            String uri = request.getRequestLine().getUri();
+            String query = null;
+            int queryStart = uri.indexOf('?');
+            if (queryStart >= 0) {
+                query = uri.substring(queryStart + 1);
+                uri = uri.substring(0, queryStart);
+            }
+            String name = uri.substring(uri.lastIndexOf('/') + 1);
+
+            HlsSegmenter segmenter = acquireHlsSegmenter();
+            try {
+                if (name.equals(HLS_PLAYLIST_NAME)) {
+                    handlePlaylist(segmenter, query, response);
+                } else if (name.equals(HlsSegmenter.INIT_SEGMENT_NAME)) {
+                    setParts(response, MP4_CONTENT_TYPE,
+                            Collections.singletonList(segmenter.getInitSegment()));
+                } else if (name.startsWith("seg") && name.endsWith(".m4s")) {
+                    long sequence = Long.parseLong(name.substring(3, name.length() - 4));
+                    setParts(response, SEGMENT_CONTENT_TYPE, segmenter.getSegment(sequence));
+                } else if (name.startsWith("part") && name.endsWith(".m4s")) {
+                    String[] ids = name.substring(4, name.length() - 4).split("\\.", 2);
+                    byte[] part = segmenter.getPart(Long.parseLong(ids[0]),
+                            Integer.parseInt(ids[1]));
+                    setParts(response, SEGMENT_CONTENT_TYPE,
+                            part != null ? Collections.singletonList(part) : null);
+                } else {
+                    response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+                }
+            } catch (NumberFormatException e) {
+                response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+            } catch (InterruptedException e) {
+                response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+            }
+        }
+
+        private void handlePlaylist(HlsSegmenter segmenter, String query,
+                HttpResponse response) throws IOException, InterruptedException {
+            long blockSequence = -1;
+            int blockPart = -1;
+            if (query != null) {
+                for (String param: query.split("&")) {
+                    if (param.startsWith("_HLS_msn=")) {
+                        blockSequence = Long.parseLong(param.substring(9));
+                    } else if (param.startsWith("_HLS_part=")) {
+                        blockPart = Integer.parseInt(param.substring(10));
+                    }
+                }
+            }
+
+            long timeout = blockSequence >= 0 ? HLS_BLOCKING_TIMEOUT : FRAME_TIMEOUT;
+            String playlist = segmenter.getPlaylist(blockSequence, blockPart, timeout);
+            if (playlist != null) {
+                StringEntity entity = new StringEntity(playlist, "UTF-8");
+                entity.setContentType(PLAYLIST_CONTENT_TYPE);
+                response.setEntity(entity);
+                response.addHeader("Cache-Control", "no-cache");
+                response.setStatusCode(HttpStatus.SC_OK);
+            } else {
+                Log.w(TAG, "Timed out waiting for the first HLS segment");
+                response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+            }
+        }
+
+        private void setParts(HttpResponse response, String contentType, List<byte[]> parts) {
+            if (parts != null) {
+                response.setEntity(new PartsEntity(parts, contentType));
+                response.setStatusCode(HttpStatus.SC_OK);
+            } else {
+                response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+            }
+        }
+    }
+
+    /**
+     * Writes a series of cached buffers back to back, directly from the arrays
+     * held by the segmenter.
+     */
+    private static class PartsEntity extends AbstractHttpEntity {
+        private final List<byte[]> mParts;
+        private final long mLength;
+
+        public PartsEntity(List<byte[]> parts, String contentType) {
+            mParts = parts;
+            long length = 0;
+            for (byte[] part: parts) {
+                length += part.length;
+            }
+            mLength = length;
+            setContentType(contentType);
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public long getContentLength() {
+            return mLength;
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+
+        public InputStream getContent() throws IOException {
+            Vector<InputStream> streams = new Vector<InputStream>(mParts.size());
+            for (byte[] part: mParts) {
+                streams.add(new ByteArrayInputStream(part));
+            }
+            return new SequenceInputStream(streams.elements());
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            for (byte[] part: mParts) {
+                out.write(part);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Endless multipart entity which writes each new JPEG frame as it becomes
+     * available until the client goes away.
+     */
+    private class MjpegEntity extends AbstractHttpEntity {
+        public MjpegEntity() {
+            setContentType(MJPEG_CONTENT_TYPE);
+        }
+
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+
+        public boolean isStreaming() {
+            return true;
+        }
+
+        public InputStream getContent() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            JpegFrameSource source = acquireFrameSource();
+            try {
+                long lastSeq = 0;
+                while (true) {
+                    JpegFrameSource.Jpeg jpeg = source.awaitNext(lastSeq, FRAME_TIMEOUT);
+                    if (jpeg == null) {
+                        throw new IOException("Timed out waiting for the next frame");
+                    }
+                    writePart(out, jpeg.data);
+                    lastSeq = jpeg.seq;
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            } finally {
+                releaseFrameSource();
+            }
+        }
+
+        private void writePart(OutputStream out, byte[] jpeg) throws IOException {
+            StringBuilder b = new StringBuilder();
+            b.append("--").append(MJPEG_BOUNDARY).append("\r\n");
+            b.append("Content-Type: ").append(JPEG_CONTENT_TYPE).append("\r\n");
+            b.append("Content-Length: ").append(jpeg.length).append("\r\n");
+            b.append("\r\n");
+            out.write(b.toString().getBytes("US-ASCII"));
+            out.write(jpeg);
+            out.write('\r');
+            out.write('\n');
+            out.flush();
+        }
+    }
+}
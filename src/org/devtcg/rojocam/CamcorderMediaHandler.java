@@ -1,9 +1,12 @@
 package org.devtcg.rojocam;
 
 import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
-import org.devtcg.rojocam.ffmpeg.RtpOutputContext;
+import org.devtcg.rojocam.rtp.RtpEndpoint;
+import org.devtcg.rojocam.rtp.RtpSdp;
+import org.devtcg.rojocam.rtp.RtpSender;
 import org.devtcg.rojocam.rtsp.MediaHandler;
 import org.devtcg.rojocam.rtsp.MediaSession;
+import org.devtcg.rojocam.rtsp.PriorityClass;
 import org.devtcg.rojocam.rtsp.RtpParticipant;
 import org.devtcg.rojocam.rtsp.RtpTransport;
 import org.devtcg.rojocam.util.ReferenceCounter;
@@ -11,86 +14,162 @@ import org.devtcg.rojocam.util.ReferenceCounter;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class CamcorderMediaHandler implements MediaHandler {
     private static final String TAG = CamcorderMediaHandler.class.getSimpleName();
 
+    /**
+     * How long SETUP and PLAY will wait for the camera to come up before
+     * failing the request.
+     */
+    private static final long CAMERA_START_TIMEOUT = 10000;
+
     private final ReferenceCounter<StreamingHeadlessCamcorder> mCamcorderRef;
-    private StreamingHeadlessCamcorder mCamcorder;
-    private FFStreamConfig mStreamConfig;
+    private final FFStreamConfig mStreamConfig;
+    private final RtpEndpoint mRtpEndpoint;
+
+    /* RTCP packet type of a goodbye (RFC 3550). */
+    private static final int RTCP_BYE = 203;
 
-    public CamcorderMediaHandler(ReferenceCounter<StreamingHeadlessCamcorder> camcorderRef) {
+    /**
+     * @param rtpEndpoint Sockets shared by every session's RTP and RTCP.
+     */
+    public CamcorderMediaHandler(ReferenceCounter<StreamingHeadlessCamcorder> camcorderRef,
+            FFStreamConfig streamConfig, RtpEndpoint rtpEndpoint) {
         mCamcorderRef = camcorderRef;
-        mStreamConfig = FFStreamConfig.createDefault();
+        mStreamConfig = streamConfig;
+        mRtpEndpoint = rtpEndpoint;
     }
 
     public String onDescribe(String feedUri) {
-        String desc = mStreamConfig.getSDPDescription();
+        String desc = RtpSdp.describe(mStreamConfig);
         Log.d(TAG, "SDP:");
         Log.d(TAG, desc);
         return desc;
     }
 
-    public MediaSession createSession(InetAddress client, RtpTransport transport) {
-        return new CamcorderSession(client, transport);
+    public MediaSession createSession(InetAddress client, RtpTransport transport,
+            PriorityClass priority, MediaSession.Terminator terminator) {
+        return new CamcorderSession(client, transport, priority, terminator);
     }
 
-    private class CamcorderSession implements MediaSession {
-        private RtpOutputContext mRtpOutputContext;
+    private static void awaitCamera(Future<Void> future, String what) throws IOException {
+        try {
+            future.get(CAMERA_START_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Camera failed waiting for " + what);
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for " + what);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class CamcorderSession implements MediaSession, RtpEndpoint.RtcpListener {
+        /* This session's reference, held from SETUP until TEARDOWN. */
+        private volatile StreamingHeadlessCamcorder mCamcorder;
+        private RtpEndpoint.Peer mRtpPeer;
+        private volatile RtpSender mRtpSender;
         private final RtpParticipant mParticipant;
         private final RtpTransport mTransport;
-
-        public CamcorderSession(InetAddress client, RtpTransport transport) {
-            Log.i(TAG, "New session created for " + client.getHostAddress() +
-                    ": rtpPort=" + transport.clientRtpPort + ", rtcpPort=" + transport.clientRtcpPort);
+        private final PriorityClass mPriority;
+        private final MediaSession.Terminator mTerminator;
+
+        public CamcorderSession(InetAddress client, RtpTransport transport,
+                PriorityClass priority, MediaSession.Terminator terminator) {
+            Log.i(TAG, "New " + priority.getName() + " session created for " +
+                    client.getHostAddress() + ": rtpPort=" + transport.clientRtpPort +
+                    ", rtcpPort=" + transport.clientRtcpPort);
             mParticipant = new RtpParticipant(client.getHostAddress(),
                     transport.clientRtpPort, transport.clientRtcpPort);
             mTransport = new RtpTransport(transport);
+            mPriority = priority;
+            mTerminator = terminator;
         }
 
         public RtpTransport onSetup(String feedUri) throws IOException {
-            /*
-             * XXX: We're not specifying which stream index we need because
-             * currently we only support the video stream, but eventually this
-             * should be fixed.
-             */
-            mRtpOutputContext = new RtpOutputContext(mStreamConfig, mParticipant);
-
             /*
              * XXX: We need to tie release() in with session expiration rules!
              * As it stands, we can leak and get into a state of perpetual
              * streaming if the peer just disappears and doesn't let us know.
-             * What we need is to listen for RTCP traffic as a sort of keep
-             * alive and teardown the session if we don't hear back at an
-             * expected interval but I don't really see how we can hook into
-             * that data from FFmpeg at this time.
+             * RTCP from the peer now reaches onRtcpPacket (and
+             * getLastRtcpTime), but nothing expires the session on it yet.
+             */
+            StreamingHeadlessCamcorder camcorder = mCamcorderRef.acquire();
+            mRtpPeer = mRtpEndpoint.register(mParticipant, this);
+
+            /*
+             * Concurrent SETUPs all wait on the same camera bring-up, started
+             * by whichever of them acquired the camcorder first.
+             */
+            try {
+                awaitCamera(camcorder.getReadyFuture(), "camera preview");
+            } catch (IOException e) {
+                mRtpPeer.close();
+                mRtpPeer = null;
+                mCamcorderRef.release();
+                throw e;
+            }
+            mCamcorder = camcorder;
+
+            /*
+             * XXX: We're not specifying which stream index we need because
+             * currently we only support the video stream, but eventually
+             * this should be fixed.
              */
-            mCamcorder = mCamcorderRef.acquire();
+            RtpSender sender = new RtpSender(mRtpPeer);
+            sender.setWeight(mPriority.getWeight());
+            sender.setBacklogLimits(mPriority.getMaxBacklogBytes(), mPriority.getMaxBacklogMsec());
+            sender.setTrafficClass(mPriority.getName());
+            mRtpSender = sender;
 
-            mTransport.serverRtpPort = mRtpOutputContext.getLocalRtpPort();
-            mTransport.serverRtcpPort = mRtpOutputContext.getLocalRtcpPort();
+            mTransport.serverRtpPort = mRtpEndpoint.getRtpPort();
+            mTransport.serverRtcpPort = mRtpEndpoint.getRtcpPort();
 
             return mTransport;
         }
 
-        public void onPlay(String feedUri) {
-            mCamcorder.addReceiver(mRtpOutputContext);
+        public void onPlay(String feedUri) throws IOException {
+            awaitCamera(mCamcorder.getFirstFrameFuture(), "first frame");
+            mCamcorder.addRtpSender(mRtpSender);
         }
 
         public void onPause(String feedUri) {
-            mCamcorder.removeReceiver(mRtpOutputContext);
+            mCamcorder.removeRtpSender(mRtpSender);
         }
 
         public void onTeardown(String feedUri) {
-            mCamcorder.removeReceiver(mRtpOutputContext);
-            try {
-                mRtpOutputContext.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Error close RTP output context", e);
-            }
+            mCamcorder.removeRtpSender(mRtpSender);
+            mRtpSender.close();
+            mRtpPeer.close();
 
             mCamcorderRef.release();
         }
+
+        public void onRtcpPacket(RtpEndpoint.Peer peer, ByteBuffer packet) {
+            RtpSender sender = mRtpSender;
+            if (sender != null) {
+                sender.onRtcpPacket(packet);
+            }
+
+            /* The peer is leaving; don't wait on a TEARDOWN that may never come. */
+            int offset = packet.position();
+            while (offset + 4 <= packet.limit()) {
+                if ((packet.get(offset + 1) & 0xff) == RTCP_BYE) {
+                    mTerminator.terminate("peer " + mParticipant + " said goodbye");
+                    break;
+                }
+                offset += ((packet.getShort(offset + 2) & 0xffff) + 1) * 4;
+            }
+        }
     }
 }
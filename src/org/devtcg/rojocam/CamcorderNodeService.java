@@ -1,11 +1,19 @@
 package org.devtcg.rojocam;
 
+import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
+import org.devtcg.rojocam.ffmpeg.NativeHandle;
+import org.devtcg.rojocam.http.SimpleHttpServer;
+import org.devtcg.rojocam.rtp.RtpEndpoint;
+import org.devtcg.rojocam.rtsp.PriorityClass;
 import org.devtcg.rojocam.rtsp.SimpleRtspServer;
+import org.devtcg.rojocam.util.Metrics;
 import org.devtcg.rojocam.util.ReferenceCounter;
 
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -32,6 +40,20 @@ public class CamcorderNodeService extends Service {
     private static final String TAG = CamcorderNodeService.class.getSimpleName();
 
     private static final int RTSP_PORT = 5454;
+    private static final int HTTP_PORT = 5455;
+
+    /**
+     * Keep the camera running this long after the last viewer leaves, so that
+     * a reconnecting viewer does not wait for it to start up again.
+     */
+    private static final long CAMERA_STANDBY_LINGER = 10000;
+
+    /**
+     * Least a viewer is assumed to cost the uplink, in bytes per second: the
+     * encoder's 180 kbit/s target (see jni/ffmpeg-jni.c) plus a quarter for
+     * keyframe bursts, RTCP and packet headers.
+     */
+    private static final int VIEWER_COST = 180000 / 8 * 5 / 4;
 
     public static final String ACTION_ACTIVATE_CAMERA_NODE =
             "org.devtcg.rojocam.intent.action.ACTIVATE_CAMERA_NODE";
@@ -52,9 +74,18 @@ public class CamcorderNodeService extends Service {
     private static final String EXTRA_RECEIVER = "receiver";
 
     private SimpleRtspServer mRtspServer;
+    private RtpEndpoint mRtpEndpoint;
+    private CapacityModel mCapacityModel;
+    private SimpleHttpServer mHttpServer;
+    private CamcorderHttpHandler mHttpHandler;
 
     private UPnPPortMapper mPortMapper;
 
+    /**
+     * Describes the one encoded stream shared by every RTSP and HTTP viewer.
+     */
+    private FFStreamConfig mStreamConfig;
+
     /**
      * Wake lock active only when the camera is active (that is, a stream is
      * being sent).
@@ -89,6 +120,15 @@ public class CamcorderNodeService extends Service {
         return sState != State.DEACTIVE;
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        /* Leaked native objects are reported with their allocation site. */
+        NativeHandle.setLeakTrackingEnabled(
+                (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (mUserAlertHelper == null) {
@@ -164,13 +204,31 @@ public class CamcorderNodeService extends Service {
             throw new IllegalStateException("Deactive nodes can't have an active RTSP server...");
         }
 
+        if (mStreamConfig == null) {
+            mStreamConfig = FFStreamConfig.createDefault();
+        }
+
         try {
             /* XXX: We should only bind on WiFi! */
+            mRtpEndpoint = RtpEndpoint.open(RtpEndpoint.DEFAULT_RTP_PORT);
+
             mRtspServer = new SimpleRtspServer();
+            mCapacityModel = new CapacityModel(mRtpEndpoint.getPacer(), VIEWER_COST);
+            mRtspServer.setAdmissionControl(mCapacityModel);
+            applySettings();
+            SettingsActivity.getPrefs(this).registerOnSharedPreferenceChangeListener(
+                    mSettingsListener);
             mRtspServer.bind(new InetSocketAddress((InetAddress)null, RTSP_PORT));
-            mRtspServer.registerMedia("test1.rtp", new CamcorderMediaHandler(mCamcorderRef));
+            mRtspServer.registerMedia("test1.rtp", new CamcorderMediaHandler(mCamcorderRef,
+                    mStreamConfig, mRtpEndpoint));
             mRtspServer.start();
 
+            mHttpServer = new SimpleHttpServer();
+            mHttpServer.bind(new InetSocketAddress((InetAddress)null, HTTP_PORT));
+            mHttpHandler = new CamcorderHttpHandler(mCamcorderRef, mStreamConfig);
+            mHttpHandler.registerWith(mHttpServer);
+            mHttpServer.start();
+
             mPortMapper = UPnPPortMapper.mapPortIfNecessary(this, "rojocam mapping", RTSP_PORT);
 
             changeState(State.ACTIVE);
@@ -207,15 +265,46 @@ public class CamcorderNodeService extends Service {
              * camera object to be cleaned up, ultimately releasing our wake
              * lock. Debug is used to confirm this.
              */
+            SettingsActivity.getPrefs(this).unregisterOnSharedPreferenceChangeListener(
+                    mSettingsListener);
+            mCapacityModel = null;
+
             if (mRtspServer != null) {
                 mRtspServer.shutdown();
                 mRtspServer = null;
             }
 
+            if (mRtpEndpoint != null) {
+                mRtpEndpoint.close();
+                mRtpEndpoint = null;
+            }
+
+            if (mHttpServer != null) {
+                mHttpServer.shutdown();
+                mHttpServer = null;
+            }
+
+            /* HLS holds the camera between requests; let it go too. */
+            if (mHttpHandler != null) {
+                mHttpHandler.shutdown();
+                mHttpHandler = null;
+            }
+
             if (mPortMapper != null) {
                 mPortMapper.unmapPorts();
             }
 
+            mCamcorderRef.expireStandby();
+
+            /*
+             * Sessions and cameras still winding down hold their own
+             * references, so the native config is freed once they finish.
+             */
+            if (mStreamConfig != null) {
+                mStreamConfig.close();
+                mStreamConfig = null;
+            }
+
             changeState(State.DEACTIVE);
         }
 
@@ -226,6 +315,32 @@ public class CamcorderNodeService extends Service {
         }
     }
 
+    /*
+     * Applies the settings the RTSP server reads per request, so that
+     * changes take effect without restarting the node.
+     */
+    private void applySettings() {
+        if (mRtspServer == null) {
+            return;
+        }
+
+        /* The password, if any, is what lets a recorder claim its priority. */
+        mRtspServer.setRecorderKey(SettingsActivity.getPassword(this));
+        mCapacityModel.setLimits(PriorityClass.BEST_EFFORT,
+                SettingsActivity.getViewerLimits(this));
+    }
+
+    /*
+     * Held in a field: preferences keep only a weak reference to their
+     * listeners.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            applySettings();
+        }
+    };
+
     private void takeCaptureLock() {
         if (mCaptureLock == null) {
             PowerManager pm = (PowerManager)getSystemService(POWER_SERVICE);
@@ -255,12 +370,18 @@ public class CamcorderNodeService extends Service {
         return null;
     }
 
+    private final Metrics.Counter mCameraColdStarts = Metrics.counter("camera.cold_starts");
+    private final Metrics.Counter mCameraStandbyHits = Metrics.counter("camera.standby_hits");
+
     private final ReferenceCounter<StreamingHeadlessCamcorder> mCamcorderRef =
-            new ReferenceCounter<StreamingHeadlessCamcorder>() {
+            new ReferenceCounter<StreamingHeadlessCamcorder>(CAMERA_STANDBY_LINGER) {
         @Override
         protected StreamingHeadlessCamcorder onCreate() {
             Log.d(TAG, "Creating camera instance from thread " + Thread.currentThread().getId());
 
+            mCameraColdStarts.inc();
+            logStandbyHitRate();
+
             mHandler.post(new Runnable() {
                 public void run() {
                     if (sState != State.STREAMING) {
@@ -271,7 +392,7 @@ public class CamcorderNodeService extends Service {
 
             try {
                 StreamingHeadlessCamcorder camcorder =
-                    new StreamingHeadlessCamcorder(CamcorderNodeService.this);
+                    new StreamingHeadlessCamcorder(CamcorderNodeService.this, mStreamConfig);
                 camcorder.start();
                 return camcorder;
             } catch (IOException e) {
@@ -279,6 +400,31 @@ public class CamcorderNodeService extends Service {
             }
         }
 
+        @Override
+        protected void onReuse(StreamingHeadlessCamcorder instance) {
+            Log.d(TAG, "Reusing camera instance on standby");
+
+            mCameraStandbyHits.inc();
+            logStandbyHitRate();
+
+            /*
+             * The subject was warned when the camera first started, but
+             * nobody was watching while it sat on standby.
+             */
+            instance.rearmSubjectWarning();
+            mHandler.post(new Runnable() {
+                public void run() {
+                    mUserAlertHelper.alertSubject();
+                }
+            });
+        }
+
+        private void logStandbyHitRate() {
+            long hits = mCameraStandbyHits.get();
+            long total = hits + mCameraColdStarts.get();
+            Log.i(TAG, "Camera standby hit rate: " + hits + "/" + total);
+        }
+
         @Override
         protected void onDestroy(StreamingHeadlessCamcorder instance) {
             Log.d(TAG, "Destroying camera instance from thread " + Thread.currentThread().getId());
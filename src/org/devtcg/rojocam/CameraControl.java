@@ -0,0 +1,144 @@
+package org.devtcg.rojocam;
+
+import org.devtcg.rojocam.util.Metrics;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Applies camera parameter changes on a dedicated thread, so that the slow
+ * (string serialized, cross-process) Camera.getParameters and
+ * Camera.setParameters round trips never hold up the preview callback.
+ * <p>
+ * The parameters are fetched once and cached; changes are made to the cache
+ * and pushed to the camera in a single setParameters call. Requests made
+ * while an update is already pending are folded into it, so rapid toggles
+ * (the subject warning's blinking LED, for instance) cost at most one round
+ * trip per pass of the control thread, and none at all if they cancel out.
+ * <p>
+ * All methods may be called from any thread.
+ */
+class CameraControl {
+    private static final String TAG = CameraControl.class.getSimpleName();
+
+    private static final Metrics.Timer sSetParametersTime =
+            Metrics.timer("camera.set_parameters_time");
+    private static final Metrics.Counter sCoalesced = Metrics.counter("camera.params_coalesced");
+
+    /** Invoked on the control thread while the preview is stopped. */
+    public interface PreviewRestartListener {
+        public void onPreviewStopped(Camera camera, Camera.Parameters params);
+    }
+
+    private final Camera mCamera;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /* Last parameters pushed to the camera. Confined to the control thread. */
+    private final Camera.Parameters mParams;
+
+    /* Guarded by this. */
+    private String mPendingFlashMode;
+    private boolean mUpdatePosted;
+
+    /**
+     * @param params The camera's current parameters, which become the cache.
+     */
+    public CameraControl(Camera camera, Camera.Parameters params) {
+        mCamera = camera;
+        mParams = params;
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Turns the torch on or off, eventually.
+     */
+    public void setTorch(boolean on) {
+        setFlashMode(on ? Camera.Parameters.FLASH_MODE_TORCH :
+                Camera.Parameters.FLASH_MODE_OFF);
+    }
+
+    public void setFlashMode(String flashMode) {
+        synchronized (this) {
+            if (mPendingFlashMode != null) {
+                sCoalesced.inc();
+            }
+            mPendingFlashMode = flashMode;
+            if (mUpdatePosted) {
+                return;
+            }
+            mUpdatePosted = true;
+        }
+        mHandler.post(mApplyUpdates);
+    }
+
+    private final Runnable mApplyUpdates = new Runnable() {
+        public void run() {
+            String flashMode;
+            synchronized (CameraControl.this) {
+                flashMode = mPendingFlashMode;
+                mPendingFlashMode = null;
+                mUpdatePosted = false;
+            }
+
+            if (flashMode == null || flashMode.equals(mParams.getFlashMode())) {
+                return;
+            }
+            mParams.setFlashMode(flashMode);
+            applyParameters();
+        }
+    };
+
+    /**
+     * Stops the preview, switches it to the given size and starts it again.
+     * The listener is called in between to re-register anything sized for
+     * the old preview, such as callback buffers.
+     */
+    public void restartPreview(final int width, final int height,
+            final PreviewRestartListener listener) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mCamera.stopPreview();
+                mParams.setPreviewSize(width, height);
+                applyParameters();
+                listener.onPreviewStopped(mCamera, mParams);
+                mCamera.startPreview();
+            }
+        });
+    }
+
+    private void applyParameters() {
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            mCamera.setParameters(mParams);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Camera rejected parameters", e);
+        }
+        sSetParametersTime.update(SystemClock.elapsedRealtime() - startTime);
+    }
+
+    /**
+     * Stops the control thread, waiting for any update in progress but
+     * discarding those not yet started. Must be called before the camera
+     * is released.
+     */
+    public void quit() {
+        mThread.quit();
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
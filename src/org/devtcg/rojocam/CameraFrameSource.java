@@ -0,0 +1,135 @@
+package org.devtcg.rojocam;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.Size;
+
+/**
+ * Preview frames of a running camera, captured into a fixed set of callback
+ * buffers. Frames arrive on the thread which opened the camera.
+ * <p>
+ * The preview size can be changed on the fly with {@link #setPreviewSize},
+ * which restarts the preview through the {@link CameraControl}. Buffers of the
+ * old size are dropped as they come back.
+ */
+class CameraFrameSource implements FrameSource {
+    private final Camera mCamera;
+    private final CameraControl mControl;
+    private final int mFormat;
+    private final int mFrameRate;
+    private final int mNumBuffers;
+
+    /* Changed by the camera control thread when the preview is restarted. */
+    private volatile Size mPreviewSize;
+
+    /* Only buffers of the current size go back to the camera. */
+    private volatile int mBufferSize;
+
+    private volatile Listener mListener;
+
+    /**
+     * @param numBuffers Callback buffers to keep in circulation; frames are
+     *            dropped while they are all held by the listener.
+     */
+    public CameraFrameSource(Camera camera, CameraControl control, int format, Size previewSize,
+            int frameRate, int numBuffers) {
+        mCamera = camera;
+        mControl = control;
+        mFormat = format;
+        mPreviewSize = previewSize;
+        mFrameRate = frameRate;
+        mNumBuffers = numBuffers;
+    }
+
+    public static int getFrameSize(int width, int height, int format) {
+        float bytesPerPixel = ImageFormat.getBitsPerPixel(format) / 8f;
+        return (int)(width * height * bytesPerPixel);
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    public void start(Listener listener) {
+        mListener = listener;
+        mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+        addCallbackBuffers(mCamera);
+    }
+
+    /**
+     * Must be called on the thread which opened the camera, which guarantees
+     * that no callback is in progress.
+     */
+    public void stop() {
+        mListener = null;
+        mCamera.setPreviewCallbackWithBuffer(null);
+    }
+
+    public void recycleBuffer(byte[] buffer) {
+        /* Buffers from before a size change are left to the GC. */
+        if (buffer.length == mBufferSize) {
+            mCamera.addCallbackBuffer(buffer);
+        }
+    }
+
+    /**
+     * Restarts the preview at a new size, asynchronously.
+     */
+    public void setPreviewSize(Size size) {
+        mControl.restartPreview(size.width, size.height,
+                new CameraControl.PreviewRestartListener() {
+                    public void onPreviewStopped(Camera camera, Camera.Parameters params) {
+                        mPreviewSize = params.getPreviewSize();
+
+                        /* Resetting the callback drops buffers queued for the old size. */
+                        camera.setPreviewCallbackWithBuffer(mPreviewCallback);
+                        addCallbackBuffers(camera);
+                    }
+                });
+    }
+
+    private void addCallbackBuffers(Camera camera) {
+        Size size = mPreviewSize;
+        int bufferSize = getFrameSize(size.width, size.height, mFormat);
+        mBufferSize = bufferSize;
+        for (int i = 0; i < mNumBuffers; i++) {
+            camera.addCallbackBuffer(new byte[bufferSize]);
+        }
+    }
+
+    private final PreviewCallback mPreviewCallback = new PreviewCallback() {
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            /*
+             * The camera API gives us no capture timestamp, so take one before
+             * doing anything else and let the media clock smooth out the
+             * callback jitter.
+             */
+            long captureNanos = System.nanoTime();
+
+            Listener listener = mListener;
+            if (listener == null) {
+                return;
+            }
+
+            /*
+             * Captured before a size change (or too small for the new size).
+             * Left for the garbage collector; fresh buffers were queued.
+             */
+            Size size = mPreviewSize;
+            if (data == null || data.length != getFrameSize(size.width, size.height, mFormat)) {
+                return;
+            }
+
+            listener.onFrame(data, size.width, size.height, captureNanos);
+        }
+    };
+}
@@ -0,0 +1,101 @@
+package org.devtcg.rojocam;
+
+import org.devtcg.rojocam.rtp.RtpPacer;
+import org.devtcg.rojocam.rtsp.AdmissionControl;
+import org.devtcg.rojocam.rtsp.PriorityClass;
+import org.devtcg.rojocam.util.Metrics;
+
+import android.util.Log;
+
+import java.util.EnumMap;
+
+/**
+ * Admits new sessions only while the node has headroom for them, judged
+ * from what is measured live: how busy the encoding pipeline is (see
+ * {@link FrameStreamer#GAUGE_UTILIZATION}) and how much of the uplink budget
+ * the current peers use (see {@link RtpPacer#getUsage()}).
+ * <p>
+ * Every viewer is assumed to cost what the current ones cost on average,
+ * which reflects the capture tier the stream is at, but no less than the
+ * estimate given at construction: usage is averaged over the last second,
+ * so it lags behind peers that just started. Sessions admitted but not yet
+ * playing are reserved at that cost too, so that a burst of SETUPs can't
+ * all be admitted against the same measurement. The encoder is shared, so a
+ * viewer costs it little directly, but a pipeline that is already saturated
+ * has nothing left for the sends a viewer adds.
+ * <p>
+ * Each {@link PriorityClass} has its own limits, so that best-effort
+ * viewers are refused while there is still room for a recorder.
+ */
+class CapacityModel implements AdmissionControl {
+    private static final String TAG = CapacityModel.class.getSimpleName();
+
+    /** Limits for one class, as percentages of what the node has. */
+    public static class Limits {
+        public final int maxUplinkPercent;
+        public final int maxEncoderPercent;
+
+        public Limits(int maxUplinkPercent, int maxEncoderPercent) {
+            this.maxUplinkPercent = maxUplinkPercent;
+            this.maxEncoderPercent = maxEncoderPercent;
+        }
+    }
+
+    /** Limits for best-effort viewers unless configured otherwise. */
+    public static final Limits DEFAULT_VIEWER_LIMITS = new Limits(80, 90);
+
+    private final RtpPacer mPacer;
+    private final int mViewerCost;
+    private final EnumMap<PriorityClass, Limits> mLimits =
+            new EnumMap<PriorityClass, Limits>(PriorityClass.class);
+
+    /* Sessions admitted that aren't yet measured by the pacer. */
+    private int mReserved;
+
+    /**
+     * @param viewerCost Least a viewer is assumed to cost, in bytes per
+     *            second.
+     */
+    public CapacityModel(RtpPacer pacer, int viewerCost) {
+        mPacer = pacer;
+        mViewerCost = viewerCost;
+        mLimits.put(PriorityClass.RECORDER, new Limits(100, 100));
+        mLimits.put(PriorityClass.BEST_EFFORT, DEFAULT_VIEWER_LIMITS);
+    }
+
+    public synchronized void setLimits(PriorityClass priority, Limits limits) {
+        mLimits.put(priority, limits);
+    }
+
+    public synchronized Limits getLimits(PriorityClass priority) {
+        return mLimits.get(priority);
+    }
+
+    public synchronized boolean admit(PriorityClass priority) {
+        Limits limits = mLimits.get(priority);
+
+        long encoder = Metrics.getGaugeValue(FrameStreamer.GAUGE_UTILIZATION, 0);
+        if (encoder > limits.maxEncoderPercent) {
+            Log.i(TAG, "Refusing " + priority.getName() + ": pipeline at " + encoder + "%");
+            return false;
+        }
+
+        int peers = mPacer.getPeerCount();
+        long usage = mPacer.getUsage();
+        long perViewer = peers > 0 ? Math.max(usage / peers, mViewerCost) : mViewerCost;
+        long projected = (peers + mReserved + 1) * perViewer;
+        long limit = (long)mPacer.getBudget() * limits.maxUplinkPercent / 100;
+        if (projected > limit) {
+            Log.i(TAG, "Refusing " + priority.getName() + ": " + peers + " peers and " +
+                    mReserved + " pending at " + perViewer + " bytes/s each, " +
+                    "another would need " + projected + " of " + limit);
+            return false;
+        }
+        mReserved++;
+        return true;
+    }
+
+    public synchronized void release(PriorityClass priority) {
+        mReserved--;
+    }
+}
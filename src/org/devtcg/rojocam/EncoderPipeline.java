@@ -0,0 +1,454 @@
+package org.devtcg.rojocam;
+
+import org.devtcg.rojocam.ffmpeg.EncodedFrame;
+import org.devtcg.rojocam.ffmpeg.EncodedStill;
+import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
+import org.devtcg.rojocam.ffmpeg.Picture;
+import org.devtcg.rojocam.ffmpeg.VideoEncoder;
+import org.devtcg.rojocam.util.Metrics;
+import org.devtcg.rojocam.util.SpscQueue;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Runs raw camera frames through conversion, encoding and delivery as three
+ * stages, each on its own thread and linked by bounded single-producer,
+ * single-consumer queues:
+ *
+ * <pre>
+ * capture --[convert queue]--> convert --[encode queue]--> encode --[send queue]--> send
+ * </pre>
+ *
+ * Frame N+1 can thus be converted while frame N encodes and frame N-1 goes out
+ * to the receivers, so throughput is bounded by the slowest stage rather than
+ * the sum of all of them.
+ * <p>
+ * Every frame in flight is one of a fixed set of {@link Slot}s, allocated up
+ * front with enough room for each queue to be full and each stage busy. Slots
+ * return to the capture side once sent. Only the capture side drops frames:
+ * when the convert queue is full (or no slot is free) the frame is refused and
+ * the caller keeps its buffer. Later stages block on their output queue
+ * instead, so a slow stage backs the pipeline up to the capture side.
+ * <p>
+ * Pre-encoded {@link EncodedStill} frames can be fed through the same queues,
+ * skipping conversion and encoding, so that they stay in order with the live
+ * frames around them.
+ */
+class EncoderPipeline {
+    private static final String TAG = EncoderPipeline.class.getSimpleName();
+
+    private static final Metrics.Timer sConvertTime = Metrics.timer("pipeline.convert_time");
+    private static final Metrics.Timer sEncodeTime = Metrics.timer("encoder.encode_time");
+    private static final Metrics.Timer sSendTime = Metrics.timer("pipeline.send_time");
+    private static final Metrics.Timer sLatency = Metrics.timer("pipeline.latency");
+    private static final Metrics.Counter sEncodedFrames = Metrics.counter("encoder.frames");
+    private static final Metrics.Counter sCaptureDrops = Metrics.counter("encoder.dropped_busy");
+    private static final Metrics.Counter sStillFrames = Metrics.counter("encoder.still_frames");
+
+    /* Replayed stills get a fresh keyframe at least this often. */
+    private static final long STILL_KEYFRAME_INTERVAL = 1000000;
+
+    /**
+     * Queue depths. Deeper queues absorb longer hiccups in a stage at the
+     * cost of latency and one picture and encode buffer per extra slot.
+     */
+    public static class Config {
+        public static final int DEFAULT_QUEUE_DEPTH = 2;
+
+        public int convertQueueDepth = DEFAULT_QUEUE_DEPTH;
+        public int encodeQueueDepth = DEFAULT_QUEUE_DEPTH;
+        public int sendQueueDepth = DEFAULT_QUEUE_DEPTH;
+
+        public Config() {}
+
+        public Config(Config other) {
+            convertQueueDepth = other.convertQueueDepth;
+            encodeQueueDepth = other.encodeQueueDepth;
+            sendQueueDepth = other.sendQueueDepth;
+        }
+    }
+
+    /** Returns raw frame buffers to their owner once converted. */
+    public interface BufferRecycler {
+        public void recycleBuffer(byte[] buffer);
+    }
+
+    /** Receives the encoded output, on the send stage's thread. */
+    public interface Sink {
+        /** See {@link EncodedFrame} for the lifetime of the frame's data. */
+        public void onEncodedFrame(EncodedFrame frame);
+    }
+
+    private static class Slot {
+        public final Picture picture;
+        public final EncodedFrame encoded;
+
+        public byte[] data;
+        public byte[] buffer;
+        public int format;
+        public int width;
+        public int height;
+        public long usecTime;
+        public long captureNanos;
+
+        /* Replayed instead of converting and encoding data, if non-null. */
+        public EncodedStill still;
+
+        public Slot(Picture picture, EncodedFrame encoded) {
+            this.picture = picture;
+            this.encoded = encoded;
+        }
+    }
+
+    private final VideoEncoder mEncoder;
+    private final BufferRecycler mRecycler;
+    private final Sink mSink;
+
+    private final ArrayList<Slot> mSlots = new ArrayList<Slot>();
+
+    private final SpscQueue<Slot> mConvertQueue;
+    private final SpscQueue<Slot> mEncodeQueue;
+    private final SpscQueue<Slot> mSendQueue;
+
+    /* Slots handed back by the send stage; consumed by the capture side. */
+    private final SpscQueue<Slot> mFreeSlots;
+
+    /* Capture side only: a slot we took but could not queue. */
+    private Slot mSpare;
+
+    private final Stage[] mStages;
+
+    /* Set once quit() starts, so queued work is skipped rather than done. */
+    private volatile boolean mQuitting;
+
+    private volatile boolean mStillKeyFrameRequested;
+    private volatile boolean mKeyFrameRequested;
+
+    public EncoderPipeline(FFStreamConfig streamConfig, Config config,
+            BufferRecycler recycler, Sink sink) {
+        mRecycler = recycler;
+        mSink = sink;
+
+        mConvertQueue = newQueue("convert", config.convertQueueDepth);
+        mEncodeQueue = newQueue("encode", config.encodeQueueDepth);
+        mSendQueue = newQueue("send", config.sendQueueDepth);
+
+        /* Every queue full plus one slot in hand per stage. */
+        int slotCount = config.convertQueueDepth + config.encodeQueueDepth +
+                config.sendQueueDepth + 3;
+        mFreeSlots = new SpscQueue<Slot>(slotCount);
+
+        mEncoder = new VideoEncoder(streamConfig);
+        try {
+            for (int i = 0; i < slotCount; i++) {
+                Slot slot = new Slot(mEncoder.newPicture(), VideoEncoder.newEncodedFrame());
+                mSlots.add(slot);
+                mFreeSlots.offer(slot);
+            }
+        } catch (RuntimeException e) {
+            releaseSlots();
+            throw e;
+        }
+
+        mStages = new Stage[] {
+            new ConvertStage(), new EncodeStage(), new SendStage(),
+        };
+    }
+
+    private static SpscQueue<Slot> newQueue(String name, int depth) {
+        final SpscQueue<Slot> queue = new SpscQueue<Slot>(depth);
+        Metrics.gauge("pipeline." + name + "_queue.depth", new Metrics.Gauge() {
+            public long getValue() {
+                return queue.size();
+            }
+        });
+        Metrics.gauge("pipeline." + name + "_queue.high_water", new Metrics.Gauge() {
+            public long getValue() {
+                return queue.getHighWaterMark();
+            }
+        });
+        return queue;
+    }
+
+    public void start() {
+        for (Stage stage: mStages) {
+            stage.start();
+        }
+    }
+
+    /**
+     * Hands a raw frame to the convert stage. Must always be called from the
+     * same thread.
+     *
+     * @param buffer Handed to the {@link BufferRecycler} once converted, if
+     *            non-null.
+     * @return False if the pipeline is backed up (or quitting), in which case
+     *         the frame was dropped and the caller keeps its buffer.
+     */
+    public boolean submit(byte[] data, byte[] buffer, int format, int width, int height,
+            long usecTime) {
+        Slot slot = takeSlot();
+        if (slot == null) {
+            return false;
+        }
+
+        slot.data = data;
+        slot.buffer = buffer;
+        slot.format = format;
+        slot.width = width;
+        slot.height = height;
+        slot.usecTime = usecTime;
+        return queueSlot(slot);
+    }
+
+    /**
+     * Sends a frame of a pre-encoded still in place of a live frame. Whether
+     * it is the still's keyframe or a repeat frame is decided by the
+     * pipeline. Same threading and return value as {@link #submit}.
+     */
+    public boolean submitStill(EncodedStill still, long usecTime) {
+        Slot slot = takeSlot();
+        if (slot == null) {
+            return false;
+        }
+
+        slot.still = still;
+        slot.usecTime = usecTime;
+        return queueSlot(slot);
+    }
+
+    /**
+     * Makes the next still frame a keyframe, so that a newly added receiver
+     * can start decoding right away. May be called from any thread.
+     */
+    public void requestStillKeyFrame() {
+        mStillKeyFrameRequested = true;
+    }
+
+    /**
+     * Makes the next frame a keyframe, still or not, for receivers that have
+     * lost their references. May be called from any thread.
+     */
+    public void requestKeyFrame() {
+        mKeyFrameRequested = true;
+    }
+
+    private Slot takeSlot() {
+        Slot slot = mSpare;
+        mSpare = null;
+        if (slot == null) {
+            slot = mFreeSlots.poll();
+        }
+        if (slot == null) {
+            sCaptureDrops.inc();
+        }
+        return slot;
+    }
+
+    private boolean queueSlot(Slot slot) {
+        slot.captureNanos = System.nanoTime();
+        if (!mConvertQueue.offer(slot)) {
+            slot.data = null;
+            slot.buffer = null;
+            slot.still = null;
+            mSpare = slot;
+            sCaptureDrops.inc();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * True if the convert stage has nothing queued, i.e. a frame submitted
+     * now would be worked on immediately. Capture side only.
+     */
+    public boolean isIdle() {
+        return mConvertQueue.isEmpty();
+    }
+
+    /**
+     * Smoothed per-frame processing time of the slowest stage, which is what
+     * limits throughput. Frames must arrive no faster than this for the
+     * pipeline to keep up.
+     */
+    public long getSlowestStageUsec() {
+        long slowest = 0;
+        for (Stage stage: mStages) {
+            slowest = Math.max(slowest, stage.getServiceUsec());
+        }
+        return slowest;
+    }
+
+    /**
+     * Stops every stage and waits for them to exit. Frames still queued are
+     * discarded, though their buffers are recycled as usual.
+     */
+    public void quit() {
+        mQuitting = true;
+        mConvertQueue.close();
+
+        boolean interrupted = false;
+        for (Stage stage: mStages) {
+            while (stage.isAlive()) {
+                try {
+                    stage.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        releaseSlots();
+        mEncoder.close();
+    }
+
+    private void releaseSlots() {
+        for (Slot slot: mSlots) {
+            slot.picture.close();
+        }
+        mSlots.clear();
+    }
+
+    /**
+     * Takes from one queue and puts to the next until the input is closed and
+     * drained, then closes its output so the stage after it winds down too.
+     * Closing the input on the way out keeps a failed stage from leaving the
+     * one before it blocked forever.
+     */
+    private abstract class Stage extends Thread {
+        private final SpscQueue<Slot> mIn;
+        private final SpscQueue<Slot> mOut;
+
+        /* Exponentially weighted moving average, written by this stage only. */
+        private volatile long mServiceUsec;
+
+        public Stage(String name, SpscQueue<Slot> in, SpscQueue<Slot> out) {
+            super(TAG + "-" + name);
+            mIn = in;
+            mOut = out;
+        }
+
+        public void run() {
+            try {
+                Slot slot;
+                while ((slot = mIn.take()) != null) {
+                    long startTime = System.nanoTime();
+                    process(slot);
+                    long elapsed = (System.nanoTime() - startTime) / 1000;
+                    mServiceUsec += (elapsed - mServiceUsec) / 8;
+                    if (!mOut.put(slot)) {
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, getName() + " failed", e);
+                throw e;
+            } finally {
+                mIn.close();
+                mOut.close();
+            }
+        }
+
+        public long getServiceUsec() {
+            return mServiceUsec;
+        }
+
+        protected abstract void process(Slot slot);
+    }
+
+    private class ConvertStage extends Stage {
+        public ConvertStage() {
+            super("convert", mConvertQueue, mEncodeQueue);
+        }
+
+        protected void process(Slot slot) {
+            try {
+                if (!mQuitting && slot.still == null) {
+                    long startTime = System.nanoTime();
+                    mEncoder.convert(slot.data, slot.format, slot.width, slot.height,
+                            slot.picture);
+                    sConvertTime.update((System.nanoTime() - startTime) / 1000000);
+                }
+            } finally {
+                if (slot.buffer != null) {
+                    mRecycler.recycleBuffer(slot.buffer);
+                }
+                slot.data = null;
+                slot.buffer = null;
+            }
+        }
+    }
+
+    private class EncodeStage extends Stage {
+        /* Whether the receivers' decoders last saw a replayed still. */
+        private boolean mInStill;
+        private long mLastStillKeyFrameUsec;
+        private long mLastUsecTime = -1;
+
+        public EncodeStage() {
+            super("encode", mEncodeQueue, mSendQueue);
+        }
+
+        protected void process(Slot slot) {
+            EncodedStill still = slot.still;
+            slot.still = null;
+            slot.encoded.size = 0;
+            if (mQuitting) {
+                return;
+            }
+
+            long durationUsec = mLastUsecTime >= 0 ? slot.usecTime - mLastUsecTime : 0;
+            if (still != null) {
+                boolean keyFrame = !mInStill || mStillKeyFrameRequested || mKeyFrameRequested ||
+                        slot.usecTime - mLastStillKeyFrameUsec >= STILL_KEYFRAME_INTERVAL;
+                if (keyFrame) {
+                    mStillKeyFrameRequested = false;
+                    mKeyFrameRequested = false;
+                    mLastStillKeyFrameUsec = slot.usecTime;
+                }
+                still.fill(slot.encoded, keyFrame, slot.usecTime, durationUsec);
+                mInStill = true;
+                sStillFrames.inc();
+            } else {
+                if (mInStill || mKeyFrameRequested) {
+                    /* If in a still, decoders are referencing it, not our last picture. */
+                    mKeyFrameRequested = false;
+                    mEncoder.requestKeyFrame();
+                }
+                long startTime = System.nanoTime();
+                if (mEncoder.encode(slot.picture, slot.usecTime, slot.encoded)) {
+                    sEncodedFrames.inc();
+                    if (mInStill) {
+                        slot.encoded.durationUsec = durationUsec;
+                        mInStill = false;
+                    }
+                }
+                sEncodeTime.update((System.nanoTime() - startTime) / 1000000);
+            }
+            if (slot.encoded.size > 0) {
+                mLastUsecTime = slot.usecTime;
+            }
+        }
+    }
+
+    private class SendStage extends Stage {
+        public SendStage() {
+            super("send", mSendQueue, mFreeSlots);
+        }
+
+        protected void process(Slot slot) {
+            if (slot.encoded.size > 0 && !mQuitting) {
+                long startTime = System.nanoTime();
+                mSink.onEncodedFrame(slot.encoded);
+                long now = System.nanoTime();
+                sSendTime.update((now - startTime) / 1000000);
+                sLatency.update((now - slot.captureNanos) / 1000000);
+            }
+        }
+    }
+}
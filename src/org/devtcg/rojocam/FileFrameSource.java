@@ -0,0 +1,59 @@
+package org.devtcg.rojocam;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Replays raw NV21 frames from a file, looping at the end. The file is just
+ * frames back to back, as written by, for example:
+ *
+ * <pre>
+ * ffmpeg -i clip.mp4 -s 480x320 -pix_fmt nv21 -f rawvideo clip.nv21
+ * </pre>
+ *
+ * Frames are read as they are due rather than loaded up front, so clips of
+ * any length can be used.
+ */
+public class FileFrameSource extends TimedFrameSource {
+    private final RandomAccessFile mFile;
+    private final long mFrameCount;
+
+    public FileFrameSource(File file, int width, int height, int frameRate) throws IOException {
+        super(width, height, frameRate);
+        mFile = new RandomAccessFile(file, "r");
+        mFrameCount = mFile.length() / getFrameSize(width, height);
+        if (mFrameCount == 0) {
+            mFile.close();
+            throw new IOException(file + " holds no complete " + width + "x" + height +
+                    " frame");
+        }
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    @Override
+    protected void fill(byte[] frame, long frameIndex) throws IOException {
+        long index = frameIndex % mFrameCount;
+        if (index == 0) {
+            mFile.seek(0);
+        }
+        try {
+            mFile.readFully(frame);
+        } catch (EOFException e) {
+            /* Truncated underneath us? */
+            throw new IOException("Unexpected end of file at frame " + index);
+        }
+    }
+
+    @Override
+    protected void onStopped() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.devtcg.rojocam;
+
+import org.devtcg.rojocam.util.Metrics;
+
+import android.util.Log;
+
+/**
+ * Decides which preview frames enter the {@link EncoderPipeline}, so that
+ * frames are dropped deliberately on our side rather than at arbitrary
+ * points by a starved camera.
+ * <p>
+ * In the normal state, frames are admitted at the configured frame rate.
+ * Once a second the headroom is checked: the time per frame allowed at the
+ * current rate versus the pipeline's slowest stage, plus whether the pipeline
+ * refused anything. Sustained overload moves one step down the following
+ * ladder, and sustained slack moves one step back up:
+ * <ol>
+ * <li>Normal: every frame due at the target rate is admitted.</li>
+ * <li>Shedding: frames that would have to queue behind another are dropped,
+ * so the pipeline only works on fresh frames.</li>
+ * <li>Reduced rate: the admitted frame rate is lowered in steps.</li>
+ * <li>Reduced tier: the capture resolution is lowered in steps, via the
+ * {@link Listener}.</li>
+ * </ol>
+ * Frames are only ever dropped before encoding, so the encoded stream's GOP
+ * structure is never disturbed.
+ * <p>
+ * Confined to the camera's preview thread.
+ */
+class FrameRateController {
+    private static final String TAG = FrameRateController.class.getSimpleName();
+
+    /** Admitted frame rate at each rate step, as a fraction of the target. */
+    private static final float[] RATE_STEPS = { 1f, 0.75f, 0.5f, 0.33f };
+
+    private static final long EVALUATION_INTERVAL = 1000000;
+
+    /* Consecutive evaluations needed to step down or back up. */
+    private static final int OVERLOADED_EVALUATIONS = 2;
+    private static final int RELAXED_EVALUATIONS = 5;
+
+    /* Fractions of the frame interval used by the slowest stage. */
+    private static final float OVERLOAD_THRESHOLD = 0.9f;
+    private static final float RELAXED_THRESHOLD = 0.5f;
+
+    private static final Metrics.Counter sRateDrops = Metrics.counter("ratectl.dropped_rate");
+    private static final Metrics.Counter sShedDrops = Metrics.counter("ratectl.dropped_shed");
+    private static final Metrics.Counter sStepDowns = Metrics.counter("ratectl.step_downs");
+    private static final Metrics.Counter sStepUps = Metrics.counter("ratectl.step_ups");
+
+    /** Notified on the preview thread when the capture tier should change. */
+    public interface Listener {
+        /**
+         * @param tier Zero for full resolution, increasing as it is lowered.
+         */
+        public void onTierChanged(int tier);
+    }
+
+    private final int mTargetFps;
+    private final int mTierCount;
+    private final int mMaxLevel;
+    private final Listener mListener;
+
+    /* Read by the gauges from any thread. */
+    private volatile int mLevel;
+    private long mIntervalUsec;
+    private long mNextDueUsec = -1;
+
+    private long mEvaluationStartUsec = -1;
+    private int mRefusedThisEvaluation;
+    private int mOverloadedCount;
+    private int mRelaxedCount;
+
+    /**
+     * @param targetFps Configured frame rate of the encoded stream.
+     * @param tierCount Number of capture resolutions available, including
+     *            the full one.
+     */
+    public FrameRateController(int targetFps, int tierCount, Listener listener) {
+        if (targetFps < 1 || tierCount < 1) {
+            throw new IllegalArgumentException("targetFps and tierCount must be positive");
+        }
+        mTargetFps = targetFps;
+        mTierCount = tierCount;
+        mMaxLevel = RATE_STEPS.length + tierCount - 1;
+        mListener = listener;
+        setLevel(0);
+        registerGauges();
+    }
+
+    private void registerGauges() {
+        Metrics.gauge("ratectl.level", new Metrics.Gauge() {
+            public long getValue() {
+                return mLevel;
+            }
+        });
+        Metrics.gauge("ratectl.fps", new Metrics.Gauge() {
+            public long getValue() {
+                return Math.round(mTargetFps * RATE_STEPS[getRateStep(mLevel)]);
+            }
+        });
+        Metrics.gauge("ratectl.tier", new Metrics.Gauge() {
+            public long getValue() {
+                return getTier(mLevel);
+            }
+        });
+    }
+
+    /*
+     * Level 0 is normal, level 1 sheds, levels 2 and up lower the rate until
+     * it bottoms out and then lower the tier.
+     */
+    private static boolean isShedding(int level) {
+        return level >= 1;
+    }
+
+    private static int getRateStep(int level) {
+        return Math.max(0, Math.min(level - 1, RATE_STEPS.length - 1));
+    }
+
+    private static int getTier(int level) {
+        return Math.max(0, level - RATE_STEPS.length);
+    }
+
+    public int getTier() {
+        return getTier(mLevel);
+    }
+
+    /**
+     * Decides whether a frame should be submitted to the pipeline.
+     *
+     * @param ptsUsec The frame's timestamp from the session's media clock.
+     */
+    public boolean admit(long ptsUsec, EncoderPipeline pipeline) {
+        evaluate(ptsUsec, pipeline);
+
+        /* Allow a quarter frame of jitter before calling a frame early. */
+        if (mNextDueUsec >= 0 && ptsUsec + mIntervalUsec / 4 < mNextDueUsec) {
+            sRateDrops.inc();
+            return false;
+        }
+        if (isShedding(mLevel) && !pipeline.isIdle()) {
+            sShedDrops.inc();
+            return false;
+        }
+
+        if (mNextDueUsec < 0 || ptsUsec - mNextDueUsec > mIntervalUsec) {
+            /* First frame, or we fell well behind: don't try to catch up. */
+            mNextDueUsec = ptsUsec + mIntervalUsec;
+        } else {
+            mNextDueUsec += mIntervalUsec;
+        }
+        return true;
+    }
+
+    /**
+     * Reports that the pipeline refused an admitted frame, which means it is
+     * falling behind regardless of what its timings say.
+     */
+    public void onRefused() {
+        mRefusedThisEvaluation++;
+    }
+
+    private void evaluate(long nowUsec, EncoderPipeline pipeline) {
+        if (mEvaluationStartUsec < 0) {
+            mEvaluationStartUsec = nowUsec;
+            return;
+        }
+        if (nowUsec - mEvaluationStartUsec < EVALUATION_INTERVAL) {
+            return;
+        }
+
+        long slowest = pipeline.getSlowestStageUsec();
+        if (mRefusedThisEvaluation > 0 || slowest > mIntervalUsec * OVERLOAD_THRESHOLD) {
+            mRelaxedCount = 0;
+            if (++mOverloadedCount >= OVERLOADED_EVALUATIONS && mLevel < mMaxLevel) {
+                mOverloadedCount = 0;
+                sStepDowns.inc();
+                Log.i(TAG, "Overloaded (slowest stage " + slowest + "us, " +
+                        mRefusedThisEvaluation + " refused), stepping down");
+                setLevel(mLevel + 1);
+            }
+        } else if (slowest < mIntervalUsec * RELAXED_THRESHOLD) {
+            mOverloadedCount = 0;
+            if (++mRelaxedCount >= RELAXED_EVALUATIONS && mLevel > 0) {
+                mRelaxedCount = 0;
+                sStepUps.inc();
+                Log.i(TAG, "Headroom available (slowest stage " + slowest +
+                        "us), stepping up");
+                setLevel(mLevel - 1);
+            }
+        } else {
+            mOverloadedCount = 0;
+            mRelaxedCount = 0;
+        }
+
+        mEvaluationStartUsec = nowUsec;
+        mRefusedThisEvaluation = 0;
+    }
+
+    private void setLevel(int level) {
+        int oldTier = getTier(mLevel);
+        mLevel = level;
+        float fps = mTargetFps * RATE_STEPS[getRateStep(level)];
+        mIntervalUsec = (long)(1000000 / fps);
+
+        Log.i(TAG, "Level " + level + ": " + (isShedding(level) ? "shedding, " : "") +
+                String.format("%.1f", fps) + " fps, tier " + getTier(level) + "/" +
+                (mTierCount - 1));
+
+        int tier = getTier(level);
+        if (tier != oldTier && mListener != null) {
+            mListener.onTierChanged(tier);
+        }
+    }
+}
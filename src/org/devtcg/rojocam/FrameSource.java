@@ -0,0 +1,52 @@
+package org.devtcg.rojocam;
+
+import java.io.IOException;
+
+/**
+ * Supplies the raw frames that get encoded and streamed. The camera is the
+ * usual source (see {@link CameraFrameSource}); {@link SyntheticFrameSource}
+ * and {@link FileFrameSource} stand in for it where there is no camera, such
+ * as when load testing the streaming path on a build server.
+ * <p>
+ * Frames are delivered in buffers owned by the source. Each buffer belongs to
+ * the listener from the moment it is passed to
+ * {@link Listener#onFrame} until the listener hands it back with
+ * {@link #recycleBuffer}; a source which runs out of buffers drops frames.
+ */
+public interface FrameSource {
+    /**
+     * Pixel format of the frames, one of the
+     * <code>android.graphics.ImageFormat</code> constants.
+     */
+    public int getFormat();
+
+    /**
+     * Nominal frame rate, in frames per second.
+     */
+    public int getFrameRate();
+
+    /**
+     * Starts delivering frames to the listener, always on the same thread.
+     */
+    public void start(Listener listener) throws IOException;
+
+    /**
+     * Stops delivering frames. Once this returns the listener will not be
+     * called again, though buffers it still holds may be recycled.
+     */
+    public void stop();
+
+    /**
+     * Gives a buffer back to the source. May be called from any thread.
+     */
+    public void recycleBuffer(byte[] buffer);
+
+    public interface Listener {
+        /**
+         * @param data Frame buffer, exactly one frame in size.
+         * @param captureNanos When the frame was captured, on the
+         *            {@link System#nanoTime()} timeline.
+         */
+        public void onFrame(byte[] data, int width, int height, long captureNanos);
+    }
+}
@@ -0,0 +1,330 @@
+package org.devtcg.rojocam;
+
+import org.devtcg.rojocam.ffmpeg.EncodedFrame;
+import org.devtcg.rojocam.ffmpeg.EncodedFrameReceiver;
+import org.devtcg.rojocam.ffmpeg.EncodedStill;
+import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
+import org.devtcg.rojocam.rtp.RtpFanout;
+import org.devtcg.rojocam.rtp.RtpSender;
+import org.devtcg.rojocam.util.IOUtils;
+import org.devtcg.rojocam.util.MediaClock;
+import org.devtcg.rojocam.util.Metrics;
+import org.devtcg.rojocam.util.SubscriberTable;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything between a {@link FrameSource} and the
+ * {@link EncodedFrameReceiver}s that doesn't need Android: stamping frames on
+ * the config's {@link MediaClock}, deciding which of them to encode with a
+ * {@link FrameRateController}, running them through the
+ * {@link EncoderPipeline} and fanning the encoded stream out to the receivers.
+ * <p>
+ * {@link StreamingHeadlessCamcorder} runs one of these over the camera, and
+ * can substitute frames on the way in (for the subject warning). Other
+ * sources can be streamed as-is by passing the streamer itself as their
+ * {@link FrameSource.Listener}.
+ * <p>
+ * Receivers may be added and removed at any time; frames are only encoded
+ * while there is at least one.
+ */
+class FrameStreamer implements FrameSource.Listener {
+    private static final String TAG = FrameStreamer.class.getSimpleName();
+
+    private static final Metrics.Timer sTimeToFirstFrame =
+            Metrics.timer("stream.time_to_first_frame");
+
+    /**
+     * Gauge of the pipeline's slowest stage, as a percentage of the frame
+     * interval at the configured rate; zero when stopped.
+     */
+    static final String GAUGE_UTILIZATION = "pipeline.utilization";
+
+    private final FFStreamConfig mStreamConfig;
+    private final MediaClock mMediaClock;
+
+    private EncoderPipeline.Config mPipelineConfig = new EncoderPipeline.Config();
+
+    /*
+     * Walked for every encoded frame; see SubscriberTable for why this is not
+     * simply a CopyOnWriteArraySet.
+     */
+    private final SubscriberTable<EncodedFrameReceiver> mReceivers =
+            new SubscriberTable<EncodedFrameReceiver>();
+
+    /**
+     * Time at which a receiver was added while none was yet being fed, or
+     * zero. Cleared once the next encoded frame goes out.
+     */
+    private final AtomicLong mFirstFrameWaitStart = new AtomicLong();
+
+    /* All of the following exist only between start() and stop(). */
+    private volatile FrameSource mSource;
+    private volatile EncoderPipeline mPipeline;
+    private volatile RtpFanout mRtpFanout;
+
+    /* Confined to the source's thread. */
+    private FrameRateController mRateController;
+
+    public FrameStreamer(FFStreamConfig streamConfig) {
+        mStreamConfig = streamConfig;
+        mMediaClock = streamConfig.getMediaClock();
+    }
+
+    public FFStreamConfig getStreamConfig() {
+        return mStreamConfig;
+    }
+
+    /**
+     * Sets the queue depths of the encoding pipeline, taking effect the next
+     * time the streamer is started.
+     */
+    public synchronized void setPipelineConfig(EncoderPipeline.Config config) {
+        mPipelineConfig = new EncoderPipeline.Config(config);
+    }
+
+    public synchronized EncoderPipeline.Config getPipelineConfig() {
+        return new EncoderPipeline.Config(mPipelineConfig);
+    }
+
+    /**
+     * Add a new peer that is to receive the encoded stream.
+     */
+    public void addReceiver(EncodedFrameReceiver receiver) {
+        mFirstFrameWaitStart.compareAndSet(0, System.nanoTime() / 1000000);
+        mReceivers.add(receiver);
+
+        /* Harmless if no still is showing; a keyframe if one is. */
+        EncoderPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            pipeline.requestStillKeyFrame();
+        }
+    }
+
+    public void removeReceiver(EncodedFrameReceiver receiver) {
+        mReceivers.remove(receiver);
+    }
+
+    /**
+     * Add an RTP peer. RTP peers share a single receiver which packetizes
+     * each frame once for all of them; see {@link RtpFanout}. Only valid once
+     * started.
+     */
+    public void addRtpSender(RtpSender sender) {
+        RtpFanout fanout = mRtpFanout;
+        synchronized (fanout) {
+            if (fanout.addSender(sender)) {
+                addReceiver(fanout);
+                return;
+            }
+        }
+        EncoderPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            pipeline.requestStillKeyFrame();
+        }
+    }
+
+    /**
+     * Makes the next frame encoded a keyframe. May be called from any
+     * thread; ignored unless started.
+     */
+    public void requestKeyFrame() {
+        EncoderPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            pipeline.requestKeyFrame();
+        }
+    }
+
+    public void removeRtpSender(RtpSender sender) {
+        RtpFanout fanout = mRtpFanout;
+        if (fanout == null) {
+            return;
+        }
+        synchronized (fanout) {
+            if (fanout.removeSender(sender)) {
+                removeReceiver(fanout);
+            }
+        }
+    }
+
+    /**
+     * Sets up the pipeline for frames from <code>source</code>. The caller
+     * starts the source itself, once this returns.
+     *
+     * @param tierCount Number of capture resolutions the source can switch
+     *            between, including the full one.
+     * @param tierListener Asked to switch resolution to shed load; may be
+     *            null if tierCount is 1.
+     */
+    public void start(FrameSource source, int tierCount,
+            FrameRateController.Listener tierListener) {
+        if (mPipeline != null) {
+            throw new IllegalStateException("Already started");
+        }
+
+        Log.i(TAG, "Encoding with " + mStreamConfig.getEncoderThreadCount() +
+                " slice thread(s)");
+        mRtpFanout = new RtpFanout(mMediaClock, mStreamConfig.isFecEnabled(),
+                mStreamConfig.isEarlyKeyFrameEnabled() ? mKeyFrameRequester : null);
+
+        final FrameSource recycleTo = source;
+        EncoderPipeline pipeline = new EncoderPipeline(mStreamConfig, getPipelineConfig(),
+                new EncoderPipeline.BufferRecycler() {
+                    public void recycleBuffer(byte[] buffer) {
+                        recycleTo.recycleBuffer(buffer);
+                    }
+                }, mSink);
+        pipeline.start();
+
+        mRateController = new FrameRateController(mStreamConfig.getFrameRate(), tierCount,
+                tierListener);
+        mSource = source;
+        mPipeline = pipeline;
+
+        final long intervalUsec = 1000000 / mStreamConfig.getFrameRate();
+        Metrics.gauge(GAUGE_UTILIZATION, new Metrics.Gauge() {
+            public long getValue() {
+                EncoderPipeline pipeline = mPipeline;
+                return pipeline != null ? pipeline.getSlowestStageUsec() * 100 / intervalUsec : 0;
+            }
+        });
+    }
+
+    /**
+     * Returns the clock stamping this streamer's frames, which is shared with
+     * every other streamer on the same config.
+     */
+    public MediaClock getMediaClock() {
+        return mMediaClock;
+    }
+
+    /**
+     * Converts a capture time from the source into the frame's PTS. Must be
+     * called for every frame, on the source's thread, whether or not the
+     * frame is then submitted.
+     *
+     * @return The PTS, or {@link MediaClock#NO_PTS} if the frame came too
+     *         soon after the last one to be encoded; submitting it is then
+     *         refused.
+     */
+    public long stamp(long captureNanos) {
+        return mMediaClock.stamp(captureNanos);
+    }
+
+    /**
+     * Offers a raw frame for encoding. Source thread only.
+     *
+     * @param buffer Recycled to the source once converted, if non-null.
+     * @return True if the frame was queued. If not, the caller still owns
+     *         <code>buffer</code>.
+     */
+    public boolean submit(byte[] data, byte[] buffer, int format, int width, int height,
+            long ptsUsec) {
+        EncoderPipeline pipeline = mPipeline;
+        if (pipeline == null || ptsUsec == MediaClock.NO_PTS || mReceivers.isEmpty() ||
+                !mRateController.admit(ptsUsec, pipeline)) {
+            return false;
+        }
+        if (!pipeline.submit(data, buffer, format, width, height, ptsUsec)) {
+            mRateController.onRefused();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Offers a frame of a pre-encoded still in place of a live frame. Source
+     * thread only.
+     */
+    public boolean submitStill(EncodedStill still, long ptsUsec) {
+        EncoderPipeline pipeline = mPipeline;
+        if (pipeline == null || ptsUsec == MediaClock.NO_PTS || mReceivers.isEmpty() ||
+                !mRateController.admit(ptsUsec, pipeline)) {
+            return false;
+        }
+        if (!pipeline.submitStill(still, ptsUsec)) {
+            mRateController.onRefused();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Streams a frame unmodified. This is all the streamer needs in order to
+     * be a source's listener.
+     */
+    public void onFrame(byte[] data, int width, int height, long captureNanos) {
+        long ptsUsec = stamp(captureNanos);
+        FrameSource source = mSource;
+        if (!submit(data, data, source.getFormat(), width, height, ptsUsec)) {
+            source.recycleBuffer(data);
+        }
+    }
+
+    /**
+     * Stops the pipeline and closes every receiver. The source must already
+     * have been stopped.
+     */
+    public void stop() {
+        EncoderPipeline pipeline = mPipeline;
+        if (pipeline == null) {
+            return;
+        }
+        mPipeline = null;
+        pipeline.quit();
+        mRateController = null;
+        mSource = null;
+
+        for (int i = 0; i < mReceivers.getSlotCount(); i++) {
+            EncodedFrameReceiver receiver = mReceivers.get(i);
+            if (receiver != null) {
+                IOUtils.closeQuietly(receiver);
+            }
+        }
+    }
+
+    /**
+     * Fans each encoded frame out to the receivers; runs on the pipeline's
+     * send stage.
+     */
+    private final EncoderPipeline.Sink mSink = new EncoderPipeline.Sink() {
+        public void onEncodedFrame(EncodedFrame frame) {
+            for (int i = 0; i < mReceivers.getSlotCount(); i++) {
+                EncodedFrameReceiver receiver = mReceivers.get(i);
+                if (receiver == null) {
+                    continue;
+                }
+                long handle = mReceivers.getHandle(i);
+                try {
+                    receiver.onEncodedFrame(frame);
+                } catch (IOException e) {
+                    Log.w(TAG, "Error writing to receiver: " + receiver);
+                    IOUtils.closeQuietly(receiver);
+                    mReceivers.remove(handle);
+                }
+            }
+
+            long waitStart = mFirstFrameWaitStart.getAndSet(0);
+            if (waitStart != 0) {
+                sTimeToFirstFrame.update(System.nanoTime() / 1000000 - waitStart);
+            }
+
+            /* Nothing is held from the table now; recycle any removed slots. */
+            mReceivers.reclaim();
+        }
+    };
+
+    /**
+     * Brings the encoder's next keyframe forward for RTP peers that skipped
+     * ahead after falling behind.
+     */
+    private final RtpFanout.KeyFrameRequester mKeyFrameRequester =
+            new RtpFanout.KeyFrameRequester() {
+        public void requestKeyFrame() {
+            FrameStreamer.this.requestKeyFrame();
+        }
+    };
+}
@@ -1,6 +1,7 @@
 package org.devtcg.rojocam;
 
 import org.devtcg.rojocam.util.CameraParametersCompat;
+import org.devtcg.rojocam.util.SettableFuture;
 
 import android.content.Context;
 import android.graphics.ImageFormat;
@@ -17,6 +18,7 @@ import android.view.WindowManager;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Future;
 
 /**
  * Abstraction of the MediaRecorder APIs to provide a simpler interface and
@@ -26,9 +28,9 @@ import java.lang.ref.WeakReference;
  * This class is designed to be discarded after the camcorder is stopped. A new
  * instance should be created for each recording session.
  * <p>
- * Today we ask that this class be thread-safe around certain conditions but we
- * do not enforce that. Bugs will likely exist when we introduce multiple peers
- * due to this.
+ * All camera and surface work happens on the main thread. {@link #start()} and
+ * {@link #stop()} may be called from any thread; they return immediately with
+ * a future tracking the operation.
  */
 public abstract class HeadlessCamcorder implements SurfaceHolder.Callback {
     private static final String TAG = HeadlessCamcorder.class.getSimpleName();
@@ -54,11 +56,23 @@ public abstract class HeadlessCamcorder implements SurfaceHolder.Callback {
     private static final int WAITING_FOR_SURFACE = 1;
     private static final int RECORDING = 2;
 
+    /* Accessed only from the main thread. */
     private int mRecordingState = NOT_RECORDING;
 
     /* Non-null only when in the RECORDING state. */
     private Camera mCamera;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /* Guarded by this. */
+    private boolean mStarted;
+
+    /**
+     * Completed once the camera preview is running, or failed if it could
+     * not be started. Shared by everyone waiting on this camcorder.
+     */
+    private final SettableFuture<Void> mReadyFuture = new SettableFuture<Void>();
+
     public HeadlessCamcorder(Context context) {
         mContext = new WeakReference<Context>(context);
     }
@@ -72,41 +86,97 @@ public abstract class HeadlessCamcorder implements SurfaceHolder.Callback {
     }
 
     /**
-     * Starts the process of recording from the camera. This method blocks.
+     * Starts the process of recording from the camera. This method does not
+     * block; the camera is brought up on the main thread once the dummy
+     * preview surface is ready.
+     *
+     * @return The future returned by {@link #getReadyFuture()}.
      */
-    public void start() {
-        if (isStarted()) {
-            throw new IllegalStateException("Camcorder already started");
+    public Future<Void> start() {
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("Camcorder already started");
+            }
+            mStarted = true;
         }
 
-        /* XXX: NOOOOOO!!!! */
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
+        mMainHandler.post(new Runnable() {
             public void run() {
+                /* Stopped from the main thread before we ever got here. */
+                if (!isStarted()) {
+                    return;
+                }
                 mRecordingState = WAITING_FOR_SURFACE;
-                makeAndAddSurfaceView();
+                try {
+                    makeAndAddSurfaceView();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to create preview surface", e);
+                    mRecordingState = NOT_RECORDING;
+                    mReadyFuture.setException(e);
+                }
             }
         });
+
+        return mReadyFuture;
     }
 
     /**
-     * Stops recording. This method blocks.
+     * Stops recording. This method does not block; the returned future
+     * completes once the camera has been released.
      */
-    public void stop() {
-        if (!isStarted()) {
-            throw new IllegalStateException("Camcorder not started");
+    public Future<Void> stop() {
+        synchronized (this) {
+            if (!mStarted) {
+                throw new IllegalStateException("Camcorder not started");
+            }
+            mStarted = false;
         }
 
-        if (mRecordingState == RECORDING) {
-            /* XXX: stopRecorder will set mRecordingState for us. */
-            stopRecorder();
+        final SettableFuture<Void> stopped = new SettableFuture<Void>();
+        Runnable stopRunnable = new Runnable() {
+            public void run() {
+                if (mRecordingState == RECORDING) {
+                    /* XXX: stopRecorder will set mRecordingState for us. */
+                    stopRecorder();
+                } else {
+                    mRecordingState = NOT_RECORDING;
+                }
+                if (mDummySurfaceView != null) {
+                    removeSurfaceView();
+                }
+                mReadyFuture.setException(new IOException("Camcorder stopped before it was ready"));
+                onStopped();
+                stopped.set(null);
+            }
+        };
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            stopRunnable.run();
         } else {
-            mRecordingState = NOT_RECORDING;
+            mMainHandler.post(stopRunnable);
         }
-        removeSurfaceView();
+
+        return stopped;
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Returns a future completed once the camera preview is running. Any
+     * number of callers may wait on or chain from the same bring-up.
+     */
+    public Future<Void> getReadyFuture() {
+        return mReadyFuture;
     }
 
-    public boolean isStarted() {
-        return mRecordingState != NOT_RECORDING;
+    /**
+     * Adds a listener run once the camera preview is running or has failed to
+     * start, on the main thread (or immediately if that already happened).
+     */
+    public void addReadyListener(Runnable listener) {
+        mReadyFuture.addListener(listener);
     }
 
     /**
@@ -121,6 +191,13 @@ public abstract class HeadlessCamcorder implements SurfaceHolder.Callback {
      */
     protected abstract void onRecorderStopped(Camera camera);
 
+    /**
+     * Invoked on the main thread once the camera has been released following
+     * {@link #stop()}, whether or not recording ever began.
+     */
+    protected void onStopped() {
+    }
+
     /**
      * Constructs and registers a dummy SurfaceView to be used as the preview
      * surface for the Camera object. We must wait until after the underlying
@@ -182,6 +259,7 @@ public abstract class HeadlessCamcorder implements SurfaceHolder.Callback {
         }
 
         mRecordingState = RECORDING;
+        mReadyFuture.set(null);
     }
 
     private void stopRecorder() {
@@ -213,11 +291,23 @@ public abstract class HeadlessCamcorder implements SurfaceHolder.Callback {
                 Log.i(TAG, "Starting recorder...");
                 startRecorder();
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                failRecorderStart(e);
+            } catch (RuntimeException e) {
+                failRecorderStart(e);
             }
         }
     }
 
+    private void failRecorderStart(Exception e) {
+        Log.e(TAG, "Unable to start recorder", e);
+        if (mCamera != null) {
+            mCamera.release();
+            mCamera = null;
+        }
+        mRecordingState = NOT_RECORDING;
+        mReadyFuture.setException(e);
+    }
+
     public void surfaceCreated(SurfaceHolder holder) {
         Log.d(TAG, "surfaceCreated");
     }
@@ -0,0 +1,164 @@
+package org.devtcg.rojocam;
+
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the most recent preview frame and JPEG-compresses it on demand. The
+ * compressed result is shared by every caller asking for the same frame so
+ * that any number of HTTP pollers and MJPEG subscribers cost at most one
+ * compression per camera frame.
+ */
+public class JpegFrameSource implements StreamingHeadlessCamcorder.FrameListener {
+    private static final int JPEG_QUALITY = 70;
+
+    /**
+     * Snapshots younger than this are served as-is, even if a newer preview
+     * frame has arrived since. This lets many pollers share one compression.
+     */
+    private final long mSnapshotTtl;
+
+    /*
+     * Held by the preview thread only long enough to copy a frame in, and by
+     * HTTP threads while compressing. The preview thread never waits on it
+     * (see onFrame).
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mFrameAvailable = mLock.newCondition();
+
+    private byte[] mFrame;
+    private int mFrameFormat;
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private long mFrameSeq;
+
+    private Jpeg mJpeg;
+
+    private final ByteArrayOutputStream mJpegOut = new ByteArrayOutputStream(32768);
+
+    public JpegFrameSource(long snapshotTtl) {
+        mSnapshotTtl = snapshotTtl;
+    }
+
+    public void onFrame(byte[] data, int format, int width, int height) {
+        /*
+         * A compression is in progress; drop this frame rather than stall the
+         * camera's preview callback.
+         */
+        if (!mLock.tryLock()) {
+            return;
+        }
+        try {
+            if (mFrame == null || mFrame.length != data.length) {
+                mFrame = new byte[data.length];
+            }
+            System.arraycopy(data, 0, mFrame, 0, data.length);
+            mFrameFormat = format;
+            mFrameWidth = width;
+            mFrameHeight = height;
+            mFrameSeq++;
+            mFrameAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Discard the held frame and compressed image. Invoked when the last
+     * subscriber goes away so that a later request never sees a stale
+     * picture.
+     */
+    public void reset() {
+        mLock.lock();
+        try {
+            mFrame = null;
+            mJpeg = null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a recent JPEG snapshot, compressing the latest frame only if the
+     * cached image has exceeded its TTL. Blocks until the first frame arrives.
+     *
+     * @return The snapshot, or null if no frame arrived within the timeout.
+     */
+    public Jpeg getSnapshot(long timeout) throws InterruptedException {
+        mLock.lock();
+        try {
+            if (mJpeg != null && SystemClock.elapsedRealtime() - mJpeg.time < mSnapshotTtl) {
+                return mJpeg;
+            }
+            if (!awaitFrameLocked(mFrame != null ? mFrameSeq - 1 : mFrameSeq, timeout)) {
+                return null;
+            }
+            return compressLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a frame newer than <code>afterSeq</code> is available and
+     * returns it compressed. Intended for MJPEG subscribers, which pass the
+     * sequence number of the last image they delivered.
+     *
+     * @return The compressed frame, or null if no frame arrived within the
+     *         timeout.
+     */
+    public Jpeg awaitNext(long afterSeq, long timeout) throws InterruptedException {
+        mLock.lock();
+        try {
+            if (!awaitFrameLocked(afterSeq, timeout)) {
+                return null;
+            }
+            return compressLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private boolean awaitFrameLocked(long afterSeq, long timeout) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (mFrame == null || mFrameSeq <= afterSeq) {
+            if (nanos <= 0) {
+                return false;
+            }
+            nanos = mFrameAvailable.awaitNanos(nanos);
+        }
+        return true;
+    }
+
+    private Jpeg compressLocked() {
+        if (mJpeg == null || mJpeg.seq != mFrameSeq) {
+            YuvImage image = new YuvImage(mFrame, mFrameFormat, mFrameWidth, mFrameHeight, null);
+            mJpegOut.reset();
+            image.compressToJpeg(new Rect(0, 0, mFrameWidth, mFrameHeight), JPEG_QUALITY,
+                    mJpegOut);
+            mJpeg = new Jpeg(mJpegOut.toByteArray(), mFrameSeq, SystemClock.elapsedRealtime());
+        }
+        return mJpeg;
+    }
+
+    /**
+     * Immutable compressed frame, safe to share among any number of writers.
+     */
+    public static class Jpeg {
+        public final byte[] data;
+        public final long seq;
+        public final long time;
+
+        private Jpeg(byte[] data, long seq, long time) {
+            this.data = data;
+            this.seq = seq;
+            this.time = time;
+        }
+    }
+}
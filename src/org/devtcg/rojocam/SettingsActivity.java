@@ -18,11 +18,15 @@ import java.util.EnumSet;
 public class SettingsActivity extends PreferenceActivity implements OnPreferenceChangeListener {
     private ListPreference mPolicy;
     private EditTextPreference mPassword;
+    private EditTextPreference mViewerUplinkLimit;
+    private EditTextPreference mViewerEncoderLimit;
 
     private final Handler mHandler = new Handler();
 
     private static final String KEY_POLICY = "policy";
     private static final String KEY_PASSWORD = "password";
+    private static final String KEY_VIEWER_UPLINK_LIMIT = "viewer_uplink_limit";
+    private static final String KEY_VIEWER_ENCODER_LIMIT = "viewer_encoder_limit";
 
     public static SharedPreferences getPrefs(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context);
@@ -32,6 +36,36 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
         return CameraPolicy.fromString(getPrefs(context).getString(KEY_POLICY, ""));
     }
 
+    /**
+     * @return The password, or null if none is set.
+     */
+    public static String getPassword(Context context) {
+        String password = getPrefs(context).getString(KEY_PASSWORD, "");
+        return TextUtils.isEmpty(password) ? null : password;
+    }
+
+    /**
+     * Share of the uplink and of the encoder's time beyond which viewers
+     * (sessions not claiming recorder priority) are refused.
+     */
+    public static CapacityModel.Limits getViewerLimits(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        return new CapacityModel.Limits(
+                getPercent(prefs, KEY_VIEWER_UPLINK_LIMIT,
+                        CapacityModel.DEFAULT_VIEWER_LIMITS.maxUplinkPercent),
+                getPercent(prefs, KEY_VIEWER_ENCODER_LIMIT,
+                        CapacityModel.DEFAULT_VIEWER_LIMITS.maxEncoderPercent));
+    }
+
+    private static int getPercent(SharedPreferences prefs, String key, int defaultValue) {
+        try {
+            int value = Integer.parseInt(prefs.getString(key, "").trim());
+            return Math.max(0, Math.min(value, 100));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public static void show(Context context) {
         Intent intent = new Intent(context, SettingsActivity.class);
         context.startActivity(intent);
@@ -47,6 +81,12 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
 
         mPassword = (EditTextPreference)findPreference(KEY_PASSWORD);
         mPassword.setOnPreferenceChangeListener(this);
+
+        mViewerUplinkLimit = (EditTextPreference)findPreference(KEY_VIEWER_UPLINK_LIMIT);
+        mViewerUplinkLimit.setOnPreferenceChangeListener(this);
+
+        mViewerEncoderLimit = (EditTextPreference)findPreference(KEY_VIEWER_ENCODER_LIMIT);
+        mViewerEncoderLimit.setOnPreferenceChangeListener(this);
     }
 
     @Override
@@ -74,6 +114,12 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
             mPassword.setSummary(R.string.password_protected);
         }
 
+        CapacityModel.Limits limits = getViewerLimits(this);
+        mViewerUplinkLimit.setSummary(getString(R.string.viewer_uplink_limit_summary,
+                limits.maxUplinkPercent));
+        mViewerEncoderLimit.setSummary(getString(R.string.viewer_encoder_limit_summary,
+                limits.maxEncoderPercent));
+
         String policy = mPolicy.getValue();
         int policyIndex = getPolicyIndex(policy);
         String[] policySummaries = getResources().getStringArray(R.array.policySummary);
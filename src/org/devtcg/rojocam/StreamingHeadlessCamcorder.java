@@ -1,9 +1,16 @@
 package org.devtcg.rojocam;
 
 import org.devtcg.rojocam.UserAlertHelper.SubjectWarning;
-import org.devtcg.rojocam.ffmpeg.RtpOutputContext;
+import org.devtcg.rojocam.ffmpeg.EncodedFrameReceiver;
+import org.devtcg.rojocam.ffmpeg.EncodedStill;
+import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
 import org.devtcg.rojocam.ffmpeg.SwsScaler;
-import org.devtcg.rojocam.util.IOUtils;
+import org.devtcg.rojocam.ffmpeg.SwsScalerCache;
+import org.devtcg.rojocam.rtp.RtpSender;
+import org.devtcg.rojocam.util.MediaClock;
+import org.devtcg.rojocam.util.Metrics;
+import org.devtcg.rojocam.util.SettableFuture;
+import org.devtcg.rojocam.util.SubscriberTable;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -11,16 +18,20 @@ import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.hardware.Camera.Parameters;
-import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.Size;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class StreamingHeadlessCamcorder extends HeadlessCamcorder {
     private static final String TAG = StreamingHeadlessCamcorder.class.getSimpleName();
@@ -31,40 +42,191 @@ public class StreamingHeadlessCamcorder extends HeadlessCamcorder {
      * camera's LED for a period before actually sending the live camera feed.
      * This is part of a soon-to-be configurable policy to protect the privacy
      * of individuals that may be under surveillance (e.g. my girlfriend).
+     * <p>
+     * Written from whichever thread (re)arms the warning, read by the preview
+     * callback.
      */
-    private SubjectWarning mSubjectWarning;
+    private volatile SubjectWarning mSubjectWarning;
 
     /**
      * Generated frame explaining that the subject warning system is in effect.
      */
     private static FrameBuf sPleaseWaitFrame;
 
+    /**
+     * The same image, encoded once for the stream config it was made for, so
+     * that the warning period costs no conversion or encoding.
+     */
+    private static EncodedStill sPleaseWaitStill;
+    private static WeakReference<FFStreamConfig> sPleaseWaitStillConfig;
+
+    /* Set up front, whenever the policy can call for the warning. */
+    private volatile EncodedStill mPleaseWaitStill;
+
     private boolean mCanDoTorch;
 
     private int mPreviewFormat;
-    private Size mPreviewSize;
-    private int mPreviewBitsPerPixel;
 
-    private final CopyOnWriteArraySet<RtpOutputContext> mReceivers =
-            new CopyOnWriteArraySet<RtpOutputContext>();
+    private final FFStreamConfig mStreamConfig;
+
+    /**
+     * Converts, encodes and delivers frames for the single encoder shared by
+     * every receiver (RTP peers, HLS, ...). Only running while the camera
+     * preview is.
+     */
+    private final FrameStreamer mStreamer;
+
+    /*
+     * Owns all parameter changes once the preview is set up, from
+     * onRecorderInitialized until onRecorderStopped.
+     */
+    private volatile CameraControl mCameraControl;
+
+    /* Preview frames, from onRecorderInitialized until onRecorderStopped. */
+    private volatile CameraFrameSource mFrameSource;
+
+    /* Full capture size first, then progressively lower ones to shed load. */
+    private final List<Size> mPreviewTiers = new ArrayList<Size>();
+
+    private static final int FULL_PREVIEW_WIDTH = 480;
+    private static final int FULL_PREVIEW_HEIGHT = 320;
+
+    /*
+     * Walked for every preview frame; see SubscriberTable for why this is not
+     * simply a CopyOnWriteArraySet.
+     */
+    private final SubscriberTable<FrameListener> mFrameListeners =
+            new SubscriberTable<FrameListener>();
+
+    private static final Metrics.Timer sStartupTime = Metrics.timer("camera.startup_time");
+    private static final Metrics.Counter sTierChanges = Metrics.counter("ratectl.tier_changes");
+
+    private long mStartTime;
+
+    /** Completed when the first preview frame is delivered. */
+    private final SettableFuture<Void> mFirstFrameFuture = new SettableFuture<Void>();
 
-    public StreamingHeadlessCamcorder(Context context) throws SocketException {
+    /**
+     * Receives each raw frame exactly as it is sent to the RTP peers
+     * (including the "please wait" frame while the subject warning is active).
+     */
+    public interface FrameListener {
+        /**
+         * Invoked on the camera's preview thread. The buffer is handed back to
+         * the camera as soon as this returns, so implementations must copy
+         * anything they wish to keep and should return quickly.
+         */
+        public void onFrame(byte[] data, int format, int width, int height);
+    }
+
+    public StreamingHeadlessCamcorder(Context context, FFStreamConfig streamConfig)
+            throws SocketException {
         super(context);
+        mStreamConfig = streamConfig;
+        streamConfig.retain();
+        mStreamer = new FrameStreamer(streamConfig);
+
+        /* Frames will never flow if the camera fails to come up. */
+        addReadyListener(new Runnable() {
+            public void run() {
+                try {
+                    getReadyFuture().get();
+                } catch (ExecutionException e) {
+                    mFirstFrameFuture.setException(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
     }
 
     /**
-     * Add a new peer that is to receive the camera feed.
+     * Add a new peer that is to receive the encoded camera feed.
      */
-    public void addReceiver(RtpOutputContext rtpContext) {
-        mReceivers.add(rtpContext);
+    public void addReceiver(EncodedFrameReceiver receiver) {
+        mStreamer.addReceiver(receiver);
     }
 
     /**
      * Remove a peer from this feed. The camera remains open when all
      * participants are removed but no data will be delivered to any parties.
      */
-    public void removeReceiver(RtpOutputContext rtpContext) {
-        mReceivers.remove(rtpContext);
+    public void removeReceiver(EncodedFrameReceiver receiver) {
+        mStreamer.removeReceiver(receiver);
+    }
+
+    /**
+     * Add an RTP peer. Only valid once {@link #getReadyFuture()} has
+     * completed.
+     */
+    public void addRtpSender(RtpSender sender) {
+        mStreamer.addRtpSender(sender);
+    }
+
+    public void removeRtpSender(RtpSender sender) {
+        mStreamer.removeRtpSender(sender);
+    }
+
+    /**
+     * Makes the next frame encoded a keyframe, for every receiver.
+     */
+    public void requestKeyFrame() {
+        mStreamer.requestKeyFrame();
+    }
+
+    public void addFrameListener(FrameListener listener) {
+        mFrameListeners.add(listener);
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        mFrameListeners.remove(listener);
+    }
+
+    /**
+     * Sets the queue depths of the encoding pipeline, taking effect the next
+     * time the camera is started.
+     */
+    public void setPipelineConfig(EncoderPipeline.Config config) {
+        mStreamer.setPipelineConfig(config);
+    }
+
+    @Override
+    public Future<Void> start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        return super.start();
+    }
+
+    @Override
+    protected void onStopped() {
+        mStreamConfig.close();
+    }
+
+    /**
+     * Returns a future completed once preview frames are flowing, which may
+     * be some time after {@link #getReadyFuture()} on slower devices.
+     */
+    public Future<Void> getFirstFrameFuture() {
+        return mFirstFrameFuture;
+    }
+
+    /**
+     * Returns the clock stamping this session's frames. Only valid once
+     * {@link #getReadyFuture()} has completed.
+     */
+    public MediaClock getMediaClock() {
+        return mStreamer.getMediaClock();
+    }
+
+    /**
+     * Restarts the subject warning (if the policy asks for one) for a camera
+     * that was kept running on standby and is now about to be watched again.
+     */
+    public void rearmSubjectWarning() {
+        boolean subjectWarning = SettingsActivity.getPolicy(getContext()).contains(
+                CameraPolicy.POLICY_SUBJECT_WARNING);
+        if (subjectWarning) {
+            mSubjectWarning = new SubjectWarning();
+        }
     }
 
     private static boolean isTorchModeSupported(Camera.Parameters params) {
@@ -108,7 +270,7 @@ public class StreamingHeadlessCamcorder extends HeadlessCamcorder {
             Log.d(TAG, "  size=" + size.width + "x" + size.height);
         }
 
-        params.setPreviewSize(480, 320);
+        params.setPreviewSize(FULL_PREVIEW_WIDTH, FULL_PREVIEW_HEIGHT);
 
         /*
          * The documentation says NV21 is for image, and NV17 is for video, but
@@ -119,33 +281,98 @@ public class StreamingHeadlessCamcorder extends HeadlessCamcorder {
         camera.setParameters(params);
 
         mPreviewFormat = params.getPreviewFormat();
-        mPreviewSize = params.getPreviewSize();
-        mPreviewBitsPerPixel = ImageFormat.getBitsPerPixel(mPreviewFormat);
+        Size previewSize = params.getPreviewSize();
+
+        if (SettingsActivity.getPolicy(getContext()).contains(
+                CameraPolicy.POLICY_SUBJECT_WARNING)) {
+            mPleaseWaitStill = getPleaseWaitStill(getContext(), mStreamConfig,
+                    previewSize.width, previewSize.height, mPreviewFormat);
+        }
 
-        camera.setPreviewCallbackWithBuffer(mPreviewCallback);
+        /* The last parameter round trip outside the control thread. */
+        mCameraControl = new CameraControl(camera, camera.getParameters());
+        findPreviewTiers(previewSize, sizes);
 
-        addCallbackBuffers(camera, 2);
+        /*
+         * Enough to fill the convert queue, plus one being converted and one
+         * for the camera to capture into.
+         */
+        int numCallbackBuffers = mStreamer.getPipelineConfig().convertQueueDepth + 2;
+        mFrameSource = new CameraFrameSource(camera, mCameraControl, mPreviewFormat,
+                previewSize, mStreamConfig.getFrameRate(), numCallbackBuffers);
+
+        mStreamer.start(mFrameSource, mPreviewTiers.size(),
+                new FrameRateController.Listener() {
+                    public void onTierChanged(int tier) {
+                        applyPreviewTier(tier);
+                    }
+                });
+        mFrameSource.start(mFrameListener);
+    }
+
+    /**
+     * Collects the supported preview sizes no larger than, and of the same
+     * aspect ratio as, the full size, largest first.
+     */
+    private void findPreviewTiers(Size fullSize, List<Size> supported) {
+        mPreviewTiers.clear();
+        mPreviewTiers.add(fullSize);
+        for (Size size: supported) {
+            if (size.width < fullSize.width && size.height < fullSize.height &&
+                    size.width * fullSize.height == size.height * fullSize.width) {
+                mPreviewTiers.add(size);
+            }
+        }
+        Collections.sort(mPreviewTiers.subList(1, mPreviewTiers.size()), new Comparator<Size>() {
+            public int compare(Size a, Size b) {
+                return b.width * b.height - a.width * a.height;
+            }
+        });
     }
 
-    private void addCallbackBuffers(Camera camera, int numBuffers) {
-        while (numBuffers-- > 0) {
-            Size size = mPreviewSize;
-            byte[] buf = new FrameBuf(size.width, size.height, mPreviewFormat).getBuffer();
-            camera.addCallbackBuffer(buf);
+    /**
+     * Restarts the preview at the given tier's size. The encoded size is
+     * fixed by the SDP already handed to peers, so a lower tier only saves
+     * capture and conversion work; the converter scales back up.
+     */
+    private void applyPreviewTier(int tier) {
+        CameraFrameSource source = mFrameSource;
+        if (source == null) {
+            return;
+        }
+        Size size = mPreviewTiers.get(Math.min(tier, mPreviewTiers.size() - 1));
+        if (size.equals(source.getPreviewSize())) {
+            return;
         }
+
+        Log.i(TAG, "Switching capture tier to " + size.width + "x" + size.height);
+        sTierChanges.inc();
+        source.setPreviewSize(size);
     }
 
     @Override
     protected void onRecorderStopped(Camera recorder) {
-        for (RtpOutputContext rtpContext: mReceivers) {
-            IOUtils.closeQuietly(rtpContext);
-        }
+        mFirstFrameFuture.setException(new IOException("Camcorder stopped"));
+
+        /*
+         * These must finish before the camera goes away. The control thread
+         * goes first so that a tier change can't re-register the callback.
+         */
+        mCameraControl.quit();
+        mCameraControl = null;
+        mFrameSource.stop();
+        mStreamer.stop();
+        mFrameSource = null;
+
+        /* Nothing will scale again until the next camera session. */
+        SwsScalerCache.getDefault().clear();
     }
 
-    private static synchronized byte[] getPleaseWaitFrame(Context context, Size size, int pixelFormat) {
+    private static synchronized byte[] getPleaseWaitFrame(Context context, int width, int height,
+            int pixelFormat) {
         if (sPleaseWaitFrame == null ||
-                !sPleaseWaitFrame.compatibleWith(size.width, size.height, pixelFormat)) {
-            sPleaseWaitFrame = new FrameBuf(size.width, size.height, pixelFormat);
+                !sPleaseWaitFrame.compatibleWith(width, height, pixelFormat)) {
+            sPleaseWaitFrame = new FrameBuf(width, height, pixelFormat);
             Bitmap source = BitmapFactory.decodeResource(context.getResources(),
                     R.drawable.subject_warning_image);
 
@@ -159,74 +386,112 @@ public class StreamingHeadlessCamcorder extends HeadlessCamcorder {
             SwsScaler.scale(sourceData, SwsScaler.androidBitmapConfigToPixelFormat(source.getConfig()),
                     source.getWidth(), source.getHeight(),
                     destData, SwsScaler.androidImageFormatToPixelFormat(pixelFormat),
-                    size.width, size.height);
+                    width, height);
         }
         return sPleaseWaitFrame.getBuffer();
     }
 
-    private final PreviewCallback mPreviewCallback = new PreviewCallback() {
+    /**
+     * @return The encoded warning image, or null if it could not be encoded,
+     *         in which case the raw image is encoded live instead.
+     */
+    private static synchronized EncodedStill getPleaseWaitStill(Context context,
+            FFStreamConfig streamConfig, int width, int height, int pixelFormat) {
+        if (sPleaseWaitStill == null || sPleaseWaitStillConfig.get() != streamConfig) {
+            sPleaseWaitStill = null;
+            try {
+                sPleaseWaitStill = EncodedStill.encode(streamConfig,
+                        getPleaseWaitFrame(context, width, height, pixelFormat),
+                        pixelFormat, width, height);
+                sPleaseWaitStillConfig = new WeakReference<FFStreamConfig>(streamConfig);
+                Log.d(TAG, "Pre-encoded warning image: keyframe=" +
+                        sPleaseWaitStill.getKeyFrameSize() + " bytes, repeat=" +
+                        sPleaseWaitStill.getRepeatFrameSize() + " bytes");
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unable to pre-encode warning image", e);
+            }
+        }
+        return sPleaseWaitStill;
+    }
+
+    /**
+     * Sits between the camera and the streamer to substitute the warning
+     * image while the subject warning is active; runs on the camera's
+     * preview thread.
+     */
+    private final FrameSource.Listener mFrameListener = new FrameSource.Listener() {
         private boolean mLedOn;
+        private boolean mGotFirstFrame;
 
-        private void setLedOn(Camera camera, boolean ledOn) {
+        /* Never blocks; the control thread does the camera IPC. */
+        private void setLedOn(boolean ledOn) {
             if (mCanDoTorch && ledOn != mLedOn) {
-                Camera.Parameters params = camera.getParameters();
-                params.setFlashMode(ledOn ? Camera.Parameters.FLASH_MODE_TORCH :
-                        Camera.Parameters.FLASH_MODE_OFF);
-                camera.setParameters(params);
+                mCameraControl.setTorch(ledOn);
                 mLedOn = ledOn;
             }
         }
 
-        public void onPreviewFrame(byte[] data, Camera camera) {
-            if (mSubjectWarning != null) {
-                if (!mSubjectWarning.isWarningPeriodActive()) {
-                    setLedOn(camera, false);
-                    mSubjectWarning = null;
+        public void onFrame(byte[] data, int width, int height, long captureNanos) {
+            long ptsUsec = mStreamer.stamp(captureNanos);
+
+            if (!mGotFirstFrame) {
+                mGotFirstFrame = true;
+                long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+                sStartupTime.update(elapsed);
+                Log.i(TAG, "First preview frame " + elapsed + "ms after start");
+                mFirstFrameFuture.set(null);
+            }
+
+            SubjectWarning subjectWarning = mSubjectWarning;
+            if (subjectWarning != null) {
+                if (!subjectWarning.isWarningPeriodActive()) {
+                    setLedOn(false);
+                    mSubjectWarning = subjectWarning = null;
                 } else {
-                    setLedOn(camera, mSubjectWarning.getLedState());
+                    setLedOn(subjectWarning.getLedState());
                 }
             }
-            if (mSubjectWarning != null) {
+            if (subjectWarning != null) {
                 /**
                  * If the subject warning system is active, send a special
                  * "coming soon" type of image to the peer while we give the
                  * subject time to react.
                  */
-                sendFrame(getPleaseWaitFrame(getContext(), mPreviewSize, mPreviewFormat));
+                sendFrame(getPleaseWaitFrame(getContext(), width, height, mPreviewFormat),
+                        null, mPleaseWaitStill, width, height, ptsUsec);
+                mFrameSource.recycleBuffer(data);
             } else {
-                sendFrame(data);
+                sendFrame(data, data, null, width, height, ptsUsec);
             }
-            camera.addCallbackBuffer(data);
         }
 
-        private void sendFrame(byte[] data) {
-            /*
-             * XXX: We're attempting to send out the encoded frames to all
-             * participants as fast as they come in but obviously this doesn't
-             * scale at all. We need to process each participant in its own
-             * thread, using a sort of frame ringbuffer to keep the preview
-             * frames going.
-             */
-            long now = System.nanoTime() / 1000;
-            ArrayList<RtpOutputContext> toRemove = null;
-            for (RtpOutputContext rtpContext: mReceivers) {
-                try {
-                    rtpContext.writeFrame(data, now,
-                            mPreviewFormat, mPreviewSize, mPreviewBitsPerPixel);
-                } catch (IOException e) {
-                    Log.w(TAG, "Error writing to RTP participant: " + rtpContext.getPeer());
-                    IOUtils.closeQuietly(rtpContext);
-                    if (toRemove == null) {
-                        toRemove = new ArrayList<RtpOutputContext>();
-                    }
-                    toRemove.add(rtpContext);
+        /**
+         * @param sourceBuffer Buffer to hand back to the source once the
+         *            frame has been converted, or null if the caller returns
+         *            it itself.
+         * @param still If non-null, sent to the receivers in place of
+         *            <code>data</code>, which then only goes to the frame
+         *            listeners.
+         */
+        private void sendFrame(byte[] data, byte[] sourceBuffer, EncodedStill still,
+                int width, int height, long ptsUsec) {
+            for (int i = 0; i < mFrameListeners.getSlotCount(); i++) {
+                FrameListener listener = mFrameListeners.get(i);
+                if (listener != null) {
+                    listener.onFrame(data, mPreviewFormat, width, height);
                 }
             }
+            mFrameListeners.reclaim();
 
-            if (toRemove != null) {
-                for (int i = 0; i < toRemove.size(); i++) {
-                    mReceivers.remove(toRemove.get(i));
-                }
+            boolean queued;
+            if (still != null) {
+                queued = mStreamer.submitStill(still, ptsUsec);
+            } else {
+                queued = mStreamer.submit(data, sourceBuffer, mPreviewFormat, width, height,
+                        ptsUsec);
+            }
+            if (!queued && sourceBuffer != null) {
+                mFrameSource.recycleBuffer(sourceBuffer);
             }
         }
     };
@@ -239,9 +504,7 @@ public class StreamingHeadlessCamcorder extends HeadlessCamcorder {
         private final byte[] buf;
 
         public FrameBuf(int width, int height, int pixelFormat) {
-            float bytesPerPixel = ImageFormat.getBitsPerPixel(pixelFormat) / 8f;
-            int bufSize = (int)(width * height * bytesPerPixel);
-            buf = new byte[bufSize];
+            buf = new byte[CameraFrameSource.getFrameSize(width, height, pixelFormat)];
 
             this.width = width;
             this.height = height;
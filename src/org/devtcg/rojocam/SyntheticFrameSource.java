@@ -0,0 +1,67 @@
+package org.devtcg.rojocam;
+
+/**
+ * Generates NV21 frames with enough motion to keep the encoder honest: a
+ * scrolling diagonal gradient, a square bouncing across it and slowly
+ * cycling colors. Every frame differs from the last, so unlike a static test
+ * card the encoder can't get away with skipping macroblocks.
+ */
+public class SyntheticFrameSource extends TimedFrameSource {
+    private static final int BOX_SIZE = 48;
+
+    /* Pixels moved per frame. */
+    private static final int SCROLL_SPEED = 3;
+    private static final int BOX_SPEED = 5;
+
+    public SyntheticFrameSource(int width, int height, int frameRate) {
+        super(width, height, frameRate);
+    }
+
+    @Override
+    protected void fill(byte[] frame, long frameIndex) {
+        int width = getWidth();
+        int height = getHeight();
+        int t = (int)frameIndex;
+
+        /* Luma: gradient scrolling to the right and down. */
+        int shift = t * SCROLL_SPEED;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int base = y + shift;
+            for (int x = 0; x < width; x++) {
+                frame[row + x] = (byte)(x + base);
+            }
+        }
+
+        /* Luma: a white box bouncing around the frame. */
+        int boxSize = Math.min(BOX_SIZE, Math.min(width, height));
+        int boxX = bounce(t * BOX_SPEED, width - boxSize);
+        int boxY = bounce(t * BOX_SPEED * 2 / 3, height - boxSize);
+        for (int y = boxY; y < boxY + boxSize; y++) {
+            int row = y * width;
+            for (int x = boxX; x < boxX + boxSize; x++) {
+                frame[row + x] = (byte)235;
+            }
+        }
+
+        /* Chroma, interleaved V then U at quarter resolution: one hue per frame. */
+        double phase = t * 2 * Math.PI / 150;
+        byte v = (byte)(128 + 64 * Math.sin(phase));
+        byte u = (byte)(128 + 64 * Math.cos(phase));
+        int chromaStart = width * height;
+        int chromaEnd = chromaStart + width * height / 2;
+        for (int i = chromaStart; i < chromaEnd; i += 2) {
+            frame[i] = v;
+            frame[i + 1] = u;
+        }
+    }
+
+    /* Position bouncing back and forth between 0 and range. */
+    private static int bounce(int distance, int range) {
+        if (range <= 0) {
+            return 0;
+        }
+        int pos = distance % (2 * range);
+        return pos <= range ? pos : 2 * range - pos;
+    }
+}
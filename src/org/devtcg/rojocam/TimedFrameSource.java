@@ -0,0 +1,167 @@
+package org.devtcg.rojocam;
+
+import org.devtcg.rojocam.util.Metrics;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base for sources that produce NV21 frames themselves rather than capture
+ * them, paced to a fixed frame rate on a thread of their own. Like the
+ * camera, a frame is dropped when no buffer is free to put it in.
+ */
+public abstract class TimedFrameSource implements FrameSource {
+    private static final String TAG = TimedFrameSource.class.getSimpleName();
+
+    /* android.graphics.ImageFormat.NV21, spelled out so that this runs off-device. */
+    public static final int NV21 = 0x11;
+
+    /* As many buffers as the camera is given: see StreamingHeadlessCamcorder. */
+    private static final int DEFAULT_BUFFER_COUNT = EncoderPipeline.Config.DEFAULT_QUEUE_DEPTH + 2;
+
+    private static final Metrics.Counter sDropped = Metrics.counter("source.dropped_no_buffer");
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final int mFrameSize;
+
+    private final ConcurrentLinkedQueue<byte[]> mFreeBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    protected TimedFrameSource(int width, int height, int frameRate) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Bad frame size " + width + "x" + height);
+        }
+        if (frameRate < 1) {
+            throw new IllegalArgumentException("frameRate must be positive");
+        }
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mFrameSize = getFrameSize(width, height);
+        for (int i = 0; i < DEFAULT_BUFFER_COUNT; i++) {
+            mFreeBuffers.add(new byte[mFrameSize]);
+        }
+    }
+
+    /** Size in bytes of an NV21 frame. */
+    public static int getFrameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    public int getFormat() {
+        return NV21;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Produces frame number <code>frameIndex</code>, on the source's thread.
+     */
+    protected abstract void fill(byte[] frame, long frameIndex) throws IOException;
+
+    /**
+     * Called on the source's thread as it exits, to release anything
+     * {@link #fill} used.
+     */
+    protected void onStopped() {
+    }
+
+    public synchronized void start(final Listener listener) {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mThread = new Thread(TAG + "-" + getClass().getSimpleName()) {
+            public void run() {
+                try {
+                    generate(listener);
+                } catch (IOException e) {
+                    Log.e(TAG, "Frame source failed", e);
+                } finally {
+                    onStopped();
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    private void generate(Listener listener) throws IOException {
+        long intervalNanos = 1000000000L / mFrameRate;
+        long nextNanos = System.nanoTime();
+        long frameIndex = 0;
+
+        while (!mStopped) {
+            long delay = nextNanos - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(this, delay);
+                continue;
+            }
+
+            long captureNanos = System.nanoTime();
+            byte[] buffer = mFreeBuffers.poll();
+            if (buffer != null) {
+                fill(buffer, frameIndex);
+                listener.onFrame(buffer, mWidth, mHeight, captureNanos);
+            } else {
+                sDropped.inc();
+            }
+            frameIndex++;
+
+            /* Like a camera, don't try to catch up after a stall. */
+            nextNanos += intervalNanos;
+            if (captureNanos - nextNanos > intervalNanos) {
+                nextNanos = captureNanos + intervalNanos;
+            }
+        }
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (mStopped) {
+            return;
+        }
+        mStopped = true;
+        if (thread == null) {
+            onStopped();
+            return;
+        }
+        LockSupport.unpark(thread);
+
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void recycleBuffer(byte[] buffer) {
+        if (buffer.length == mFrameSize) {
+            mFreeBuffers.add(buffer);
+        }
+    }
+}
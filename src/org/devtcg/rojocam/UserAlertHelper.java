@@ -49,17 +49,7 @@ public class UserAlertHelper {
                 case STREAMING:
                     setNotification(state);
                     if (state == CamcorderNodeService.State.STREAMING) {
-                        EnumSet<CameraPolicy> policies = SettingsActivity.getPolicy(getContext());
-
-                        if (policies.contains(CameraPolicy.POLICY_SUBJECT_WARNING)) {
-                            /*
-                             * Play an alert sound and although we don't control the
-                             * code here directly, we'll also flash the Camera LED
-                             * to warn the recipient that they are about to be
-                             * recorded.
-                             */
-                            playAlertSound();
-                        }
+                        alertSubject();
                     }
                     break;
                 case DEACTIVE:
@@ -71,6 +61,24 @@ public class UserAlertHelper {
         }
     }
 
+    /**
+     * Warns the camera subject that they are about to be recorded, if the
+     * policy asks for it. Called on entering the streaming state, and again
+     * when a camera kept on standby is picked up by a new viewer.
+     */
+    public void alertSubject() {
+        EnumSet<CameraPolicy> policies = SettingsActivity.getPolicy(getContext());
+
+        if (policies.contains(CameraPolicy.POLICY_SUBJECT_WARNING)) {
+            /*
+             * Play an alert sound and although we don't control the code here
+             * directly, we'll also flash the Camera LED to warn the recipient
+             * that they are about to be recorded.
+             */
+            playAlertSound();
+        }
+    }
+
     private void setNotification(CamcorderNodeService.State state) {
         boolean isStreaming = state == CamcorderNodeService.State.STREAMING;
 
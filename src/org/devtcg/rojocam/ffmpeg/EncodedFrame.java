@@ -0,0 +1,38 @@
+package org.devtcg.rojocam.ffmpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single compressed video frame as produced by {@link VideoEncoder}.
+ * <p>
+ * Instances and their data buffer are owned and reused by the encoder, so
+ * they are valid only for the duration of the
+ * {@link EncodedFrameReceiver#onEncodedFrame} call. Receivers which need the
+ * data later must copy it.
+ */
+public class EncodedFrame {
+    /** Direct buffer holding the encoded bytes from position 0 to size. */
+    public final ByteBuffer data;
+    public int size;
+
+    /** Presentation time in microseconds. */
+    public long ptsUsec;
+
+    /** Time since the previous encoded frame, in microseconds. */
+    public long durationUsec;
+
+    public boolean keyFrame;
+
+    EncodedFrame(ByteBuffer data) {
+        this.data = data;
+    }
+
+    /**
+     * Copies the encoded bytes into <code>dst</code> at the given offset.
+     */
+    public void copyTo(byte[] dst, int offset) {
+        ByteBuffer src = data.duplicate();
+        src.position(0);
+        src.get(dst, offset, size);
+    }
+}
@@ -0,0 +1,20 @@
+package org.devtcg.rojocam.ffmpeg;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Consumer of the shared encoded stream. A single {@link VideoEncoder} feeds
+ * every receiver so that RTP peers and HTTP viewers never cause the same
+ * picture to be encoded twice.
+ */
+public interface EncodedFrameReceiver extends Closeable {
+    /**
+     * Invoked on the encoding thread for each encoded frame. See
+     * {@link EncodedFrame} for the lifetime of the frame's data.
+     *
+     * @throws IOException If the receiver is no longer able to accept frames,
+     *             in which case it will be closed and removed.
+     */
+    public void onEncodedFrame(EncodedFrame frame) throws IOException;
+}
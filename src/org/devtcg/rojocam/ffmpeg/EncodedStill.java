@@ -0,0 +1,86 @@
+package org.devtcg.rojocam.ffmpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A still image encoded once and replayed as many times as needed: a
+ * keyframe, plus a repeat frame that predicts everything from the keyframe
+ * and so carries next to nothing. Sending the keyframe followed by repeat
+ * frames shows the image for as long as desired without touching the encoder
+ * again.
+ * <p>
+ * The frames are produced with a private codec context (see
+ * {@link VideoEncoder#VideoEncoder(FFStreamConfig, boolean)}), so they fit
+ * the config's stream but leave the shared encoder's state alone. The shared
+ * encoder must emit a keyframe when it takes over again.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class EncodedStill {
+    private final byte[] mKeyFrame;
+    private final byte[] mRepeatFrame;
+
+    private EncodedStill(byte[] keyFrame, byte[] repeatFrame) {
+        mKeyFrame = keyFrame;
+        mRepeatFrame = repeatFrame;
+    }
+
+    /**
+     * Encodes a raw image for the given stream.
+     */
+    public static EncodedStill encode(FFStreamConfig streamConfig, byte[] data,
+            int frameFormat, int frameWidth, int frameHeight) {
+        VideoEncoder encoder = new VideoEncoder(streamConfig, true);
+        try {
+            /*
+             * The second picture is identical to the first, so the codec
+             * codes it as a P-frame of skipped macroblocks.
+             */
+            EncodedFrame frame = encoder.encode(data, 0, frameFormat, frameWidth, frameHeight);
+            byte[] keyFrame = copy(frame);
+            frame = encoder.encode(data, 1000000 / streamConfig.getFrameRate(), frameFormat,
+                    frameWidth, frameHeight);
+            byte[] repeatFrame = copy(frame);
+            if (keyFrame == null || repeatFrame == null) {
+                throw new IllegalStateException("Codec buffered the still image");
+            }
+            return new EncodedStill(keyFrame, repeatFrame);
+        } finally {
+            encoder.close();
+        }
+    }
+
+    private static byte[] copy(EncodedFrame frame) {
+        if (frame == null) {
+            return null;
+        }
+        byte[] bytes = new byte[frame.size];
+        frame.copyTo(bytes, 0);
+        return bytes;
+    }
+
+    public int getKeyFrameSize() {
+        return mKeyFrame.length;
+    }
+
+    public int getRepeatFrameSize() {
+        return mRepeatFrame.length;
+    }
+
+    /**
+     * Fills <code>out</code> with one replayed frame.
+     *
+     * @param keyFrame Whether to send the keyframe or the repeat frame. A
+     *            repeat frame is only valid after the keyframe has been sent.
+     */
+    public void fill(EncodedFrame out, boolean keyFrame, long ptsUsec, long durationUsec) {
+        byte[] src = keyFrame ? mKeyFrame : mRepeatFrame;
+        ByteBuffer dst = out.data.duplicate();
+        dst.clear();
+        dst.put(src);
+        out.size = src.length;
+        out.keyFrame = keyFrame;
+        out.ptsUsec = ptsUsec;
+        out.durationUsec = durationUsec;
+    }
+}
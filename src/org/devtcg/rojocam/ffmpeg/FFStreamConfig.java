@@ -1,45 +1,134 @@
 package org.devtcg.rojocam.ffmpeg;
 
+import org.devtcg.rojocam.util.MediaClock;
+
 /**
  * Configuration for the output stream to be sent over RTP. This describes the
  * streams/codecs themselves as the output format is of course RTP.
  */
-public class FFStreamConfig {
-    private final int mNativeInt;
+public class FFStreamConfig extends NativeHandle {
+    private static final Destroyer DESTROYER = new Destroyer() {
+        public void destroy(long handle) {
+            nativeDestroy(handle);
+        }
+    };
+
+    /** Slice threading stops paying off beyond this on the devices we target. */
+    private static final int MAX_ENCODER_THREADS = 4;
 
     /**
      * Create the "default" stream configuration. The actual configuration for
      * this is held at the native layer for now but should be brought up to the
      * Java layer for maintenance.
+     * <p>
+     * The encoder uses one slice thread per CPU core, up to
+     * {@link #MAX_ENCODER_THREADS}.
      */
     public static FFStreamConfig createDefault() {
-        return new FFStreamConfig();
+        return createDefault(Math.min(Runtime.getRuntime().availableProcessors(),
+                MAX_ENCODER_THREADS));
+    }
+
+    /**
+     * Create the default stream configuration, encoding each picture as
+     * <code>encoderThreads</code> slices in parallel. A value of 1 encodes on
+     * the calling thread only.
+     */
+    public static FFStreamConfig createDefault(int encoderThreads) {
+        if (encoderThreads < 1) {
+            throw new IllegalArgumentException("encoderThreads must be positive");
+        }
+        return new FFStreamConfig(encoderThreads);
+    }
+
+    private volatile boolean mFecEnabled = true;
+    private volatile boolean mEarlyKeyFrameEnabled = true;
+
+    private final MediaClock mMediaClock;
+
+    private FFStreamConfig(int encoderThreads) {
+        super(nativeCreate(encoderThreads), DESTROYER);
+        mMediaClock = new MediaClock(getFrameRate());
+    }
+
+    /**
+     * Returns the clock that stamps every frame encoded with this config's
+     * codec context. It outlives any one capture session, since the context
+     * refuses timestamps that go backwards.
+     */
+    public MediaClock getMediaClock() {
+        return mMediaClock;
     }
 
-    private FFStreamConfig() {
-        mNativeInt = nativeCreate();
+    /**
+     * Number of threads the encoder actually uses, which may be fewer than
+     * requested if threading is unavailable.
+     */
+    public int getEncoderThreadCount() {
+        return nativeGetEncoderThreadCount(handle());
     }
 
     public String getSDPDescription() {
-        return nativeGetSDPDescription(mNativeInt);
+        return nativeGetSDPDescription(handle());
     }
 
-    int nativeInt() {
-        return mNativeInt;
+    /**
+     * Whether RTP peers are offered FEC (sent only to those reporting
+     * loss). Read when the stream is described and when streaming starts.
+     */
+    public boolean isFecEnabled() {
+        return mFecEnabled;
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            nativeDestroy(mNativeInt);
-        } finally {
-            super.finalize();
-        }
+    public void setFecEnabled(boolean enabled) {
+        mFecEnabled = enabled;
+    }
+
+    /**
+     * Whether an RTP peer that had to skip ahead to the next keyframe asks
+     * for it early, at the cost of a keyframe for every peer. Read when
+     * streaming starts.
+     */
+    public boolean isEarlyKeyFrameEnabled() {
+        return mEarlyKeyFrameEnabled;
+    }
+
+    public void setEarlyKeyFrameEnabled(boolean enabled) {
+        mEarlyKeyFrameEnabled = enabled;
+    }
+
+    public int getVideoWidth() {
+        return nativeGetVideoWidth(handle());
+    }
+
+    public int getVideoHeight() {
+        return nativeGetVideoHeight(handle());
+    }
+
+    /**
+     * Frame rate the codec was configured for, in frames per second (the
+     * inverse of its time base).
+     */
+    public int getFrameRate() {
+        return nativeGetFrameRate(handle());
+    }
+
+    /**
+     * Returns the codec's global header (for MPEG-4, the VOL header), as
+     * needed by container formats which carry it out-of-band.
+     */
+    public byte[] getVideoExtradata() {
+        return nativeGetVideoExtradata(handle());
     }
 
-    private static native int nativeCreate();
-    private static native String nativeGetSDPDescription(int nativeInt);
-    private static native void nativeDestroy(int nativeInt);
+    private static native long nativeCreate(int threadCount);
+    private static native int nativeGetEncoderThreadCount(long handle);
+    private static native String nativeGetSDPDescription(long handle);
+    private static native int nativeGetVideoWidth(long handle);
+    private static native int nativeGetVideoHeight(long handle);
+    private static native int nativeGetFrameRate(long handle);
+    private static native byte[] nativeGetVideoExtradata(long handle);
+    private static native void nativeDestroy(long handle);
 
     static {
         System.loadLibrary("ffmpeg-jni");
@@ -0,0 +1,190 @@
+package org.devtcg.rojocam.ffmpeg;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Base for Java objects owning a native allocation. The pointer is held as a
+ * <code>long</code> so it survives 64-bit ABIs.
+ * <p>
+ * Handles are reference counted: the creator holds the first reference,
+ * anyone sharing the object (for example, every {@link VideoEncoder}
+ * built from one {@link FFStreamConfig}) takes another with {@link #retain()},
+ * and each reference is given up with {@link #close()}. The native memory is
+ * freed when the last one goes.
+ * <p>
+ * No finalizers are involved. Instead, a phantom reference watches every
+ * handle, and a cleaner thread reports (and frees) any that are garbage
+ * collected without having been closed. With
+ * {@link #setLeakTrackingEnabled(boolean)} the report includes the stack
+ * trace of the allocation.
+ */
+public abstract class NativeHandle implements Closeable {
+    private static final String TAG = NativeHandle.class.getSimpleName();
+
+    /** Frees a native allocation. Must not refer back to the Java object. */
+    protected interface Destroyer {
+        public void destroy(long handle);
+    }
+
+    private static volatile boolean sLeakTracking;
+
+    private static final ReferenceQueue<NativeHandle> sQueue = new ReferenceQueue<NativeHandle>();
+    private static final Set<LeakRef> sLive = Collections.synchronizedSet(new HashSet<LeakRef>());
+    private static Thread sCleaner;
+
+    private final long mHandle;
+    private final LeakRef mLeakRef;
+
+    /* Guarded by this. */
+    private int mRefCount = 1;
+
+    /**
+     * @param handle Native pointer, already allocated. Must not be zero.
+     * @param destroyer Frees the pointer once the last reference is closed
+     *            (or the object leaks).
+     */
+    protected NativeHandle(long handle, Destroyer destroyer) {
+        if (handle == 0) {
+            throw new IllegalArgumentException("Null native handle");
+        }
+        mHandle = handle;
+        mLeakRef = new LeakRef(this, handle, destroyer,
+                sLeakTracking ? new Throwable("Allocation site") : null);
+        sLive.add(mLeakRef);
+        ensureCleanerStarted();
+    }
+
+    /**
+     * Records the allocation site of every handle created from now on, so
+     * that leak reports say where the leaked object came from. Costly; meant
+     * for debug builds.
+     */
+    public static void setLeakTrackingEnabled(boolean enabled) {
+        sLeakTracking = enabled;
+    }
+
+    /**
+     * Returns the native pointer.
+     *
+     * @throws IllegalStateException if the last reference was closed.
+     */
+    protected final long handle() throws IllegalStateException {
+        synchronized (this) {
+            if (mRefCount == 0) {
+                throw new IllegalStateException("This instance is already closed");
+            }
+        }
+        return mHandle;
+    }
+
+    public synchronized boolean isClosed() {
+        return mRefCount == 0;
+    }
+
+    /**
+     * Takes another reference, to be given up by a matching {@link #close()}.
+     *
+     * @return This object, for convenience.
+     */
+    public synchronized NativeHandle retain() {
+        if (mRefCount == 0) {
+            throw new IllegalStateException("This instance is already closed");
+        }
+        mRefCount++;
+        return this;
+    }
+
+    /**
+     * Gives up one reference, freeing the native allocation if it was the
+     * last.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mRefCount == 0) {
+                return;
+            }
+            if (--mRefCount > 0) {
+                return;
+            }
+        }
+        mLeakRef.destroy();
+        onDestroyed();
+    }
+
+    /**
+     * Invoked after the native allocation has been freed by an explicit
+     * close, for releasing handles this object retained in turn.
+     */
+    protected void onDestroyed() {
+    }
+
+    private static synchronized void ensureCleanerStarted() {
+        if (sCleaner == null) {
+            sCleaner = new Thread("NativeHandleCleaner") {
+                public void run() {
+                    while (true) {
+                        try {
+                            ((LeakRef)sQueue.remove()).reportLeak();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                }
+            };
+            sCleaner.setDaemon(true);
+            sCleaner.start();
+        }
+    }
+
+    private static class LeakRef extends PhantomReference<NativeHandle> {
+        private final String mClassName;
+        private final long mHandle;
+        private final Destroyer mDestroyer;
+        private final Throwable mAllocationSite;
+
+        /* Guarded by this. */
+        private boolean mDestroyed;
+
+        public LeakRef(NativeHandle referent, long handle, Destroyer destroyer,
+                Throwable allocationSite) {
+            super(referent, sQueue);
+            mClassName = referent.getClass().getSimpleName();
+            mHandle = handle;
+            mDestroyer = destroyer;
+            mAllocationSite = allocationSite;
+        }
+
+        public void destroy() {
+            synchronized (this) {
+                if (mDestroyed) {
+                    return;
+                }
+                mDestroyed = true;
+            }
+            sLive.remove(this);
+            clear();
+            mDestroyer.destroy(mHandle);
+        }
+
+        public void reportLeak() {
+            synchronized (this) {
+                if (mDestroyed) {
+                    return;
+                }
+            }
+            if (mAllocationSite != null) {
+                Log.w(TAG, "Leaked " + mClassName + " detected!", mAllocationSite);
+            } else {
+                Log.w(TAG, "Leaked " + mClassName + " detected! Enable leak tracking " +
+                        "to find where it was allocated.");
+            }
+            destroy();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.devtcg.rojocam.ffmpeg;
+
+/**
+ * Native picture buffer in a {@link VideoEncoder}'s codec format and
+ * geometry, holding a converted camera frame between
+ * {@link VideoEncoder#convert} and {@link VideoEncoder#encode(Picture, long,
+ * EncodedFrame)}. Created with {@link VideoEncoder#newPicture()}; only valid
+ * with the encoder that created it.
+ */
+public class Picture extends NativeHandle {
+    private static final Destroyer DESTROYER = new Destroyer() {
+        public void destroy(long handle) {
+            nativeDestroy(handle);
+        }
+    };
+
+    Picture(long handle) {
+        super(handle, DESTROYER);
+    }
+
+    long getHandle() {
+        return handle();
+    }
+
+    private static native void nativeDestroy(long handle);
+
+    static {
+        System.loadLibrary("ffmpeg-jni");
+    }
+}
@@ -6,43 +6,55 @@ import android.graphics.ImageFormat;
 /**
  * Provides limited access to libswscale. Eventually we should extend this API
  * and then handle the resampling and encoding logic in Java.
+ * <p>
+ * Setting up a scaling context is expensive, so callers scaling more than once
+ * should go through {@link SwsScalerCache} rather than creating instances
+ * directly. Instances must be closed to release their native context.
  */
-public class SwsScaler {
+public class SwsScaler extends NativeHandle {
     /* XXX: These constants must match libswscale/swscale.h */
-    private static final int SWS_FAST_BILINEAR = 1;
-    private static final int SWS_BILINEAR = 2;
-    private static final int SWS_BICUBIC = 4;
+    public static final int SWS_FAST_BILINEAR = 1;
+    public static final int SWS_BILINEAR = 2;
+    public static final int SWS_BICUBIC = 4;
 
-    private final int mNativeInt;
+    private static final Destroyer DESTROYER = new Destroyer() {
+        public void destroy(long handle) {
+            nativeDestroy(handle);
+        }
+    };
 
+    /**
+     * Scales a single image using a context borrowed from
+     * {@link SwsScalerCache#getDefault()}.
+     */
     public static void scale(
             byte[] srcData, int srcFFmpegPixelFormat, int srcWidth, int srcHeight,
             byte[] dstData, int dstFFmpegPixelFormat, int dstWidth, int dstHeight) {
-        SwsScaler scaler = new SwsScaler(srcFFmpegPixelFormat, srcWidth, srcHeight,
+        SwsScalerCache.Handle handle = SwsScalerCache.getDefault().acquire(
+                srcFFmpegPixelFormat, srcWidth, srcHeight,
                 dstFFmpegPixelFormat, dstWidth, dstHeight, SWS_BICUBIC);
-        nativeScale(scaler.nativeInt(), srcData, dstData);
+        try {
+            handle.getScaler().scale(srcData, dstData);
+        } finally {
+            handle.close();
+        }
     }
 
     public SwsScaler(
             int srcFFmpegPixelFormat, int srcWidth, int srcHeight,
             int dstFFmpegPixelFormat, int dstWidth, int dstHeight,
             int flags) {
-        mNativeInt = nativeCreate(
+        super(nativeCreate(
                 srcFFmpegPixelFormat, srcWidth, srcHeight,
-                dstFFmpegPixelFormat, dstWidth, dstHeight, flags);
+                dstFFmpegPixelFormat, dstWidth, dstHeight, flags), DESTROYER);
     }
 
-    private int nativeInt() {
-        return mNativeInt;
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            nativeDestroy(mNativeInt);
-        } finally {
-            super.finalize();
-        }
+    /**
+     * Scale and convert one image. The buffers must be large enough for the
+     * formats and dimensions this scaler was created with.
+     */
+    public void scale(byte[] srcData, byte[] dstData) {
+        nativeScale(handle(), srcData, dstData);
     }
 
     public static int androidBitmapConfigToPixelFormat(Bitmap.Config config) {
@@ -62,11 +74,11 @@ public class SwsScaler {
         }
     }
 
-    private static native int nativeCreate(
+    private static native long nativeCreate(
             int srcFFmpegPixelFormat, int srcWidth, int srcHeight,
             int dstFFmpegPixelFormat, int dstWidth, int dstHeight, int flags);
-    private static native void nativeScale(int nativeInt, byte[] srcData, byte[] dstData);
-    private static native void nativeDestroy(int nativeInt);
+    private static native void nativeScale(long handle, byte[] srcData, byte[] dstData);
+    private static native void nativeDestroy(long handle);
 
     private static native int nativePixFmtRGBA();
     private static native int nativePixFmtRGB565BE();
@@ -0,0 +1,190 @@
+package org.devtcg.rojocam.ffmpeg;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of initialized {@link SwsScaler} contexts, keyed by source
+ * and destination format, size and flags.
+ * <p>
+ * A scaling context may only be used by one thread at a time, so contexts are
+ * checked out with {@link #acquire} and returned when the {@link Handle} is
+ * closed. Concurrent users of the same key each get their own context; only
+ * one per key is kept once they are returned. Contexts evicted or displaced
+ * are closed immediately rather than left to the garbage collector.
+ */
+public class SwsScalerCache {
+    private static final int DEFAULT_MAX_SIZE = 4;
+
+    private static SwsScalerCache sDefault;
+
+    private final int mMaxSize;
+
+    /* Idle contexts in access order. Guarded by this. */
+    private final LinkedHashMap<Key, SwsScaler> mIdle =
+            new LinkedHashMap<Key, SwsScaler>(16, 0.75f, true);
+
+    private int mHits;
+    private int mMisses;
+
+    public static synchronized SwsScalerCache getDefault() {
+        if (sDefault == null) {
+            sDefault = new SwsScalerCache(DEFAULT_MAX_SIZE);
+        }
+        return sDefault;
+    }
+
+    public SwsScalerCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Checks out a scaling context for the given conversion, creating one
+     * only if no idle context matches.
+     */
+    public Handle acquire(
+            int srcFFmpegPixelFormat, int srcWidth, int srcHeight,
+            int dstFFmpegPixelFormat, int dstWidth, int dstHeight,
+            int flags) {
+        Key key = new Key(srcFFmpegPixelFormat, srcWidth, srcHeight,
+                dstFFmpegPixelFormat, dstWidth, dstHeight, flags);
+        SwsScaler scaler;
+        synchronized (this) {
+            scaler = mIdle.remove(key);
+            if (scaler != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        if (scaler == null) {
+            scaler = new SwsScaler(srcFFmpegPixelFormat, srcWidth, srcHeight,
+                    dstFFmpegPixelFormat, dstWidth, dstHeight, flags);
+        }
+        return new Handle(key, scaler);
+    }
+
+    private void checkIn(Key key, SwsScaler scaler) {
+        SwsScaler toClose = null;
+        SwsScaler evicted = null;
+        synchronized (this) {
+            if (mIdle.containsKey(key)) {
+                toClose = scaler;
+            } else {
+                mIdle.put(key, scaler);
+                if (mIdle.size() > mMaxSize) {
+                    Iterator<Map.Entry<Key, SwsScaler>> eldest = mIdle.entrySet().iterator();
+                    evicted = eldest.next().getValue();
+                    eldest.remove();
+                }
+            }
+        }
+        if (toClose != null) {
+            toClose.close();
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * Closes all idle contexts. Contexts currently checked out are closed as
+     * usual when their handles are.
+     */
+    public void clear() {
+        SwsScaler[] idle;
+        synchronized (this) {
+            idle = mIdle.values().toArray(new SwsScaler[mIdle.size()]);
+            mIdle.clear();
+        }
+        for (SwsScaler scaler: idle) {
+            scaler.close();
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Exclusive use of a cached scaling context. Closing the handle returns
+     * the context to the cache; the scaler must not be used afterwards.
+     */
+    public class Handle implements Closeable {
+        private final Key mKey;
+        private SwsScaler mScaler;
+
+        private Handle(Key key, SwsScaler scaler) {
+            mKey = key;
+            mScaler = scaler;
+        }
+
+        public SwsScaler getScaler() {
+            if (mScaler == null) {
+                throw new IllegalStateException("This handle is already closed");
+            }
+            return mScaler;
+        }
+
+        public void close() {
+            if (mScaler != null) {
+                checkIn(mKey, mScaler);
+                mScaler = null;
+            }
+        }
+    }
+
+    private static class Key {
+        private final int srcFormat;
+        private final int srcWidth;
+        private final int srcHeight;
+        private final int dstFormat;
+        private final int dstWidth;
+        private final int dstHeight;
+        private final int flags;
+
+        public Key(int srcFormat, int srcWidth, int srcHeight,
+                int dstFormat, int dstWidth, int dstHeight, int flags) {
+            this.srcFormat = srcFormat;
+            this.srcWidth = srcWidth;
+            this.srcHeight = srcHeight;
+            this.dstFormat = dstFormat;
+            this.dstWidth = dstWidth;
+            this.dstHeight = dstHeight;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return srcFormat == other.srcFormat && srcWidth == other.srcWidth &&
+                    srcHeight == other.srcHeight && dstFormat == other.dstFormat &&
+                    dstWidth == other.dstWidth && dstHeight == other.dstHeight &&
+                    flags == other.flags;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = srcFormat;
+            result = 31 * result + srcWidth;
+            result = 31 * result + srcHeight;
+            result = 31 * result + dstFormat;
+            result = 31 * result + dstWidth;
+            result = 31 * result + dstHeight;
+            result = 31 * result + flags;
+            return result;
+        }
+    }
+}
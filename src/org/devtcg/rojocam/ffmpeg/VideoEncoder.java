@@ -0,0 +1,146 @@
+package org.devtcg.rojocam.ffmpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts raw camera frames and encodes them with the codec described by an
+ * {@link FFStreamConfig}. The encoder operates directly on the config's codec
+ * context, so at most one encoder should exist per config at a time.
+ * <p>
+ * Conversion and encoding can be run as separate steps through a
+ * {@link Picture}, so that one frame can be converted while the previous one
+ * encodes. {@link #convert} and {@link #encode(Picture, long, EncodedFrame)}
+ * may then be called concurrently, but each from only one thread at a time.
+ * The one-shot {@link #encode(byte[], long, int, int, int)} uses both halves
+ * and must not overlap with either.
+ */
+public class VideoEncoder extends NativeHandle {
+    /* Matches the size of the encode buffer we used to keep per RTP peer. */
+    private static final int MAX_ENCODED_FRAME_SIZE = 200000;
+
+    private static final Destroyer DESTROYER = new Destroyer() {
+        public void destroy(long handle) {
+            nativeDestroy(handle);
+        }
+    };
+
+    private final FFStreamConfig mStreamConfig;
+
+    private final EncodedFrame mFrame =
+            new EncodedFrame(ByteBuffer.allocateDirect(MAX_ENCODED_FRAME_SIZE));
+
+    public VideoEncoder(FFStreamConfig streamConfig) {
+        this(streamConfig, false);
+    }
+
+    /**
+     * @param privateCodec If true, encode with a codec context of our own,
+     *            opened with the same parameters as the config's, rather than
+     *            with the config's context. Its output can be spliced into the
+     *            config's stream without disturbing the shared encoder.
+     */
+    public VideoEncoder(FFStreamConfig streamConfig, boolean privateCodec) {
+        super(nativeCreate(streamConfig.handle(), privateCodec), DESTROYER);
+        mStreamConfig = streamConfig;
+        streamConfig.retain();
+    }
+
+    public FFStreamConfig getStreamConfig() {
+        return mStreamConfig;
+    }
+
+    /**
+     * Allocates a picture to convert frames into. The caller owns it and must
+     * close it.
+     */
+    public Picture newPicture() {
+        return new Picture(nativeCreatePicture(handle()));
+    }
+
+    /**
+     * Allocates an output frame for
+     * {@link #encode(Picture, long, EncodedFrame)}, for callers that need
+     * more than one encoded frame alive at once.
+     */
+    public static EncodedFrame newEncodedFrame() {
+        return new EncodedFrame(ByteBuffer.allocateDirect(MAX_ENCODED_FRAME_SIZE));
+    }
+
+    /**
+     * Converts a raw frame into the codec's pixel format and size.
+     */
+    public void convert(byte[] data, int frameFormat, int frameWidth, int frameHeight,
+            Picture dst) {
+        nativeConvert(handle(), data, frameFormat, frameWidth, frameHeight, dst.getHandle());
+    }
+
+    /**
+     * Encodes a picture filled by {@link #convert}.
+     *
+     * @param out Receives the encoded frame.
+     * @return False if the codec buffered the picture and has nothing to emit
+     *         yet, in which case <code>out</code> is left with a size of 0.
+     */
+    public boolean encode(Picture src, long usecTime, EncodedFrame out) {
+        long handle = handle();
+        int size = nativeEncodePicture(handle, src.getHandle(), usecTime, out.data);
+        return fillFrame(handle, size, out);
+    }
+
+    /**
+     * Makes the next encoded picture a keyframe, for instance because the
+     * receivers were last fed frames from somewhere else.
+     */
+    public void requestKeyFrame() {
+        nativeRequestKeyFrame(handle());
+    }
+
+    /**
+     * Encode a raw frame.
+     *
+     * @return The encoded frame (reused on every call), or null if the codec
+     *         buffered the picture and has nothing to emit yet.
+     */
+    public EncodedFrame encode(byte[] data, long usecTime, int frameFormat, int frameWidth,
+            int frameHeight) {
+        long handle = handle();
+        int size = nativeEncode(handle, data, usecTime, frameFormat,
+                frameWidth, frameHeight, mFrame.data);
+        return fillFrame(handle, size, mFrame) ? mFrame : null;
+    }
+
+    private static boolean fillFrame(long handle, int size, EncodedFrame frame) {
+        if (size <= 0) {
+            frame.size = 0;
+            return false;
+        }
+        frame.size = size;
+        frame.ptsUsec = nativeGetPts(handle);
+        frame.durationUsec = nativeGetDuration(handle);
+        frame.keyFrame = nativeIsKeyFrame(handle);
+        return true;
+    }
+
+    @Override
+    protected void onDestroyed() {
+        mStreamConfig.close();
+    }
+
+    private static native long nativeCreate(long streamConfigHandle, boolean privateCodec);
+    private static native int nativeEncode(long handle, byte[] data, long frameTimeInUsec,
+            int frameFormat, int frameWidth, int frameHeight, ByteBuffer outBuf);
+    private static native long nativeCreatePicture(long handle);
+    private static native void nativeConvert(long handle, byte[] data, int frameFormat,
+            int frameWidth, int frameHeight, long pictureHandle);
+    private static native int nativeEncodePicture(long handle, long pictureHandle,
+            long frameTimeInUsec, ByteBuffer outBuf);
+    private static native void nativeRequestKeyFrame(long handle);
+    private static native long nativeGetPts(long handle);
+    private static native long nativeGetDuration(long handle);
+    private static native boolean nativeIsKeyFrame(long handle);
+    private static native void nativeDestroy(long handle);
+
+    static {
+        System.loadLibrary("ffmpeg-jni");
+    }
+}
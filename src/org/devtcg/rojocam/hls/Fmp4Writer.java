@@ -0,0 +1,402 @@
+package org.devtcg.rojocam.hls;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Minimal ISO BMFF (fragmented MP4) writer supporting exactly what we need
+ * for HLS: a single MPEG-4 Visual video track, an initialization segment and
+ * a stream of moof/mdat fragments.
+ * <p>
+ * See ISO/IEC 14496-12 and 14496-14 for the box layouts.
+ */
+class Fmp4Writer {
+    /** Media timescale; matches the RTP clock so timestamps line up. */
+    public static final int TIMESCALE = 90000;
+
+    private static final int TRACK_ID = 1;
+
+    /* ISO/IEC 14496-1 object type for MPEG-4 Visual. */
+    private static final int OBJECT_TYPE_MPEG4_VISUAL = 0x20;
+    private static final int STREAM_TYPE_VISUAL = 0x04;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    /* moof, mfhd, traf, tfhd, tfdt, trun (without samples) and mdat headers. */
+    private static final int FRAGMENT_OVERHEAD = 8 + 16 + 8 + 16 + 20 + 20 + 8;
+
+    private static final int[] UNITY_MATRIX = {
+        0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000
+    };
+
+    private final byte[] mExtradata;
+    private final int mWidth;
+    private final int mHeight;
+
+    private int mFragmentSequence;
+
+    public Fmp4Writer(byte[] extradata, int width, int height) {
+        mExtradata = extradata;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Builds the initialization segment (ftyp + moov) referenced by the
+     * playlist's EXT-X-MAP tag.
+     */
+    public byte[] createInitSegment() {
+        BoxBuffer b = new BoxBuffer(1024);
+
+        int ftyp = b.startBox("ftyp");
+        b.fourcc("iso6");
+        b.u32(0);
+        b.fourcc("iso6");
+        b.fourcc("isom");
+        b.fourcc("mp41");
+        b.endBox(ftyp);
+
+        int moov = b.startBox("moov");
+
+        int mvhd = b.startFullBox("mvhd", 0, 0);
+        b.u32(0); /* creation_time */
+        b.u32(0); /* modification_time */
+        b.u32(1000); /* timescale */
+        b.u32(0); /* duration */
+        b.u32(0x00010000); /* rate */
+        b.u16(0x0100); /* volume */
+        b.zeros(10);
+        b.matrix();
+        b.zeros(24); /* pre_defined */
+        b.u32(TRACK_ID + 1); /* next_track_ID */
+        b.endBox(mvhd);
+
+        int trak = b.startBox("trak");
+
+        int tkhd = b.startFullBox("tkhd", 0, 0x3);
+        b.u32(0);
+        b.u32(0);
+        b.u32(TRACK_ID);
+        b.u32(0);
+        b.u32(0); /* duration */
+        b.zeros(8);
+        b.u16(0); /* layer */
+        b.u16(0); /* alternate_group */
+        b.u16(0); /* volume */
+        b.u16(0);
+        b.matrix();
+        b.u32(mWidth << 16);
+        b.u32(mHeight << 16);
+        b.endBox(tkhd);
+
+        int mdia = b.startBox("mdia");
+
+        int mdhd = b.startFullBox("mdhd", 0, 0);
+        b.u32(0);
+        b.u32(0);
+        b.u32(TIMESCALE);
+        b.u32(0);
+        b.u16(0x55c4); /* language: und */
+        b.u16(0);
+        b.endBox(mdhd);
+
+        int hdlr = b.startFullBox("hdlr", 0, 0);
+        b.u32(0);
+        b.fourcc("vide");
+        b.zeros(12);
+        b.string("VideoHandler");
+        b.endBox(hdlr);
+
+        int minf = b.startBox("minf");
+
+        int vmhd = b.startFullBox("vmhd", 0, 1);
+        b.zeros(8);
+        b.endBox(vmhd);
+
+        int dinf = b.startBox("dinf");
+        int dref = b.startFullBox("dref", 0, 0);
+        b.u32(1);
+        int url = b.startFullBox("url ", 0, 1);
+        b.endBox(url);
+        b.endBox(dref);
+        b.endBox(dinf);
+
+        int stbl = b.startBox("stbl");
+        writeStsd(b);
+        int stts = b.startFullBox("stts", 0, 0);
+        b.u32(0);
+        b.endBox(stts);
+        int stsc = b.startFullBox("stsc", 0, 0);
+        b.u32(0);
+        b.endBox(stsc);
+        int stsz = b.startFullBox("stsz", 0, 0);
+        b.u32(0);
+        b.u32(0);
+        b.endBox(stsz);
+        int stco = b.startFullBox("stco", 0, 0);
+        b.u32(0);
+        b.endBox(stco);
+        b.endBox(stbl);
+
+        b.endBox(minf);
+        b.endBox(mdia);
+        b.endBox(trak);
+
+        int mvex = b.startBox("mvex");
+        int trex = b.startFullBox("trex", 0, 0);
+        b.u32(TRACK_ID);
+        b.u32(1); /* default_sample_description_index */
+        b.u32(0);
+        b.u32(0);
+        b.u32(0);
+        b.endBox(trex);
+        b.endBox(mvex);
+
+        b.endBox(moov);
+
+        return b.toByteArray();
+    }
+
+    private void writeStsd(BoxBuffer b) {
+        int stsd = b.startFullBox("stsd", 0, 0);
+        b.u32(1);
+
+        int mp4v = b.startBox("mp4v");
+        b.zeros(6);
+        b.u16(1); /* data_reference_index */
+        b.zeros(16);
+        b.u16(mWidth);
+        b.u16(mHeight);
+        b.u32(0x00480000); /* 72 dpi */
+        b.u32(0x00480000);
+        b.u32(0);
+        b.u16(1); /* frame_count */
+        b.zeros(32); /* compressorname */
+        b.u16(0x0018); /* depth */
+        b.u16(0xffff); /* pre_defined = -1 */
+
+        int esds = b.startFullBox("esds", 0, 0);
+        int es = b.startDescriptor(0x03);
+        b.u16(TRACK_ID); /* ES_ID */
+        b.u8(0);
+        int dcd = b.startDescriptor(0x04);
+        b.u8(OBJECT_TYPE_MPEG4_VISUAL);
+        b.u8((STREAM_TYPE_VISUAL << 2) | 1);
+        b.u24(0); /* bufferSizeDB */
+        b.u32(0); /* maxBitrate */
+        b.u32(0); /* avgBitrate */
+        int dsi = b.startDescriptor(0x05);
+        b.bytes(mExtradata, 0, mExtradata.length);
+        b.endDescriptor(dsi);
+        b.endDescriptor(dcd);
+        int sl = b.startDescriptor(0x06);
+        b.u8(0x02);
+        b.endDescriptor(sl);
+        b.endDescriptor(es);
+        b.endBox(esds);
+
+        b.endBox(mp4v);
+        b.endBox(stsd);
+    }
+
+    /**
+     * Builds one moof/mdat fragment holding the given samples.
+     *
+     * @param baseDecodeTime Decode time of the first sample, in
+     *            {@link #TIMESCALE} units.
+     * @param data Concatenated sample data.
+     * @param sizes Size in bytes of each sample within data.
+     * @param durations Duration of each sample in {@link #TIMESCALE} units.
+     * @param keyFrames Whether each sample is a sync sample.
+     */
+    public byte[] createFragment(long baseDecodeTime, byte[] data, int dataLength,
+            int[] sizes, int[] durations, boolean[] keyFrames, int sampleCount) {
+        /* Sized exactly so that the buffer can be handed out without a copy. */
+        BoxBuffer b = new BoxBuffer(FRAGMENT_OVERHEAD + sampleCount * 12 + dataLength);
+
+        int moof = b.startBox("moof");
+
+        int mfhd = b.startFullBox("mfhd", 0, 0);
+        b.u32(++mFragmentSequence);
+        b.endBox(mfhd);
+
+        int traf = b.startBox("traf");
+
+        /* default-base-is-moof */
+        int tfhd = b.startFullBox("tfhd", 0, 0x020000);
+        b.u32(TRACK_ID);
+        b.endBox(tfhd);
+
+        int tfdt = b.startFullBox("tfdt", 1, 0);
+        b.u64(baseDecodeTime);
+        b.endBox(tfdt);
+
+        /* data-offset, sample-duration, sample-size, sample-flags */
+        int trun = b.startFullBox("trun", 0, 0x000001 | 0x000100 | 0x000200 | 0x000400);
+        b.u32(sampleCount);
+        int dataOffsetPos = b.position();
+        b.u32(0);
+        for (int i = 0; i < sampleCount; i++) {
+            b.u32(durations[i]);
+            b.u32(sizes[i]);
+            b.u32(keyFrames[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        b.endBox(trun);
+
+        b.endBox(traf);
+        b.endBox(moof);
+
+        /* Sample data begins right after the mdat header. */
+        b.patchU32(dataOffsetPos, b.position() - moof + 8);
+
+        int mdat = b.startBox("mdat");
+        b.bytes(data, 0, dataLength);
+        b.endBox(mdat);
+
+        return b.toByteArray();
+    }
+
+    /**
+     * Growable big-endian buffer with helpers for writing boxes whose sizes
+     * are patched in once their contents are known.
+     */
+    private static class BoxBuffer {
+        private byte[] mBuf;
+        private int mPos;
+
+        public BoxBuffer(int initialCapacity) {
+            mBuf = new byte[initialCapacity];
+        }
+
+        private void ensure(int n) {
+            if (mPos + n > mBuf.length) {
+                byte[] buf = new byte[Math.max(mBuf.length * 2, mPos + n)];
+                System.arraycopy(mBuf, 0, buf, 0, mPos);
+                mBuf = buf;
+            }
+        }
+
+        public int position() {
+            return mPos;
+        }
+
+        public void u8(int v) {
+            ensure(1);
+            mBuf[mPos++] = (byte)v;
+        }
+
+        public void u16(int v) {
+            ensure(2);
+            mBuf[mPos++] = (byte)(v >> 8);
+            mBuf[mPos++] = (byte)v;
+        }
+
+        public void u24(int v) {
+            ensure(3);
+            mBuf[mPos++] = (byte)(v >> 16);
+            mBuf[mPos++] = (byte)(v >> 8);
+            mBuf[mPos++] = (byte)v;
+        }
+
+        public void u32(int v) {
+            ensure(4);
+            mBuf[mPos++] = (byte)(v >> 24);
+            mBuf[mPos++] = (byte)(v >> 16);
+            mBuf[mPos++] = (byte)(v >> 8);
+            mBuf[mPos++] = (byte)v;
+        }
+
+        public void u64(long v) {
+            u32((int)(v >>> 32));
+            u32((int)v);
+        }
+
+        public void patchU32(int pos, int v) {
+            mBuf[pos] = (byte)(v >> 24);
+            mBuf[pos + 1] = (byte)(v >> 16);
+            mBuf[pos + 2] = (byte)(v >> 8);
+            mBuf[pos + 3] = (byte)v;
+        }
+
+        public void zeros(int n) {
+            ensure(n);
+            mPos += n;
+        }
+
+        public void bytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, mBuf, mPos, length);
+            mPos += length;
+        }
+
+        public void fourcc(String code) {
+            try {
+                byte[] b = code.getBytes("US-ASCII");
+                bytes(b, 0, 4);
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        public void string(String s) {
+            try {
+                byte[] b = s.getBytes("UTF-8");
+                bytes(b, 0, b.length);
+                u8(0);
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        public void matrix() {
+            for (int i = 0; i < UNITY_MATRIX.length; i++) {
+                u32(UNITY_MATRIX[i]);
+            }
+        }
+
+        public int startBox(String type) {
+            int start = mPos;
+            u32(0);
+            fourcc(type);
+            return start;
+        }
+
+        public int startFullBox(String type, int version, int flags) {
+            int start = startBox(type);
+            u32((version << 24) | flags);
+            return start;
+        }
+
+        public void endBox(int start) {
+            patchU32(start, mPos - start);
+        }
+
+        /*
+         * Descriptor lengths are always written in the padded 4 byte form so
+         * that they can be patched in place.
+         */
+        public int startDescriptor(int tag) {
+            u8(tag);
+            int start = mPos;
+            u32(0);
+            return start;
+        }
+
+        public void endDescriptor(int start) {
+            int len = mPos - start - 4;
+            mBuf[start] = (byte)(0x80 | ((len >> 21) & 0x7f));
+            mBuf[start + 1] = (byte)(0x80 | ((len >> 14) & 0x7f));
+            mBuf[start + 2] = (byte)(0x80 | ((len >> 7) & 0x7f));
+            mBuf[start + 3] = (byte)(len & 0x7f);
+        }
+
+        public byte[] toByteArray() {
+            if (mPos == mBuf.length) {
+                return mBuf;
+            }
+            byte[] result = new byte[mPos];
+            System.arraycopy(mBuf, 0, result, 0, mPos);
+            return result;
+        }
+    }
+}
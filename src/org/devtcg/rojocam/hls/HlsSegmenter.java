@@ -0,0 +1,415 @@
+package org.devtcg.rojocam.hls;
+
+import org.devtcg.rojocam.ffmpeg.EncodedFrame;
+import org.devtcg.rojocam.ffmpeg.EncodedFrameReceiver;
+import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
+import org.devtcg.rojocam.util.Metrics;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds a low-latency HLS stream (fMP4 segments, partial segments and a live
+ * playlist) directly from the shared encoded stream, so HTTP viewers cost no
+ * additional encoding.
+ * <p>
+ * Completed parts are immutable byte arrays kept in a bounded in-memory
+ * window. Segments are never stored separately; a segment is served by
+ * writing its parts back to back, straight from the cached arrays.
+ * <p>
+ * The advertised target duration never changes, as RFC 8216 requires.
+ * Segments end on the first keyframe after two seconds, which is asked for
+ * as soon as a segment gets there so that a long GOP can't stretch it; if
+ * it doesn't arrive in time, the segment ends without one rather than
+ * outgrow the target duration.
+ * <p>
+ * All state is guarded by this object's monitor; HTTP threads blocked on a
+ * playlist reload are woken as each part completes.
+ */
+public class HlsSegmenter implements EncodedFrameReceiver {
+    private static final String TAG = HlsSegmenter.class.getSimpleName();
+
+    public static final String INIT_SEGMENT_NAME = "init.mp4";
+
+    private static final long PART_TARGET = Fmp4Writer.TIMESCALE / 2;
+    private static final long SEGMENT_TARGET = Fmp4Writer.TIMESCALE * 2;
+
+    /** EXT-X-TARGETDURATION, in seconds. */
+    private static final int TARGET_DURATION = 3;
+
+    /* Longest segment whose duration still rounds to TARGET_DURATION. */
+    private static final long MAX_SEGMENT_DURATION =
+            TARGET_DURATION * Fmp4Writer.TIMESCALE + Fmp4Writer.TIMESCALE / 2 - 1;
+
+    /** Number of completed segments kept (and advertised) at any time. */
+    private static final int MAX_SEGMENTS = 6;
+
+    /**
+     * Parts are only advertised for this many of the most recent completed
+     * segments; older segments are available in whole only.
+     */
+    private static final int MAX_SEGMENTS_WITH_PARTS = 2;
+
+    /* Fragments never span more than this many samples (see PART_TARGET). */
+    private static final int MAX_SAMPLES_PER_PART = 64;
+
+    private static final Metrics.Counter sForcedCuts = Metrics.counter("hls.forced_cuts");
+
+    /** Brings the next keyframe forward, so that a segment can end on time. */
+    public interface KeyFrameRequester {
+        /** Called on the thread delivering frames, with the segmenter locked. */
+        public void requestKeyFrame();
+    }
+
+    private final Fmp4Writer mWriter;
+    private final KeyFrameRequester mKeyFrameRequester;
+    private final byte[] mInitSegment;
+
+    /*
+     * The most recent frame is held back until the next one arrives, since
+     * only then do we know its duration.
+     */
+    private byte[] mPendingData = new byte[65536];
+    private int mPendingSize;
+    private long mPendingTime;
+    private boolean mPendingKeyFrame;
+    private boolean mHavePending;
+
+    /* The part currently being accumulated. */
+    private byte[] mPartData = new byte[131072];
+    private int mPartLength;
+    private final int[] mPartSizes = new int[MAX_SAMPLES_PER_PART];
+    private final int[] mPartDurations = new int[MAX_SAMPLES_PER_PART];
+    private final boolean[] mPartKeyFrames = new boolean[MAX_SAMPLES_PER_PART];
+    private int mPartSamples;
+    private long mPartStartTime;
+    private long mPartDuration;
+
+    /* Time of the first sample we ever accepted, in TIMESCALE units. */
+    private long mBaseTime = -1;
+
+    private final LinkedList<Segment> mSegments = new LinkedList<Segment>();
+    private Segment mCurrentSegment;
+    private long mNextSequence;
+    private boolean mKeyFrameRequested;
+    private boolean mClosed;
+
+    public HlsSegmenter(FFStreamConfig streamConfig, KeyFrameRequester keyFrameRequester) {
+        mKeyFrameRequester = keyFrameRequester;
+        mWriter = new Fmp4Writer(streamConfig.getVideoExtradata(),
+                streamConfig.getVideoWidth(), streamConfig.getVideoHeight());
+        mInitSegment = mWriter.createInitSegment();
+    }
+
+    public byte[] getInitSegment() {
+        return mInitSegment;
+    }
+
+    public synchronized void onEncodedFrame(EncodedFrame frame) {
+        if (mClosed) {
+            return;
+        }
+
+        long time = frame.ptsUsec * Fmp4Writer.TIMESCALE / 1000000;
+
+        if (mHavePending) {
+            long duration = time - mPendingTime;
+            if (duration <= 0) {
+                Log.w(TAG, "Non-increasing timestamp, dropping frame");
+                return;
+            }
+            commitSample(duration);
+            mHavePending = false;
+        } else if (mBaseTime < 0 && !frame.keyFrame) {
+            /* Every segment, including the very first, must begin with a keyframe. */
+            return;
+        }
+
+        if (mBaseTime < 0) {
+            mBaseTime = time;
+        }
+
+        if (mPendingData.length < frame.size) {
+            mPendingData = new byte[frame.size];
+        }
+        frame.copyTo(mPendingData, 0);
+        mPendingSize = frame.size;
+        mPendingTime = time;
+        mPendingKeyFrame = frame.keyFrame;
+        mHavePending = true;
+    }
+
+    private void commitSample(long duration) {
+        long segmentDuration = getSegmentDurationLocked();
+        if (mPendingKeyFrame && segmentDuration >= SEGMENT_TARGET) {
+            flushPart();
+            finishSegment();
+        } else if (segmentDuration > 0 && segmentDuration + duration > MAX_SEGMENT_DURATION) {
+            Log.w(TAG, "No keyframe in time, ending segment without one");
+            sForcedCuts.inc();
+            flushPart();
+            finishSegment();
+        } else if (mPartSamples > 0 &&
+                (mPartDuration + duration > PART_TARGET ||
+                        mPartSamples == MAX_SAMPLES_PER_PART)) {
+            flushPart();
+        }
+
+        if (mPartSamples == 0) {
+            mPartStartTime = mPendingTime - mBaseTime;
+        }
+
+        if (mPartData.length < mPartLength + mPendingSize) {
+            byte[] data = new byte[Math.max(mPartData.length * 2, mPartLength + mPendingSize)];
+            System.arraycopy(mPartData, 0, data, 0, mPartLength);
+            mPartData = data;
+        }
+        System.arraycopy(mPendingData, 0, mPartData, mPartLength, mPendingSize);
+        mPartLength += mPendingSize;
+        mPartSizes[mPartSamples] = mPendingSize;
+        mPartDurations[mPartSamples] = (int)duration;
+        mPartKeyFrames[mPartSamples] = mPendingKeyFrame;
+        mPartSamples++;
+        mPartDuration += duration;
+
+        if (!mKeyFrameRequested && getSegmentDurationLocked() >= SEGMENT_TARGET) {
+            mKeyFrameRequested = true;
+            mKeyFrameRequester.requestKeyFrame();
+        }
+    }
+
+    /* Duration of the segment in progress, including the part in progress. */
+    private long getSegmentDurationLocked() {
+        return (mCurrentSegment != null ? mCurrentSegment.duration : 0) + mPartDuration;
+    }
+
+    private void flushPart() {
+        if (mPartSamples == 0) {
+            return;
+        }
+
+        byte[] fragment = mWriter.createFragment(mPartStartTime, mPartData, mPartLength,
+                mPartSizes, mPartDurations, mPartKeyFrames, mPartSamples);
+        Part part = new Part(fragment, mPartDuration, mPartKeyFrames[0]);
+
+        if (mCurrentSegment == null) {
+            mCurrentSegment = new Segment(mNextSequence++);
+        }
+        mCurrentSegment.parts.add(part);
+        mCurrentSegment.duration += part.duration;
+        notifyAll();
+
+        mPartLength = 0;
+        mPartSamples = 0;
+        mPartDuration = 0;
+    }
+
+    private void finishSegment() {
+        if (mCurrentSegment == null) {
+            return;
+        }
+
+        mCurrentSegment.complete = true;
+        mSegments.add(mCurrentSegment);
+        mCurrentSegment = null;
+        mKeyFrameRequested = false;
+
+        while (mSegments.size() > MAX_SEGMENTS) {
+            mSegments.removeFirst();
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Flushes whatever is buffered and wakes up any blocked playlist
+     * requests. The segmenter accepts no further frames.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        if (mHavePending) {
+            /* Best guess; we will never learn the true duration of this frame. */
+            commitSample(mPartSamples > 0 ? mPartDurations[mPartSamples - 1] : 1);
+            mHavePending = false;
+        }
+        flushPart();
+        finishSegment();
+        mClosed = true;
+        notifyAll();
+    }
+
+    private Segment findSegmentLocked(long sequence) {
+        if (mCurrentSegment != null && mCurrentSegment.sequence == sequence) {
+            return mCurrentSegment;
+        }
+        for (Segment segment: mSegments) {
+            if (segment.sequence == sequence) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the parts making up a completed segment, or null if the segment
+     * is unknown, incomplete or has already been evicted.
+     */
+    public synchronized List<byte[]> getSegment(long sequence) {
+        Segment segment = findSegmentLocked(sequence);
+        if (segment == null || !segment.complete) {
+            return null;
+        }
+        ArrayList<byte[]> data = new ArrayList<byte[]>(segment.parts.size());
+        for (Part part: segment.parts) {
+            data.add(part.data);
+        }
+        return data;
+    }
+
+    /**
+     * Returns a single completed part, or null if not available.
+     */
+    public synchronized byte[] getPart(long sequence, int index) {
+        Segment segment = findSegmentLocked(sequence);
+        if (segment == null || index >= segment.parts.size()) {
+            return null;
+        }
+        return segment.parts.get(index).data;
+    }
+
+    private boolean hasPartLocked(long sequence, int index) {
+        long last = mCurrentSegment != null ? mCurrentSegment.sequence :
+                mNextSequence - 1;
+        if (sequence < last) {
+            return true;
+        }
+        if (sequence > last) {
+            return false;
+        }
+        Segment segment = findSegmentLocked(sequence);
+        if (segment == null) {
+            return false;
+        }
+        if (index < 0) {
+            return segment.complete;
+        }
+        return segment.complete || index < segment.parts.size();
+    }
+
+    /**
+     * Renders the live playlist. Implements blocking playlist reload: if
+     * <code>blockSequence</code> is non-negative the call waits until that
+     * segment (or, if <code>blockPart</code> is non-negative, that part of it)
+     * is available, or until the timeout elapses.
+     *
+     * @return The playlist, or null if no media has been produced yet.
+     */
+    public synchronized String getPlaylist(long blockSequence, int blockPart, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!mClosed) {
+            boolean ready;
+            if (blockSequence >= 0) {
+                ready = hasPartLocked(blockSequence, blockPart);
+            } else {
+                ready = !mSegments.isEmpty() ||
+                        (mCurrentSegment != null && !mCurrentSegment.parts.isEmpty());
+            }
+            if (ready) {
+                break;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+
+        if (mSegments.isEmpty() && mCurrentSegment == null) {
+            return null;
+        }
+
+        StringBuilder b = new StringBuilder();
+        b.append("#EXTM3U\n");
+        b.append("#EXT-X-VERSION:9\n");
+        b.append("#EXT-X-TARGETDURATION:").append(TARGET_DURATION).append('\n');
+        b.append("#EXT-X-PART-INF:PART-TARGET=").append(seconds(PART_TARGET)).append('\n');
+        b.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=")
+                .append(seconds(PART_TARGET * 3)).append('\n');
+        long firstSequence = mSegments.isEmpty() ? mCurrentSegment.sequence :
+                mSegments.getFirst().sequence;
+        b.append("#EXT-X-MEDIA-SEQUENCE:").append(firstSequence).append('\n');
+        b.append("#EXT-X-MAP:URI=\"").append(INIT_SEGMENT_NAME).append("\"\n");
+
+        int withParts = mSegments.size() - MAX_SEGMENTS_WITH_PARTS;
+        int i = 0;
+        for (Segment segment: mSegments) {
+            if (i++ >= withParts) {
+                appendParts(b, segment);
+            }
+            b.append("#EXTINF:").append(seconds(segment.duration)).append(",\n");
+            b.append(segmentName(segment.sequence)).append('\n');
+        }
+        if (mCurrentSegment != null) {
+            appendParts(b, mCurrentSegment);
+        }
+        if (mClosed) {
+            b.append("#EXT-X-ENDLIST\n");
+        }
+
+        return b.toString();
+    }
+
+    private static void appendParts(StringBuilder b, Segment segment) {
+        for (int i = 0; i < segment.parts.size(); i++) {
+            Part part = segment.parts.get(i);
+            b.append("#EXT-X-PART:DURATION=").append(seconds(part.duration));
+            b.append(",URI=\"").append(partName(segment.sequence, i)).append('"');
+            if (part.independent) {
+                b.append(",INDEPENDENT=YES");
+            }
+            b.append('\n');
+        }
+    }
+
+    private static String seconds(long duration) {
+        return String.format(Locale.US, "%.3f", duration / (double)Fmp4Writer.TIMESCALE);
+    }
+
+    public static String segmentName(long sequence) {
+        return "seg" + sequence + ".m4s";
+    }
+
+    public static String partName(long sequence, int index) {
+        return "part" + sequence + "." + index + ".m4s";
+    }
+
+    private static class Segment {
+        public final long sequence;
+        public final ArrayList<Part> parts = new ArrayList<Part>();
+        public long duration;
+        public boolean complete;
+
+        public Segment(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Part {
+        public final byte[] data;
+        public final long duration;
+        public final boolean independent;
+
+        public Part(byte[] data, long duration, boolean independent) {
+            this.data = data;
+            this.duration = duration;
+            this.independent = independent;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.devtcg.rojocam.http;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+
+/**
+ * Plain HTTP counterpart to {@link org.devtcg.rojocam.rtsp.AbstractRtspServer}
+ * for clients (dashboards, browsers) which cannot speak RTSP. Handlers are
+ * registered by URI pattern before the server is started.
+ * <p>
+ * Streaming handlers (such as multipart MJPEG) are expected to hold their
+ * worker thread for the duration of the response, so each connection gets its
+ * own thread just like the RTSP server.
+ */
+public class SimpleHttpServer extends Thread {
+    public static final String TAG = SimpleHttpServer.class.getSimpleName();
+
+    private final HashSet<WorkerThread> mWorkers = new HashSet<WorkerThread>();
+
+    private ServerSocket mSocket;
+    private final HttpParams mParams;
+    private final HttpRequestHandlerRegistry mRegistry = new HttpRequestHandlerRegistry();
+
+    private volatile boolean mShutdown;
+
+    public SimpleHttpServer() {
+        super(TAG);
+
+        /*
+         * Streaming responses can legitimately sit idle between frames while
+         * the camera is starting, so only the request read is subject to the
+         * timeout.
+         */
+        mParams = new BasicHttpParams()
+                .setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 30000)
+                .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 16384)
+                .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false)
+                .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+
+        mRegistry.register("*", new NotFoundHandler());
+
+        setDaemon(true);
+    }
+
+    public void bind(InetSocketAddress addr) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(addr);
+        mSocket = socket;
+        Log.i(TAG, "Bound to port " + mSocket.getLocalPort());
+    }
+
+    /**
+     * Registers a handler for the given URI pattern (see
+     * {@link HttpRequestHandlerRegistry} for the pattern syntax). Must be
+     * called before {@link #start()}.
+     */
+    public void registerHandler(String pattern, HttpRequestHandler handler) {
+        mRegistry.register(pattern, handler);
+    }
+
+    private void checkIsBound() {
+        if (mSocket == null) {
+            throw new IllegalStateException("Not bound.");
+        }
+    }
+
+    public int getPort() {
+        checkIsBound();
+        return mSocket.getLocalPort();
+    }
+
+    public void shutdown() {
+        checkIsBound();
+
+        mShutdown = true;
+
+        synchronized (mWorkers) {
+            for (WorkerThread worker: mWorkers) {
+                worker.shutdown();
+            }
+        }
+
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public void run() {
+        checkIsBound();
+
+        while (!mShutdown) {
+            try {
+                Socket sock = mSocket.accept();
+                DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+
+                conn.bind(sock, mParams);
+
+                BasicHttpProcessor processor = new BasicHttpProcessor();
+                processor.addInterceptor(new ResponseDate());
+                processor.addInterceptor(new ResponseContent());
+                processor.addInterceptor(new ResponseConnControl());
+
+                HttpService svc = new HttpService(processor,
+                        new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory());
+
+                svc.setParams(mParams);
+                svc.setHandlerResolver(mRegistry);
+
+                WorkerThread worker = new WorkerThread(svc, conn);
+
+                synchronized (mWorkers) {
+                    mWorkers.add(worker);
+                }
+
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                if (!mShutdown) {
+                    Log.e(TAG, "I/O error initializing connection thread", e);
+                }
+                break;
+            }
+        }
+    }
+
+    private class WorkerThread extends Thread {
+        private final HttpService mService;
+        private final DefaultHttpServerConnection mConn;
+
+        public WorkerThread(HttpService svc, DefaultHttpServerConnection conn) {
+            super(TAG + "-worker");
+            mService = svc;
+            mConn = conn;
+        }
+
+        public void run() {
+            HttpContext ctx = new BasicHttpContext(null);
+
+            try {
+                while (!mShutdown && mConn.isOpen()) {
+                    mService.handleRequest(mConn, ctx);
+                }
+            } catch (Exception e) {
+                if (!mShutdown) {
+                    Log.d(TAG, "HTTP connection closed: " + e.toString());
+                }
+            } finally {
+                try {
+                    mConn.shutdown();
+                } catch (IOException e) {
+                }
+
+                if (!mShutdown) {
+                    synchronized (mWorkers) {
+                        mWorkers.remove(this);
+                    }
+                }
+            }
+        }
+
+        public void shutdown() {
+            try {
+                mConn.shutdown();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static class NotFoundHandler implements HttpRequestHandler {
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+                throws HttpException, IOException {
+            response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+        }
+    }
+}
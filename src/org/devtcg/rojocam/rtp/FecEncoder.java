@@ -0,0 +1,100 @@
+package org.devtcg.rojocam.rtp;
+
+import org.devtcg.rojocam.util.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Computes RFC 5109 XOR parity over groups of consecutive packets, once for
+ * all the peers of an {@link RtpFanout}. Each protection level groups packets
+ * differently (see {@link #getGroupSize(int)}), and a peer is sent the parity
+ * of whichever level suits its reported loss; levels no peer is using cost
+ * nothing.
+ * <p>
+ * Groups are aligned on packet ids in the {@link PacketHistory} and may span
+ * frames, so that small frames don't each need a parity packet of their own.
+ * Confined to the fan-out thread.
+ */
+public class FecEncoder {
+    /** Payload type of FEC packets, negotiated in the SDP (see {@link RtpSdp}). */
+    public static final int PAYLOAD_TYPE = 98;
+
+    /* Packets per parity packet at each protection level; level 0 is off. */
+    private static final int[] GROUP_SIZES = { 0, 10, 6, 4, 2 };
+
+    public static final int LEVEL_COUNT = GROUP_SIZES.length;
+    public static final int MAX_GROUP_SIZE = 10;
+
+    private static final Metrics.Counter sGroups = Metrics.counter("rtp.fec_groups");
+
+    /* Group in progress at each level, or null if none. */
+    private final FecParity[] mGroups = new FecParity[LEVEL_COUNT];
+
+    /* Frame completed groups are added to, and spares. */
+    private PacketizedFrame mFrame;
+    private final ArrayList<FecParity> mSpares = new ArrayList<FecParity>();
+
+    public static int getGroupSize(int level) {
+        return GROUP_SIZES[level];
+    }
+
+    /**
+     * Starts a new frame, which collects the groups its packets complete
+     * (see {@link PacketizedFrame#getParity(int)}). Parity left over from the
+     * frame's previous use is recycled.
+     */
+    public void beginFrame(PacketizedFrame frame) {
+        frame.takeParity(mSpares);
+        mFrame = frame;
+    }
+
+    /**
+     * Adds a packet to the group of every level in <code>levels</code>.
+     * Groups at other levels are abandoned. A level that is switched on
+     * starts with the next group boundary.
+     *
+     * @param payload The packet's payload, from position to limit; not
+     *            modified.
+     * @param markerPt The second byte of the packet's RTP header.
+     * @param id The packet's history id.
+     * @param index The packet's index within its frame.
+     * @param levels Bitmask of levels in use, by (1 << level).
+     */
+    public void addPacket(ByteBuffer payload, int markerPt, long rtpTime, long id, int index,
+            int levels) {
+        for (int level = 1; level < LEVEL_COUNT; level++) {
+            FecParity group = mGroups[level];
+            if ((levels & (1 << level)) == 0) {
+                if (group != null) {
+                    mSpares.add(group);
+                    mGroups[level] = null;
+                }
+                continue;
+            }
+
+            if (id % GROUP_SIZES[level] == 0) {
+                if (group == null) {
+                    group = obtain();
+                    mGroups[level] = group;
+                }
+                group.reset(level, id);
+            } else if (group == null || group.getFirstId() + group.getCount() != id) {
+                continue;
+            }
+
+            group.add(payload, markerPt, rtpTime);
+            if (group.isComplete()) {
+                group.finish(index);
+                mFrame.addParity(group);
+                mGroups[level] = null;
+                sGroups.inc();
+            }
+        }
+    }
+
+    private FecParity obtain() {
+        int spares = mSpares.size();
+        return spares > 0 ? mSpares.remove(spares - 1) : new FecParity();
+    }
+}
@@ -0,0 +1,154 @@
+package org.devtcg.rojocam.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XOR parity over one group of consecutive packets, laid out as an RFC 5109
+ * FEC packet with a single level 0 protection header. As with
+ * {@link PacketizedFrame}, everything common to all peers is filled in once
+ * and each {@link RtpSender} patches in its own fields before sending.
+ */
+public class FecParity {
+    /* FEC header and the level 0 ULP header. */
+    private static final int FEC_HEADER_SIZE = 10;
+    private static final int ULP_HEADER_SIZE = 4;
+
+    /** Bytes ahead of the parity payload. */
+    public static final int HEADER_SIZE =
+            RtpPacketizer.HEADER_SIZE + FEC_HEADER_SIZE + ULP_HEADER_SIZE;
+
+    private static final int FEC_OFFSET = RtpPacketizer.HEADER_SIZE;
+    private static final int ULP_OFFSET = FEC_OFFSET + FEC_HEADER_SIZE;
+
+    private final ByteBuffer mBuffer =
+            ByteBuffer.allocateDirect(HEADER_SIZE + RtpPacketizer.MAX_PAYLOAD_SIZE);
+    private final ByteBuffer mView = mBuffer.duplicate();
+    private final long[] mRtpTimes = new long[FecEncoder.MAX_GROUP_SIZE];
+
+    private int mLevel;
+    private long mFirstId;
+    private int mCount;
+
+    /* Longest payload in the group, which the parity covers. */
+    private int mProtectionLength;
+    private int mLengthRecovery;
+    private int mMarkerPtRecovery;
+
+    private int mAfterPacket;
+
+    FecParity() {
+    }
+
+    void reset(int level, long firstId) {
+        mLevel = level;
+        mFirstId = firstId;
+        mCount = 0;
+        mProtectionLength = 0;
+        mLengthRecovery = 0;
+        mMarkerPtRecovery = 0;
+    }
+
+    /**
+     * XORs a packet into the parity, straight from the shared payload.
+     *
+     * @param markerPt The second byte of the packet's RTP header.
+     */
+    void add(ByteBuffer payload, int markerPt, long rtpTime) {
+        int length = payload.remaining();
+        int base = HEADER_SIZE;
+        int src = payload.position();
+
+        /* Shorter payloads are treated as padded with zeros. */
+        if (length > mProtectionLength) {
+            for (int i = mProtectionLength; i < length; i++) {
+                mBuffer.put(base + i, (byte)0);
+            }
+            mProtectionLength = length;
+        }
+
+        int i = 0;
+        if (mCount == 0) {
+            for (; i + 8 <= length; i += 8) {
+                mBuffer.putLong(base + i, payload.getLong(src + i));
+            }
+            for (; i < length; i++) {
+                mBuffer.put(base + i, payload.get(src + i));
+            }
+        } else {
+            for (; i + 8 <= length; i += 8) {
+                mBuffer.putLong(base + i, mBuffer.getLong(base + i) ^ payload.getLong(src + i));
+            }
+            for (; i < length; i++) {
+                mBuffer.put(base + i, (byte)(mBuffer.get(base + i) ^ payload.get(src + i)));
+            }
+        }
+
+        mLengthRecovery ^= length;
+        mMarkerPtRecovery ^= markerPt;
+        mRtpTimes[mCount++] = rtpTime;
+    }
+
+    /**
+     * Fills in the fields common to every peer once the group is complete.
+     */
+    void finish(int afterPacket) {
+        mAfterPacket = afterPacket;
+
+        mBuffer.put(0, (byte)0x80);
+        mBuffer.put(1, (byte)FecEncoder.PAYLOAD_TYPE);
+
+        /* E and L clear; our packets never have padding, extensions or CSRCs. */
+        mBuffer.put(FEC_OFFSET, (byte)0);
+        mBuffer.put(FEC_OFFSET + 1, (byte)mMarkerPtRecovery);
+        mBuffer.putShort(FEC_OFFSET + 8, (short)mLengthRecovery);
+
+        mBuffer.putShort(ULP_OFFSET, (short)mProtectionLength);
+        mBuffer.putShort(ULP_OFFSET + 2, (short)(0xffff << (16 - mCount)));
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /** History id of the first packet in the group. */
+    public long getFirstId() {
+        return mFirstId;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    boolean isComplete() {
+        return mCount == FecEncoder.getGroupSize(mLevel);
+    }
+
+    /** Index, within its frame, of the packet that completed the group. */
+    public int getAfterPacket() {
+        return mAfterPacket;
+    }
+
+    /**
+     * Fills in one peer's fields and returns a buffer positioned over the
+     * whole packet, valid until the next call.
+     *
+     * @param seqBase The peer's sequence number for the group's first packet.
+     * @param timestampOffset The peer's RTP timestamp offset.
+     */
+    public ByteBuffer preparePacket(int sequence, int ssrc, int seqBase, int timestampOffset) {
+        int tsRecovery = 0;
+        for (int i = 0; i < mCount; i++) {
+            tsRecovery ^= timestampOffset + (int)mRtpTimes[i];
+        }
+
+        mBuffer.putShort(2, (short)sequence);
+        mBuffer.putInt(4, timestampOffset + (int)mRtpTimes[mCount - 1]);
+        mBuffer.putInt(8, ssrc);
+        mBuffer.putShort(FEC_OFFSET + 2, (short)seqBase);
+        mBuffer.putInt(FEC_OFFSET + 4, tsRecovery);
+
+        mView.limit(HEADER_SIZE + mProtectionLength);
+        mView.position(0);
+        return mView;
+    }
+}
@@ -0,0 +1,115 @@
+package org.devtcg.rojocam.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last few hundred packets sent to the peers of an {@link RtpFanout},
+ * kept for retransmission. Storage is a single preallocated buffer of fixed
+ * size slots, written by the fan-out thread as each frame is packetized and
+ * read by whichever thread handles a peer's NACK.
+ * <p>
+ * Every stored packet gets an id, increasing from zero, which senders map
+ * their own sequence numbers to. Reads race with the writer overwriting the
+ * oldest slot, so each slot's id is cleared while it is being written and
+ * checked again after a read; a read that loses the race fails, just as if
+ * the packet had already aged out.
+ */
+public class PacketHistory {
+    /** Default number of packets kept; several seconds at our bitrates. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final long EMPTY = -1;
+
+    private final int mCapacity;
+    private final ByteBuffer mSlots;
+    private final AtomicLongArray mIds;
+
+    /* Per-slot details; published by the id write that follows them. */
+    private final int[] mLengths;
+    private final long[] mRtpTimes;
+    private final boolean[] mMarkers;
+
+    /* Confined to the writer. */
+    private final ByteBuffer mWriteView;
+    private long mNextId;
+
+    public PacketHistory(int capacity) {
+        mCapacity = capacity;
+        mSlots = ByteBuffer.allocateDirect(capacity * RtpPacketizer.MAX_PAYLOAD_SIZE);
+        mWriteView = mSlots.duplicate();
+        mIds = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mIds.set(i, EMPTY);
+        }
+        mLengths = new int[capacity];
+        mRtpTimes = new long[capacity];
+        mMarkers = new boolean[capacity];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Stores every packet of a frame, recording their ids in the frame.
+     * Writer thread only.
+     */
+    void store(PacketizedFrame frame) {
+        int count = frame.getPacketCount();
+        for (int i = 0; i < count; i++) {
+            long id = mNextId++;
+            int slot = (int)(id % mCapacity);
+
+            mIds.set(slot, EMPTY);
+            ByteBuffer payload = frame.getPayload(i);
+            mLengths[slot] = payload.remaining();
+            mRtpTimes[slot] = frame.getRtpTime();
+            mMarkers[slot] = (i == count - 1);
+            mWriteView.clear();
+            mWriteView.position(slot * RtpPacketizer.MAX_PAYLOAD_SIZE);
+            mWriteView.put(payload);
+            mIds.set(slot, id);
+
+            frame.setPacketId(i, id);
+        }
+    }
+
+    /**
+     * Copies a stored packet's payload into <code>dst</code>, at its
+     * position, and returns its details. Safe from any thread.
+     *
+     * @return False if the packet is no longer (or was never) stored, in
+     *         which case <code>dst</code> and <code>info</code> are left in an
+     *         undefined state.
+     */
+    public boolean read(long id, ByteBuffer dst, PacketInfo info) {
+        if (id < 0) {
+            return false;
+        }
+        int slot = (int)(id % mCapacity);
+        if (mIds.get(slot) != id) {
+            return false;
+        }
+
+        int length = mLengths[slot];
+        info.rtpTime = mRtpTimes[slot];
+        info.marker = mMarkers[slot];
+        info.length = length;
+
+        ByteBuffer src = mSlots.duplicate();
+        int offset = slot * RtpPacketizer.MAX_PAYLOAD_SIZE;
+        src.limit(offset + length);
+        src.position(offset);
+        dst.put(src);
+
+        return mIds.get(slot) == id;
+    }
+
+    /** Details of a stored packet, filled in by {@link PacketHistory#read}. */
+    public static class PacketInfo {
+        public int length;
+        public long rtpTime;
+        public boolean marker;
+    }
+}
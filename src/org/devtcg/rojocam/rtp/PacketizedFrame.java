@@ -0,0 +1,198 @@
+package org.devtcg.rojocam.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One encoded frame split into RTP packets, shared by every peer it is sent
+ * to. The payloads are written once by {@link RtpPacketizer} and never
+ * touched again; each packet is preceded by room for its 12 byte header, with
+ * the fields common to all peers already filled in, and {@link RtpSender}s
+ * patch in their own sequence number, timestamp and SSRC just before sending.
+ * <p>
+ * A frame is filled in on the fan-out thread and then only read, by the
+ * {@link RtpPacer} thread, which is the one place headers are patched. It is
+ * reference counted, one reference per peer it is queued for, and returns to
+ * its packetizer's pool for reuse once the last is released.
+ */
+public class PacketizedFrame {
+    private final Queue<PacketizedFrame> mPool;
+    private final AtomicInteger mRefs = new AtomicInteger();
+
+    private ByteBuffer mArena;
+    private ByteBuffer mView;
+
+    private int[] mOffsets = new int[8];
+    private int[] mLengths = new int[8];
+    private long[] mIds = new long[8];
+    private int mPacketCount;
+    private int mPayloadSize;
+
+    private long mPtsUsec;
+    private long mWallClockUsec;
+    private long mRtpTime;
+    private boolean mKeyFrame;
+
+    /* Parity of the FEC groups this frame completed. */
+    private final ArrayList<FecParity> mParity = new ArrayList<FecParity>();
+
+    /**
+     * @param pool Where the frame goes once released, or null.
+     */
+    PacketizedFrame(Queue<PacketizedFrame> pool) {
+        mPool = pool;
+    }
+
+    void retain() {
+        mRefs.incrementAndGet();
+    }
+
+    /**
+     * Drops a reference, returning the frame to its pool after the last.
+     */
+    void release() {
+        if (mRefs.decrementAndGet() == 0 && mPool != null) {
+            mPool.offer(this);
+        }
+    }
+
+    /**
+     * Makes room for a frame with the given payload size, split into the
+     * given number of packets. Returns the arena, cleared.
+     */
+    ByteBuffer reset(int packetCount, int arenaSize) {
+        if (mArena == null || mArena.capacity() < arenaSize) {
+            mArena = ByteBuffer.allocateDirect(arenaSize);
+            mView = mArena.duplicate();
+        }
+        if (mOffsets.length < packetCount) {
+            mOffsets = new int[packetCount];
+            mLengths = new int[packetCount];
+            mIds = new long[packetCount];
+        }
+        mPacketCount = 0;
+        mPayloadSize = 0;
+        mArena.clear();
+        return mArena;
+    }
+
+    void addPacket(int offset, int length) {
+        mOffsets[mPacketCount] = offset;
+        mLengths[mPacketCount] = length;
+        mIds[mPacketCount] = -1;
+        mPacketCount++;
+        mPayloadSize += length - RtpPacketizer.HEADER_SIZE;
+    }
+
+    void setTiming(long ptsUsec, long wallClockUsec, long rtpTime, boolean keyFrame) {
+        mPtsUsec = ptsUsec;
+        mWallClockUsec = wallClockUsec;
+        mRtpTime = rtpTime;
+        mKeyFrame = keyFrame;
+    }
+
+    public int getPacketCount() {
+        return mPacketCount;
+    }
+
+    /** Length of a packet, header included. */
+    public int getPacketLength(int index) {
+        return mLengths[index];
+    }
+
+    /** Total payload bytes, excluding headers. */
+    public int getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    /** Total bytes of the packets, headers included. */
+    public int getPacketsSize() {
+        return mPayloadSize + mPacketCount * RtpPacketizer.HEADER_SIZE;
+    }
+
+    public long getPtsUsec() {
+        return mPtsUsec;
+    }
+
+    /** Wall clock time of the frame, for sender reports. */
+    public long getWallClockUsec() {
+        return mWallClockUsec;
+    }
+
+    /**
+     * RTP timestamp of the frame before any peer's random offset is added;
+     * see {@link RtpPacketizer#CLOCK_RATE}.
+     */
+    public long getRtpTime() {
+        return mRtpTime;
+    }
+
+    public boolean isKeyFrame() {
+        return mKeyFrame;
+    }
+
+    /**
+     * Id of a packet in the {@link PacketHistory}, or -1 if it was not
+     * stored.
+     */
+    public long getPacketId(int index) {
+        return mIds[index];
+    }
+
+    void setPacketId(int index, long id) {
+        mIds[index] = id;
+    }
+
+    public int getParityCount() {
+        return mParity.size();
+    }
+
+    public FecParity getParity(int index) {
+        return mParity.get(index);
+    }
+
+    void addParity(FecParity parity) {
+        mParity.add(parity);
+    }
+
+    /**
+     * Moves the parity of the last use of this frame to <code>spares</code>.
+     */
+    void takeParity(ArrayList<FecParity> spares) {
+        spares.addAll(mParity);
+        mParity.clear();
+    }
+
+    /** The second byte of a packet's RTP header: marker and payload type. */
+    int getMarkerPt(int index) {
+        return mArena.get(mOffsets[index] + 1) & 0xff;
+    }
+
+    /**
+     * Returns a buffer positioned over a packet's payload, valid until the
+     * next call to this or {@link #preparePacket}.
+     */
+    ByteBuffer getPayload(int index) {
+        int offset = mOffsets[index];
+        mView.limit(offset + mLengths[index]);
+        mView.position(offset + RtpPacketizer.HEADER_SIZE);
+        return mView;
+    }
+
+    /**
+     * Fills in the per-peer fields of a packet's header and returns a buffer
+     * positioned over the whole packet, valid until the next call.
+     */
+    public ByteBuffer preparePacket(int index, int sequence, int timestamp, int ssrc) {
+        int offset = mOffsets[index];
+        mArena.putShort(offset + 2, (short)sequence);
+        mArena.putInt(offset + 4, timestamp);
+        mArena.putInt(offset + 8, ssrc);
+
+        mView.limit(offset + mLengths[index]);
+        mView.position(offset);
+        return mView;
+    }
+}
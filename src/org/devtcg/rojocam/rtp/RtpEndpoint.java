@@ -0,0 +1,359 @@
+package org.devtcg.rojocam.rtp;
+
+import org.devtcg.rojocam.rtsp.RtpParticipant;
+import org.devtcg.rojocam.util.Metrics;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The server side of every RTP session: one RTP and one RTCP socket, shared
+ * by all peers. Outgoing packets are addressed per peer, and incoming RTCP is
+ * handed to the {@link Peer} it belongs to, so that the number of sockets (and
+ * their kernel buffers) stays the same however many viewers there are.
+ * <p>
+ * Incoming RTCP is matched first by source address, which works for any peer
+ * sending from the RTCP port it asked for in SETUP. Failing that (typically a
+ * NAT rewriting the port), packets are matched by the SSRC the peer reports
+ * on or sends feedback about, which is the one we send it with; see
+ * {@link Peer#setSsrc(int)}.
+ * <p>
+ * The endpoint also owns the {@link RtpPacer} that spreads what is sent over
+ * the node's uplink budget.
+ */
+public class RtpEndpoint implements Closeable {
+    private static final String TAG = RtpEndpoint.class.getSimpleName();
+
+    /** Default server RTP port; RTCP uses the one after it. */
+    public static final int DEFAULT_RTP_PORT = 5000;
+
+    /* RTCP packet types (RFC 3550, and RFC 4585 for feedback). */
+    private static final int RTCP_SR = 200;
+    private static final int RTCP_RR = 201;
+    private static final int RTCP_APP = 204;
+    private static final int RTCP_RTPFB = 205;
+    private static final int RTCP_PSFB = 206;
+
+    private static final int MAX_RTCP_PACKET_SIZE = 1500;
+
+    private static final Metrics.Counter sRtcpReceived = Metrics.counter("rtcp.received");
+    private static final Metrics.Counter sRtcpBySsrc = Metrics.counter("rtcp.matched_by_ssrc");
+    private static final Metrics.Counter sRtcpUnmatched = Metrics.counter("rtcp.unmatched");
+    private static final Metrics.Counter sSendErrors = Metrics.counter("rtp.send_errors");
+
+    /** Receives the RTCP sent by one peer. */
+    public interface RtcpListener {
+        /**
+         * Invoked on the endpoint's receive thread with a compound RTCP
+         * packet, positioned at its start. The buffer is reused once this
+         * returns.
+         */
+        public void onRtcpPacket(Peer peer, ByteBuffer packet);
+    }
+
+    private final DatagramChannel mRtpChannel;
+    private final DatagramChannel mRtcpChannel;
+    private final Thread mReceiveThread;
+    private final RtpPacer mPacer = new RtpPacer();
+
+    private final ConcurrentHashMap<SocketAddress, Peer> mPeersByAddress =
+            new ConcurrentHashMap<SocketAddress, Peer>();
+    private final ConcurrentHashMap<Integer, Peer> mPeersBySsrc =
+            new ConcurrentHashMap<Integer, Peer>();
+
+    private volatile boolean mClosed;
+
+    /**
+     * Binds the RTP port and the RTCP port after it, on every interface.
+     *
+     * @param rtpPort Even port number, or 0 for any free pair.
+     */
+    public static RtpEndpoint open(int rtpPort) throws IOException {
+        if (rtpPort != 0) {
+            return new RtpEndpoint(bind(rtpPort), rtpPort + 1);
+        }
+        for (int attempt = 0; attempt < 16; attempt++) {
+            DatagramChannel rtp = bind(0);
+            int port = rtp.socket().getLocalPort();
+            if ((port & 1) == 0) {
+                try {
+                    return new RtpEndpoint(rtp, port + 1);
+                } catch (IOException e) {
+                    /* RTCP port taken; try another pair. */
+                }
+            } else {
+                rtp.close();
+            }
+        }
+        throw new IOException("Unable to find a free RTP/RTCP port pair");
+    }
+
+    private static DatagramChannel bind(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress((InetAddress)null, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private RtpEndpoint(DatagramChannel rtpChannel, int rtcpPort) throws IOException {
+        mRtpChannel = rtpChannel;
+        try {
+            mRtcpChannel = bind(rtcpPort);
+        } catch (IOException e) {
+            rtpChannel.close();
+            mPacer.close();
+            throw e;
+        }
+        mReceiveThread = new Thread(mRtcpReceiver, TAG + "-rtcp");
+        mReceiveThread.setDaemon(true);
+        mReceiveThread.start();
+        Log.i(TAG, "Bound RTP to port " + getRtpPort() + ", RTCP to " + getRtcpPort());
+    }
+
+    public int getRtpPort() {
+        return mRtpChannel.socket().getLocalPort();
+    }
+
+    public int getRtcpPort() {
+        return mRtcpChannel.socket().getLocalPort();
+    }
+
+    /**
+     * The pacer every {@link RtpSender} on this endpoint sends through; see
+     * {@link RtpPacer#setBudget(int)}.
+     */
+    public RtpPacer getPacer() {
+        return mPacer;
+    }
+
+    /**
+     * Starts sending to, and listening for RTCP from, a new peer.
+     *
+     * @param listener Receives the peer's RTCP; may be null.
+     */
+    public Peer register(RtpParticipant participant, RtcpListener listener) {
+        Peer peer = new Peer(participant, listener);
+        Peer previous = mPeersByAddress.put(peer.mRtcpAddress, peer);
+        if (previous != null) {
+            Log.w(TAG, "RTCP address " + peer.mRtcpAddress + " moved from " + previous +
+                    " to " + peer);
+        }
+        return peer;
+    }
+
+    /**
+     * Stops pacing and receiving and closes both sockets. Sends through any
+     * remaining peer fail from then on.
+     */
+    public void close() {
+        mClosed = true;
+        mPacer.close();
+        try {
+            mRtpChannel.close();
+        } catch (IOException e) {
+        }
+        try {
+            mRtcpChannel.close();
+        } catch (IOException e) {
+        }
+        boolean interrupted = false;
+        while (mReceiveThread.isAlive()) {
+            try {
+                mReceiveThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final Runnable mRtcpReceiver = new Runnable() {
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(MAX_RTCP_PACKET_SIZE);
+            while (!mClosed) {
+                SocketAddress from;
+                try {
+                    buf.clear();
+                    from = mRtcpChannel.receive(buf);
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    if (!mClosed) {
+                        Log.w(TAG, "RTCP receive failed: " + e);
+                    }
+                    continue;
+                }
+                buf.flip();
+                sRtcpReceived.inc();
+                dispatchRtcp(from, buf);
+            }
+        }
+    };
+
+    private void dispatchRtcp(SocketAddress from, ByteBuffer packet) {
+        Peer peer = mPeersByAddress.get(from);
+        if (peer == null) {
+            peer = findPeerBySsrc(packet);
+            if (peer != null) {
+                sRtcpBySsrc.inc();
+            }
+        }
+        if (peer == null) {
+            sRtcpUnmatched.inc();
+            return;
+        }
+        peer.mLastRtcpTime = System.nanoTime();
+        if (peer.mListener != null) {
+            peer.mListener.onRtcpPacket(peer, packet);
+        }
+    }
+
+    /*
+     * Walks the compound packet looking for a sender or receiver report with
+     * a report block about one of our SSRCs, or feedback about one.
+     */
+    private Peer findPeerBySsrc(ByteBuffer packet) {
+        int offset = packet.position();
+        int end = packet.limit();
+        while (offset + 8 <= end) {
+            int first = packet.get(offset) & 0xff;
+            int type = packet.get(offset + 1) & 0xff;
+            int length = ((packet.getShort(offset + 2) & 0xffff) + 1) * 4;
+            if ((first >> 6) != 2 || type < RTCP_SR || type > RTCP_PSFB ||
+                    offset + length > end) {
+                return null;
+            }
+
+            if ((type == RTCP_RTPFB || type == RTCP_PSFB) && length >= 12) {
+                Peer peer = mPeersBySsrc.get(packet.getInt(offset + 8));
+                if (peer != null) {
+                    return peer;
+                }
+                offset += length;
+                continue;
+            }
+
+            int reportCount = first & 0x1f;
+            int blocks = offset + (type == RTCP_SR ? 28 : type == RTCP_RR ? 8 : length);
+            for (int i = 0; i < reportCount && blocks + 24 <= offset + length; i++) {
+                Peer peer = mPeersBySsrc.get(packet.getInt(blocks));
+                if (peer != null) {
+                    return peer;
+                }
+                blocks += 24;
+            }
+            offset += length;
+        }
+        return null;
+    }
+
+    /**
+     * One peer's view of the endpoint. Sending is safe from any thread.
+     */
+    public class Peer implements Closeable {
+        private final RtpParticipant mParticipant;
+        private final InetSocketAddress mRtpAddress;
+        private final InetSocketAddress mRtcpAddress;
+        private final RtcpListener mListener;
+
+        private volatile int mSsrc;
+        private volatile boolean mHasSsrc;
+        private volatile long mLastRtcpTime;
+        private volatile boolean mClosed;
+
+        private Peer(RtpParticipant participant, RtcpListener listener) {
+            mParticipant = participant;
+            mListener = listener;
+            mRtpAddress = new InetSocketAddress(participant.hostAddress, participant.rtpPort);
+
+            /* Clients that don't name an RTCP port get the RTP port plus one. */
+            int rtcpPort = participant.rtcpPort != 0 ? participant.rtcpPort :
+                    participant.rtpPort + 1;
+            mRtcpAddress = new InetSocketAddress(participant.hostAddress, rtcpPort);
+        }
+
+        public RtpParticipant getParticipant() {
+            return mParticipant;
+        }
+
+        public RtpEndpoint getEndpoint() {
+            return RtpEndpoint.this;
+        }
+
+        /**
+         * Records the SSRC we send this peer, so that its receiver reports
+         * can be matched even if they arrive from an unexpected address.
+         */
+        public void setSsrc(int ssrc) {
+            if (mHasSsrc) {
+                mPeersBySsrc.remove(mSsrc, this);
+            }
+            mSsrc = ssrc;
+            mHasSsrc = true;
+            if (!mClosed) {
+                mPeersBySsrc.put(ssrc, this);
+            }
+        }
+
+        /**
+         * Time of the last RTCP packet from this peer, on the
+         * {@link System#nanoTime()} timeline, or zero if none has arrived.
+         */
+        public long getLastRtcpTime() {
+            return mLastRtcpTime;
+        }
+
+        /**
+         * Sends one packet, RTP or RTCP according to its payload type, from
+         * its position to its limit.
+         */
+        public void send(ByteBuffer packet) throws IOException {
+            if (mClosed) {
+                throw new IOException("Peer " + mParticipant + " is closed");
+            }
+            int type = packet.get(packet.position() + 1) & 0xff;
+            boolean rtcp = type >= RTCP_SR && type <= RTCP_APP;
+            try {
+                if (rtcp) {
+                    mRtcpChannel.send(packet, mRtcpAddress);
+                } else {
+                    mRtpChannel.send(packet, mRtpAddress);
+                }
+            } catch (IOException e) {
+                sSendErrors.inc();
+                throw e;
+            }
+        }
+
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mPeersByAddress.remove(mRtcpAddress, this);
+            if (mHasSsrc) {
+                mPeersBySsrc.remove(mSsrc, this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Peer" + mParticipant;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.devtcg.rojocam.rtp;
+
+import org.devtcg.rojocam.ffmpeg.EncodedFrame;
+import org.devtcg.rojocam.ffmpeg.EncodedFrameReceiver;
+import org.devtcg.rojocam.util.IOUtils;
+import org.devtcg.rojocam.util.MediaClock;
+import org.devtcg.rojocam.util.Metrics;
+import org.devtcg.rojocam.util.SubscriberTable;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Sends the encoded stream to every RTP peer of a capture session. Each frame
+ * is packetized once and the same packets go to every {@link RtpSender}, so
+ * that each additional peer costs only its header fields and the sends. The
+ * packets are also kept in a {@link PacketHistory} shared by the senders for
+ * retransmission and, optionally, protected with FEC parity computed once per
+ * protection level in use (see {@link FecEncoder}).
+ * <p>
+ * Senders only queue the packets; the {@link RtpPacer} of their endpoint
+ * sends them. All the senders of a fan-out must share one pacer, the only
+ * thread that touches a frame once it is queued. A sender whose queue
+ * overflows skips ahead to the next keyframe, which the fan-out can ask the
+ * encoder to bring forward.
+ */
+public class RtpFanout implements EncodedFrameReceiver {
+    private static final String TAG = RtpFanout.class.getSimpleName();
+
+    /* Stream time between early keyframes asked for on behalf of senders. */
+    private static final long MIN_KEYFRAME_REQUEST_INTERVAL_USEC = 2000000;
+
+    private static final Metrics.Counter sKeyFrameRequests =
+            Metrics.counter("rtp.keyframe_requests");
+
+    /** Brings the next keyframe forward. */
+    public interface KeyFrameRequester {
+        /** Called on the thread delivering frames. */
+        public void requestKeyFrame();
+    }
+
+    /* Confined to the thread delivering frames. */
+    private final RtpPacketizer mPacketizer;
+
+    private final PacketHistory mHistory = new PacketHistory(PacketHistory.DEFAULT_CAPACITY);
+    private final FecEncoder mFec;
+    private final KeyFrameRequester mKeyFrameRequester;
+    private long mLastKeyFrameUsec = -1;
+
+    private final SubscriberTable<RtpSender> mSenders = new SubscriberTable<RtpSender>();
+
+    /**
+     * @param fecEnabled Whether to send FEC to peers reporting loss; only if
+     *            the SDP offered it.
+     * @param keyFrameRequester Asked for a keyframe when a sender is waiting
+     *            for one; null to wait for the next one due.
+     */
+    public RtpFanout(MediaClock clock, boolean fecEnabled, KeyFrameRequester keyFrameRequester) {
+        mPacketizer = new RtpPacketizer(clock);
+        mFec = fecEnabled ? new FecEncoder() : null;
+        mKeyFrameRequester = keyFrameRequester;
+    }
+
+    /**
+     * @return True if this was the first sender.
+     */
+    public synchronized boolean addSender(RtpSender sender) {
+        boolean first = mSenders.isEmpty();
+        sender.attach(mHistory, mFec != null);
+        mSenders.add(sender);
+        return first;
+    }
+
+    /**
+     * @return True if no senders remain.
+     */
+    public synchronized boolean removeSender(RtpSender sender) {
+        mSenders.remove(sender);
+        sender.detach();
+        return mSenders.isEmpty();
+    }
+
+    public void onEncodedFrame(EncodedFrame frame) {
+        if (mSenders.isEmpty()) {
+            return;
+        }
+
+        PacketizedFrame packets = mPacketizer.packetize(frame);
+        mHistory.store(packets);
+        if (mFec != null) {
+            protect(packets);
+        }
+        if (packets.isKeyFrame()) {
+            mLastKeyFrameUsec = packets.getPtsUsec();
+        }
+        boolean wantKeyFrame = false;
+        for (int i = 0; i < mSenders.getSlotCount(); i++) {
+            RtpSender sender = mSenders.get(i);
+            if (sender == null) {
+                continue;
+            }
+            long handle = mSenders.getHandle(i);
+            try {
+                sender.enqueue(packets);
+                wantKeyFrame |= sender.isSkippingToKeyFrame();
+            } catch (IOException e) {
+                Log.w(TAG, "Error writing to sender: " + sender);
+                mSenders.remove(handle);
+            }
+        }
+        mSenders.reclaim();
+
+        if (wantKeyFrame && mKeyFrameRequester != null && (mLastKeyFrameUsec < 0 ||
+                packets.getPtsUsec() - mLastKeyFrameUsec >= MIN_KEYFRAME_REQUEST_INTERVAL_USEC)) {
+            mKeyFrameRequester.requestKeyFrame();
+            sKeyFrameRequests.inc();
+            /* Not again until this one has had time to arrive. */
+            mLastKeyFrameUsec = packets.getPtsUsec();
+        }
+        packets.release();
+    }
+
+    private void protect(PacketizedFrame packets) {
+        int levels = 0;
+        for (int i = 0; i < mSenders.getSlotCount(); i++) {
+            RtpSender sender = mSenders.get(i);
+            if (sender != null) {
+                levels |= 1 << sender.getFecLevel();
+            }
+        }
+
+        mFec.beginFrame(packets);
+        for (int i = 0; i < packets.getPacketCount(); i++) {
+            mFec.addPacket(packets.getPayload(i), packets.getMarkerPt(i), packets.getRtpTime(),
+                    packets.getPacketId(i), i, levels);
+        }
+    }
+
+    /**
+     * Closes every sender.
+     */
+    public void close() {
+        for (int i = 0; i < mSenders.getSlotCount(); i++) {
+            RtpSender sender = mSenders.get(i);
+            if (sender != null) {
+                IOUtils.closeQuietly(sender);
+            }
+        }
+    }
+}
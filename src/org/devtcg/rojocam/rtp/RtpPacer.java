@@ -0,0 +1,264 @@
+package org.devtcg.rojocam.rtp;
+
+import org.devtcg.rojocam.util.Metrics;
+import org.devtcg.rojocam.util.SubscriberTable;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces everything the node sends its RTP peers to a single uplink budget,
+ * so that bursts don't overflow the access point and viewers don't compete
+ * for the phone's limited uplink.
+ * <p>
+ * Each {@link RtpSender} queues its frames here and gets a token bucket,
+ * filled at a share of the budget in proportion to its weight (see
+ * {@link RtpSender#setWeight(int)}). One thread wakes on a short timer while
+ * anything is queued and sends whatever each bucket allows; the share of
+ * senders with nothing queued goes to the others. A sender whose stream
+ * doesn't fit its own share falls behind and drops to keyframes only (see
+ * {@link RtpSender}), rather than taking bandwidth from the rest.
+ * <p>
+ * What is actually sent is measured (see {@link #getUsage()}), for admission
+ * control to judge what another peer would cost.
+ */
+public class RtpPacer implements Closeable {
+    private static final String TAG = RtpPacer.class.getSimpleName();
+
+    /** Default budget, in bytes per second: 2 Mbit/s. */
+    public static final int DEFAULT_BUDGET = 256 * 1024;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /* Longest gap credited at once, should the thread be held up. */
+    private static final long MAX_ELAPSED_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /* Seconds of its rate a sender's bucket holds, but at least two packets. */
+    private static final double BURST_SECONDS = 0.02;
+    private static final int MIN_BURST = 2 * RtpPacketizer.MAX_PACKET_SIZE;
+
+    /* Span over which usage is measured. */
+    private static final long USAGE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Metrics.Counter sTicks = Metrics.counter("rtp.pacer_ticks");
+
+    private final SubscriberTable<RtpSender> mSenders = new SubscriberTable<RtpSender>();
+    private final Thread mThread;
+
+    private volatile int mBudget = DEFAULT_BUDGET;
+    private volatile boolean mIdle;
+    private volatile boolean mClosed;
+
+    /* Measured by the pacer thread; see getUsage(). */
+    private long mUsageWindowStart = System.nanoTime();
+    private long mUsageWindowBytes;
+    private volatile int mUsage;
+    private volatile long mUsageTime;
+    private volatile int mPeerCount;
+
+    public RtpPacer() {
+        mThread = new Thread(mPacer, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+        registerGauges();
+    }
+
+    private void registerGauges() {
+        Metrics.gauge("rtp.uplink_budget", new Metrics.Gauge() {
+            public long getValue() {
+                return mBudget;
+            }
+        });
+        Metrics.gauge("rtp.uplink_usage", new Metrics.Gauge() {
+            public long getValue() {
+                return getUsage();
+            }
+        });
+    }
+
+    /**
+     * Sets the total rate at which this node sends RTP and RTCP, in bytes
+     * per second.
+     */
+    public void setBudget(int bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        mBudget = bytesPerSecond;
+    }
+
+    public int getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Bytes per second sent over the last second or so, to every peer.
+     */
+    public int getUsage() {
+        /* Nothing is measured while there is nothing to send. */
+        if (System.nanoTime() - mUsageTime > 2 * USAGE_WINDOW_NANOS) {
+            return 0;
+        }
+        return mUsage;
+    }
+
+    /**
+     * Number of senders sharing the budget, i.e. those in a fan-out.
+     */
+    public int getPeerCount() {
+        return mPeerCount;
+    }
+
+    /**
+     * Starts pacing a sender. It stays until it is closed, and then until
+     * the frames it had queued are released.
+     */
+    void add(RtpSender sender) {
+        mSenders.add(sender);
+        wake();
+    }
+
+    /**
+     * Wakes the pacer if it is waiting for something to be queued.
+     */
+    void wake() {
+        if (mIdle) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Stops the pacer thread. Queued frames are not sent.
+     */
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final Runnable mPacer = new Runnable() {
+        public void run() {
+            long last = System.nanoTime();
+            while (!mClosed) {
+                long now = System.nanoTime();
+                double elapsed = Math.min(now - last, MAX_ELAPSED_NANOS) / 1e9;
+                last = now;
+
+                if (pump(elapsed)) {
+                    LockSupport.parkNanos(RtpPacer.this, TICK_NANOS);
+                } else {
+                    mIdle = true;
+                    if (!hasBacklog() && !mClosed) {
+                        LockSupport.park(RtpPacer.this);
+                    }
+                    mIdle = false;
+                    last = System.nanoTime();
+                }
+            }
+            for (int i = 0; i < mSenders.getSlotCount(); i++) {
+                RtpSender sender = mSenders.get(i);
+                if (sender != null) {
+                    sender.drain();
+                }
+            }
+        }
+    };
+
+    /*
+     * One pass over the senders, crediting each with its share of the
+     * elapsed time's budget and sending what that allows.
+     *
+     * Returns true if anything is left queued.
+     */
+    private boolean pump(double elapsed) {
+        sTicks.inc();
+
+        int totalWeight = 0;
+        int backloggedWeight = 0;
+        int peerCount = 0;
+        for (int i = 0; i < mSenders.getSlotCount(); i++) {
+            RtpSender sender = mSenders.get(i);
+            if (sender == null) {
+                continue;
+            }
+            long handle = mSenders.getHandle(i);
+            if (sender.isClosed()) {
+                sender.drain();
+                mSenders.remove(handle);
+                continue;
+            }
+            if (sender.isAttached()) {
+                totalWeight += sender.getWeight();
+                peerCount++;
+            }
+            if (sender.hasBacklog()) {
+                backloggedWeight += sender.getWeight();
+            }
+        }
+        mSenders.reclaim();
+
+        int budget = mBudget;
+        int sent = 0;
+        boolean backlog = false;
+        for (int i = 0; i < mSenders.getSlotCount(); i++) {
+            RtpSender sender = mSenders.get(i);
+            if (sender == null) {
+                continue;
+            }
+            int weight = sender.getWeight();
+            sender.setShare(totalWeight > 0 ? (int)((long)budget * weight / totalWeight) :
+                    budget);
+
+            /* A sender may have queued something since it was counted. */
+            double rate = sender.hasBacklog() ?
+                    (double)budget * weight / Math.max(backloggedWeight, weight) :
+                    sender.getShare();
+            sent += sender.pump(rate * elapsed, Math.max(MIN_BURST, rate * BURST_SECONDS));
+            if (sender.hasBacklog()) {
+                backlog = true;
+            }
+        }
+        mPeerCount = peerCount;
+        measureUsage(sent);
+        return backlog;
+    }
+
+    private void measureUsage(int sent) {
+        long now = System.nanoTime();
+        mUsageWindowBytes += sent;
+        long span = now - mUsageWindowStart;
+        if (span >= USAGE_WINDOW_NANOS) {
+            /* A window spanning an idle spell includes it, as it should. */
+            mUsage = (int)(mUsageWindowBytes * 1000000000L / span);
+            mUsageTime = now;
+            mUsageWindowStart = now;
+            mUsageWindowBytes = 0;
+        }
+    }
+
+    private boolean hasBacklog() {
+        for (int i = 0; i < mSenders.getSlotCount(); i++) {
+            RtpSender sender = mSenders.get(i);
+            if (sender != null && (sender.hasBacklog() || sender.isClosed())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "[budget=" + mBudget + "]";
+    }
+}
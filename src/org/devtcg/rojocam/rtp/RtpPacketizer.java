@@ -0,0 +1,80 @@
+package org.devtcg.rojocam.rtp;
+
+import org.devtcg.rojocam.ffmpeg.EncodedFrame;
+import org.devtcg.rojocam.util.MediaClock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Splits encoded MPEG-4 video frames into RTP payloads as described by RFC
+ * 3016: each frame is cut at the maximum payload size and the marker bit is
+ * set on its last packet. This is what ffmpeg's RTP muxer did for us before,
+ * except that the result is shared by every peer; see {@link PacketizedFrame}.
+ */
+public class RtpPacketizer {
+    public static final int HEADER_SIZE = 12;
+
+    /* An Ethernet MTU less the IPv4 and UDP headers. */
+    public static final int MAX_PACKET_SIZE = 1472;
+
+    /* Leaves room for the FEC headers of RFC 5109 (and the smaller RFC 4588
+     * retransmission header), so that packets built over a payload fit too. */
+    public static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - FecParity.HEADER_SIZE;
+
+    /** The dynamic payload type avf_sdp_create gives our video stream. */
+    public static final int PAYLOAD_TYPE = 96;
+
+    /** Clock rate of RTP timestamps, as for all video (RFC 3551). */
+    public static final int CLOCK_RATE = 90000;
+
+    private final MediaClock mClock;
+
+    /* Released frames, ready for reuse. */
+    private final ConcurrentLinkedQueue<PacketizedFrame> mPool =
+            new ConcurrentLinkedQueue<PacketizedFrame>();
+
+    public RtpPacketizer(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Packetizes a frame into one taken from the pool, holding a single
+     * reference that the caller must release.
+     */
+    public PacketizedFrame packetize(EncodedFrame frame) {
+        PacketizedFrame packets = mPool.poll();
+        if (packets == null) {
+            packets = new PacketizedFrame(mPool);
+        }
+        packets.retain();
+
+        int size = frame.size;
+        int packetCount = Math.max(1, (size + MAX_PAYLOAD_SIZE - 1) / MAX_PAYLOAD_SIZE);
+        ByteBuffer arena = packets.reset(packetCount, size + packetCount * HEADER_SIZE);
+
+        ByteBuffer src = frame.data.duplicate();
+        int remaining = size;
+        for (int i = 0; i < packetCount; i++) {
+            int payloadSize = Math.min(remaining, MAX_PAYLOAD_SIZE);
+            int offset = arena.position();
+            boolean marker = (i == packetCount - 1);
+
+            /* Fixed fields: version 2, no padding, extension or CSRCs. */
+            arena.put((byte)0x80);
+            arena.put((byte)((marker ? 0x80 : 0) | PAYLOAD_TYPE));
+            arena.position(offset + HEADER_SIZE);
+
+            src.limit(size - remaining + payloadSize);
+            src.position(size - remaining);
+            arena.put(src);
+
+            packets.addPacket(offset, HEADER_SIZE + payloadSize);
+            remaining -= payloadSize;
+        }
+
+        packets.setTiming(frame.ptsUsec, mClock.toWallClockUsec(frame.ptsUsec),
+                frame.ptsUsec * CLOCK_RATE / 1000000, frame.keyFrame);
+        return packets;
+    }
+}
@@ -0,0 +1,74 @@
+package org.devtcg.rojocam.rtp;
+
+import org.devtcg.rojocam.ffmpeg.FFStreamConfig;
+
+/**
+ * Adds what our RTP sessions support beyond plain RTP/AVP to the SDP ffmpeg
+ * generates for the stream: generic NACK feedback (RFC 4585) answered with
+ * RFC 4588 retransmissions and, if enabled, RFC 5109 FEC.
+ * <p>
+ * The profile stays RTP/AVP rather than AVPF so that players which know
+ * nothing of feedback still accept the description; those that do pick up the
+ * rtcp-fb attribute regardless.
+ */
+public class RtpSdp {
+    /*
+     * How long packets stay available for retransmission, as advertised. The
+     * history is bounded by packet count rather than time, and holds several
+     * times this at our bitrates.
+     */
+    private static final int RTX_TIME_MSEC = 3000;
+
+    private RtpSdp() {}
+
+    public static String describe(FFStreamConfig config) {
+        return describe(config.getSDPDescription(), config.isFecEnabled());
+    }
+
+    /**
+     * @param sdp Description of a single video stream with payload type
+     *            {@link RtpPacketizer#PAYLOAD_TYPE}.
+     */
+    public static String describe(String sdp, boolean fec) {
+        String eol = sdp.indexOf("\r\n") >= 0 ? "\r\n" : "\n";
+        int pt = RtpPacketizer.PAYLOAD_TYPE;
+
+        StringBuilder b = new StringBuilder(sdp.length() + 256);
+        boolean inVideo = false;
+        for (String line: sdp.split("\r?\n")) {
+            if (line.startsWith("m=")) {
+                if (inVideo) {
+                    appendVideoAttributes(b, pt, fec, eol);
+                }
+                inVideo = line.startsWith("m=video ");
+                if (inVideo) {
+                    line = line + " " + RtpSender.RTX_PAYLOAD_TYPE;
+                    if (fec) {
+                        line = line + " " + FecEncoder.PAYLOAD_TYPE;
+                    }
+                }
+            }
+            if (line.length() > 0) {
+                b.append(line).append(eol);
+            }
+        }
+        if (inVideo) {
+            appendVideoAttributes(b, pt, fec, eol);
+        }
+        return b.toString();
+    }
+
+    private static void appendVideoAttributes(StringBuilder b, int pt, boolean fec,
+            String eol) {
+        int rtx = RtpSender.RTX_PAYLOAD_TYPE;
+        b.append("a=rtcp-fb:").append(pt).append(" nack").append(eol);
+        b.append("a=rtpmap:").append(rtx).append(" rtx/").append(RtpPacketizer.CLOCK_RATE)
+                .append(eol);
+        b.append("a=fmtp:").append(rtx).append(" apt=").append(pt)
+                .append(";rtx-time=").append(RTX_TIME_MSEC).append(eol);
+        if (fec) {
+            b.append("a=rtpmap:").append(FecEncoder.PAYLOAD_TYPE).append(" ulpfec/")
+                    .append(RtpPacketizer.CLOCK_RATE).append(eol);
+        }
+    }
+}
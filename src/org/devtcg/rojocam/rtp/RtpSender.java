@@ -0,0 +1,834 @@
+package org.devtcg.rojocam.rtp;
+
+import org.devtcg.rojocam.rtsp.RtpParticipant;
+import org.devtcg.rojocam.util.Metrics;
+import org.devtcg.rojocam.util.SpscQueue;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The sending half of one peer's RTP session: its SSRC, sequence numbers and
+ * timestamp offset, stamped onto the shared packets of each frame (see
+ * {@link PacketizedFrame}), plus the RTCP sender reports for it.
+ * <p>
+ * Packets the peer reports lost with a generic NACK (RFC 4585) are resent
+ * from the fan-out's {@link PacketHistory} as an RFC 4588 retransmission
+ * stream, multiplexed by SSRC, up to a per-peer bandwidth limit. If the
+ * fan-out has FEC enabled, the loss the peer reports in its receiver reports
+ * picks a protection level (see {@link FecEncoder}) and the matching parity
+ * packets follow the media as another SSRC.
+ * <p>
+ * Frames are queued by an {@link RtpFanout}, on its thread, and sent by the
+ * endpoint's {@link RtpPacer} within this peer's share of the uplink budget.
+ * A peer that falls more than {@link #MAX_BACKLOG_SECONDS} of its share
+ * behind is sent keyframes only, until it has caught up and the stream fits
+ * its share again. Retransmissions are sent straight away but are charged to
+ * the same share.
+ * <p>
+ * The queue is also bounded in bytes and in latency (see
+ * {@link #setBacklogLimits}). When a frame would overflow it, everything
+ * queued is discarded and so is every frame up to the next keyframe, so that
+ * the peer sees the picture freeze rather than decode against missing
+ * references. Dropped frames are counted by {@link DropReason}.
+ * <p>
+ * RTCP from the peer must be passed to {@link #onRtcpPacket} from a single
+ * thread.
+ */
+public class RtpSender implements Closeable {
+    private static final String TAG = RtpSender.class.getSimpleName();
+
+    /* Same interval ffmpeg's muxer used. */
+    private static final long SENDER_REPORT_INTERVAL_USEC = 5000000;
+
+    /* Seconds from the NTP epoch (1900) to the Unix epoch. */
+    private static final long NTP_OFFSET = 2208988800L;
+
+    /** Payload type of retransmissions, associated with ours in the SDP. */
+    public static final int RTX_PAYLOAD_TYPE = 97;
+
+    /** Default limit on retransmission bandwidth, in bytes per second. */
+    public static final int DEFAULT_RETRANSMIT_LIMIT = 16 * 1024;
+
+    /*
+     * Smoothed loss at which each FEC level kicks in. Below the first, no
+     * parity is sent at all.
+     */
+    private static final double[] FEC_LOSS_THRESHOLDS = { 0, 0.01, 0.03, 0.06, 0.12 };
+
+    /* Frames queued for the pacer before the queue overflows. */
+    private static final int QUEUE_CAPACITY = 32;
+
+    /* Frames not yet fully sent: the queue, and the one being sent. */
+    private static final int MAX_PENDING = QUEUE_CAPACITY + 1;
+
+    /** Default limits on what may be queued for the peer. */
+    public static final int DEFAULT_MAX_BACKLOG_BYTES = 256 * 1024;
+    public static final int DEFAULT_MAX_BACKLOG_MSEC = 1000;
+
+    /** Backlog, in seconds of the peer's share, that triggers keyframes only. */
+    public static final double MAX_BACKLOG_SECONDS = 0.5;
+
+    /* Fraction of its share the stream must fit to leave keyframes only. */
+    private static final double RECOVERY_FRACTION = 0.9;
+
+    /* Span of stream over which its rate is measured. */
+    private static final long RATE_WINDOW_USEC = 1000000;
+
+    /* Sequence numbers remembered for retransmission; a power of two. */
+    private static final int SENT_ID_COUNT = 1024;
+
+    private static final int RTCP_SR = 200;
+    private static final int RTCP_RR = 201;
+    private static final int RTCP_SDES = 202;
+    private static final int RTCP_RTPFB = 205;
+    private static final int RTPFB_GENERIC_NACK = 1;
+    private static final int SDES_CNAME = 1;
+    private static final byte[] CNAME = "rojocam".getBytes();
+
+    private static final Metrics.Counter sPackets = Metrics.counter("rtp.packets_sent");
+    private static final Metrics.Counter sOctets = Metrics.counter("rtp.octets_sent");
+    private static final Metrics.Counter sReports = Metrics.counter("rtcp.sender_reports");
+    private static final Metrics.Counter sNacked = Metrics.counter("rtp.nacked");
+    private static final Metrics.Counter sRetransmitted = Metrics.counter("rtp.retransmitted");
+    private static final Metrics.Counter sRetransmitExpired =
+            Metrics.counter("rtp.retransmit_expired");
+    private static final Metrics.Counter sRetransmitLimited =
+            Metrics.counter("rtp.retransmit_limited");
+    private static final Metrics.Counter sFecSent = Metrics.counter("rtp.fec_sent");
+    private static final Metrics.Counter sKeyFramesOnly = Metrics.counter("rtp.keyframes_only");
+    private static final Metrics.Counter sSkips = Metrics.counter("rtp.skips_to_keyframe");
+
+    /** Why frames are not sent to a peer. */
+    public enum DropReason {
+        /** The stream doesn't fit the peer's share; keyframes only. */
+        OVER_SHARE("frames_dropped_over_share"),
+
+        /** The queue overflowed its frame count. */
+        QUEUE_FULL("frames_dropped_queue_full"),
+
+        /** The queue overflowed its byte limit. */
+        BACKLOG_BYTES("frames_dropped_backlog_bytes"),
+
+        /** The queue overflowed its latency limit. */
+        BACKLOG_LATENCY("frames_dropped_backlog_latency");
+
+        private final String mMetric;
+        private final Metrics.Counter mCounter;
+
+        private DropReason(String metric) {
+            mMetric = metric;
+            mCounter = Metrics.counter("rtp." + metric);
+        }
+    }
+
+    /* Counters of one traffic class; see setTrafficClass(). */
+    private static class ClassMetrics {
+        final Metrics.Counter packets;
+        final Metrics.Counter octets;
+        final Metrics.Counter[] drops;
+
+        ClassMetrics(String name) {
+            String prefix = "rtp.class." + name + ".";
+            packets = Metrics.counter(prefix + "packets_sent");
+            octets = Metrics.counter(prefix + "octets_sent");
+            DropReason[] reasons = DropReason.values();
+            drops = new Metrics.Counter[reasons.length];
+            for (int i = 0; i < reasons.length; i++) {
+                drops[i] = Metrics.counter(prefix + reasons[i].mMetric);
+            }
+        }
+    }
+
+    private static final Random sRandom = new Random();
+
+    private final RtpEndpoint.Peer mPeer;
+    private final RtpPacer mPacer;
+    private final int mSsrc;
+    private final int mTimestampOffset;
+
+    private final SpscQueue<PacketizedFrame> mQueue =
+            new SpscQueue<PacketizedFrame>(QUEUE_CAPACITY);
+
+    /* Bytes of packets queued or partly sent. */
+    private final AtomicInteger mBacklog = new AtomicInteger();
+
+    /* Bytes retransmitted, yet to be charged to the bucket. */
+    private final AtomicInteger mRetransmitDebt = new AtomicInteger();
+
+    private volatile int mWeight = 1;
+    private volatile int mShare = RtpPacer.DEFAULT_BUDGET;
+    private volatile boolean mAttached;
+
+    private volatile ClassMetrics mClassMetrics;
+
+    private volatile int mMaxBacklogBytes = DEFAULT_MAX_BACKLOG_BYTES;
+    private volatile int mMaxBacklogMsec = DEFAULT_MAX_BACKLOG_MSEC;
+
+    /* Frames dropped, by DropReason ordinal. */
+    private final AtomicLongArray mDrops = new AtomicLongArray(DropReason.values().length);
+
+    /*
+     * Frames are numbered in the order queued. Those before the flush mark
+     * are to be discarded, for the flush reason, by the pacer; it publishes
+     * how many frames it is done with, sent or discarded.
+     */
+    private volatile long mFlushMark;
+    private volatile DropReason mFlushReason;
+    private volatile long mDoneCount;
+
+    /* Written only by the fan-out thread. */
+    private volatile boolean mKeyFramesOnly;
+    private volatile DropReason mSkipReason;
+    private long mQueuedCount;
+    private final long[] mPendingPts = new long[MAX_PENDING];
+    private long mRateWindowStartUsec = -1;
+    private int mRateWindowBytes;
+    private int mStreamRate;
+
+    /* Confined to the pacer thread. */
+    private PacketizedFrame mFrame;
+    private int mFrameTimestamp;
+    private int mNextPacket;
+    private double mTokens;
+    private int mSequence;
+    private long mPacketCount;
+    private long mOctetCount;
+    private long mLastReportUsec = -1;
+    private final ByteBuffer mReport = ByteBuffer.allocateDirect(64);
+    private final int mFecSsrc;
+    private int mFecSequence;
+
+    /* Run of consecutive history ids most recently sent, for FEC. */
+    private long mRunFirstId = -1;
+    private int mRunFirstSeq;
+    private long mRunNextId = -1;
+
+    /*
+     * History id of each recently sent sequence number, indexed by its low
+     * bits and packed as (id << 16 | sequence) so that stale entries can be
+     * told apart. Written by the pacer thread, read by the RTCP one.
+     */
+    private final AtomicLongArray mSentIds = new AtomicLongArray(SENT_ID_COUNT);
+    private volatile PacketHistory mHistory;
+    private volatile boolean mFecEnabled;
+    private volatile int mFecLevel;
+
+    /* Confined to the RTCP thread. */
+    private final int mRtxSsrc;
+    private int mRtxSequence;
+    private final ByteBuffer mRtxPacket =
+            ByteBuffer.allocateDirect(RtpPacketizer.MAX_PACKET_SIZE);
+    private final PacketHistory.PacketInfo mRtxInfo = new PacketHistory.PacketInfo();
+    private volatile int mRetransmitLimit = DEFAULT_RETRANSMIT_LIMIT;
+    private double mRetransmitTokens = DEFAULT_RETRANSMIT_LIMIT;
+    private long mLastRefillNanos = System.nanoTime();
+    private double mLoss = -1;
+
+    private volatile boolean mClosed;
+
+    /**
+     * @param peer Where to send; owned by the caller, who closes it once this
+     *            sender is closed.
+     */
+    public RtpSender(RtpEndpoint.Peer peer) {
+        mPeer = peer;
+        mPacer = peer.getEndpoint().getPacer();
+        synchronized (sRandom) {
+            mSsrc = sRandom.nextInt();
+            mSequence = sRandom.nextInt() & 0xffff;
+            mTimestampOffset = sRandom.nextInt();
+            mRtxSsrc = sRandom.nextInt();
+            mRtxSequence = sRandom.nextInt() & 0xffff;
+            mFecSsrc = sRandom.nextInt();
+            mFecSequence = sRandom.nextInt() & 0xffff;
+        }
+        for (int i = 0; i < SENT_ID_COUNT; i++) {
+            mSentIds.set(i, -1);
+        }
+        peer.setSsrc(mSsrc);
+    }
+
+    /**
+     * Called by the fan-out the sender is added to.
+     *
+     * @param history Where packets are kept for retransmission.
+     * @param fecEnabled Whether the fan-out computes FEC parity.
+     */
+    void attach(PacketHistory history, boolean fecEnabled) {
+        mHistory = history;
+        mFecEnabled = fecEnabled;
+        mAttached = true;
+        mPacer.add(this);
+    }
+
+    /**
+     * Called when the fan-out the sender was added to lets it go. Frames
+     * already queued are still sent.
+     */
+    void detach() {
+        mAttached = false;
+        mPacer.wake();
+    }
+
+    /** Whether the sender is in a fan-out, and so due a share of the budget. */
+    boolean isAttached() {
+        return mAttached;
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Sets this peer's weight relative to the others when sharing the
+     * {@link RtpPacer}'s budget; 1 by default.
+     */
+    public void setWeight(int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        mWeight = weight;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /** This peer's share of the uplink budget, in bytes per second. */
+    public int getShare() {
+        return mShare;
+    }
+
+    void setShare(int bytesPerSecond) {
+        mShare = bytesPerSecond;
+    }
+
+    /** Whether the peer is currently sent keyframes only. */
+    public boolean isKeyFramesOnly() {
+        return mKeyFramesOnly;
+    }
+
+    /**
+     * Counts this peer's traffic and drops under <code>rtp.class.name.*</code>
+     * as well, alongside every other peer of the same class.
+     */
+    public void setTrafficClass(String name) {
+        mClassMetrics = new ClassMetrics(name);
+    }
+
+    /**
+     * Bounds what may be queued for this peer, in bytes and in how far the
+     * newest frame is ahead of the oldest one not yet sent.
+     */
+    public void setBacklogLimits(int maxBytes, int maxMsec) {
+        if (maxBytes <= 0 || maxMsec <= 0) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        mMaxBacklogBytes = maxBytes;
+        mMaxBacklogMsec = maxMsec;
+    }
+
+    /**
+     * Whether frames are being dropped until the next keyframe, after the
+     * queue overflowed.
+     */
+    public boolean isSkippingToKeyFrame() {
+        return mSkipReason != null;
+    }
+
+    /** Number of frames not sent to this peer for the given reason. */
+    public long getDropCount(DropReason reason) {
+        return mDrops.get(reason.ordinal());
+    }
+
+    /**
+     * The FEC protection level currently chosen for this peer, zero if
+     * none.
+     */
+    int getFecLevel() {
+        return mFecLevel;
+    }
+
+    /**
+     * Loss reported by the peer, smoothed, as a fraction; negative until
+     * the first report.
+     */
+    public double getLoss() {
+        return mLoss;
+    }
+
+    /**
+     * Limits the bandwidth spent on retransmissions to this peer, allowing
+     * bursts of up to a second's worth.
+     */
+    public void setRetransmitLimit(int bytesPerSecond) {
+        mRetransmitLimit = bytesPerSecond;
+    }
+
+    public RtpParticipant getParticipant() {
+        return mPeer.getParticipant();
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    /**
+     * Queues a frame for the pacer, unless the peer is being sent keyframes
+     * only or is skipping to a keyframe and this isn't one. A frame that
+     * would overflow the queue starts a skip instead.
+     *
+     * @throws IOException If the sender has been closed.
+     */
+    void enqueue(PacketizedFrame frame) throws IOException {
+        if (mClosed) {
+            throw new IOException(this + " is closed");
+        }
+
+        measureStreamRate(frame);
+        int share = mShare;
+        int backlog = mBacklog.get();
+        if (!mKeyFramesOnly) {
+            if (backlog > share * MAX_BACKLOG_SECONDS) {
+                mKeyFramesOnly = true;
+                sKeyFramesOnly.inc();
+                Log.i(TAG, this + ": " + backlog + " bytes behind at " + share +
+                        " bytes/s, sending keyframes only");
+            }
+        } else if (frame.isKeyFrame() && backlog == 0 &&
+                mStreamRate <= share * RECOVERY_FRACTION) {
+            mKeyFramesOnly = false;
+            Log.i(TAG, this + ": caught up, sending every frame");
+        }
+
+        DropReason skip = mSkipReason;
+        if (skip != null) {
+            if (!frame.isKeyFrame()) {
+                drop(skip, 1);
+                return;
+            }
+            mSkipReason = null;
+        } else if (mKeyFramesOnly && !frame.isKeyFrame()) {
+            drop(DropReason.OVER_SHARE, 1);
+            return;
+        } else {
+            DropReason overflow = checkBacklog(frame, backlog);
+            if (overflow != null) {
+                skipToKeyFrame(overflow);
+                if (!frame.isKeyFrame()) {
+                    drop(overflow, 1);
+                    return;
+                }
+                /* Everything before it is being discarded; send it next. */
+                mSkipReason = null;
+            }
+        }
+
+        frame.retain();
+        mBacklog.addAndGet(frame.getPacketsSize());
+        if (!mQueue.offer(frame)) {
+            mBacklog.addAndGet(-frame.getPacketsSize());
+            frame.release();
+            skipToKeyFrame(DropReason.QUEUE_FULL);
+            drop(DropReason.QUEUE_FULL, 1);
+            return;
+        }
+        mPendingPts[(int)(mQueuedCount % MAX_PENDING)] = frame.getPtsUsec();
+        mQueuedCount++;
+        mPacer.wake();
+    }
+
+    /*
+     * Returns why queueing the frame would overflow the backlog limits, or
+     * null if it wouldn't.
+     */
+    private DropReason checkBacklog(PacketizedFrame frame, int backlog) {
+        if (mQueue.size() >= QUEUE_CAPACITY) {
+            return DropReason.QUEUE_FULL;
+        }
+        if (backlog + frame.getPacketsSize() > mMaxBacklogBytes) {
+            return DropReason.BACKLOG_BYTES;
+        }
+        long oldest = Math.max(mDoneCount, mFlushMark);
+        if (oldest < mQueuedCount) {
+            long oldestPts = mPendingPts[(int)(oldest % MAX_PENDING)];
+            if (frame.getPtsUsec() - oldestPts > mMaxBacklogMsec * 1000L) {
+                return DropReason.BACKLOG_LATENCY;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Has the pacer discard everything queued so far, and drops frames from
+     * here on until a keyframe.
+     */
+    private void skipToKeyFrame(DropReason reason) {
+        if (mQueuedCount > mFlushMark) {
+            mFlushReason = reason;
+            mFlushMark = mQueuedCount;
+        }
+        mSkipReason = reason;
+        sSkips.inc();
+        Log.i(TAG, this + ": backlog overflowed (" + reason + "), skipping to a keyframe");
+        mPacer.wake();
+    }
+
+    private void drop(DropReason reason, int frames) {
+        mDrops.addAndGet(reason.ordinal(), frames);
+        reason.mCounter.add(frames);
+        ClassMetrics classMetrics = mClassMetrics;
+        if (classMetrics != null) {
+            classMetrics.drops[reason.ordinal()].add(frames);
+        }
+    }
+
+    private void measureStreamRate(PacketizedFrame frame) {
+        long pts = frame.getPtsUsec();
+        if (mRateWindowStartUsec < 0 || pts < mRateWindowStartUsec) {
+            mRateWindowStartUsec = pts;
+            mRateWindowBytes = 0;
+        }
+        mRateWindowBytes += frame.getPacketsSize();
+        long span = pts - mRateWindowStartUsec;
+        if (span >= RATE_WINDOW_USEC) {
+            mStreamRate = (int)(mRateWindowBytes * 1000000L / span);
+            mRateWindowStartUsec = pts;
+            mRateWindowBytes = 0;
+        }
+    }
+
+    /** Whether anything is queued or part sent. Pacer thread only. */
+    boolean hasBacklog() {
+        return mFrame != null || !mQueue.isEmpty();
+    }
+
+    /*
+     * Discards frames queued before the flush mark, including any partly
+     * sent.
+     */
+    private void flush() {
+        long mark = mFlushMark;
+        long done = mDoneCount;
+        if (done >= mark) {
+            return;
+        }
+        int discarded = 0;
+        PacketizedFrame frame = mFrame;
+        if (frame != null) {
+            int remaining = 0;
+            for (int i = mNextPacket; i < frame.getPacketCount(); i++) {
+                remaining += frame.getPacketLength(i);
+            }
+            mBacklog.addAndGet(-remaining);
+            mFrame = null;
+            frame.release();
+            done++;
+            discarded++;
+        }
+        while (done < mark && (frame = mQueue.poll()) != null) {
+            mBacklog.addAndGet(-frame.getPacketsSize());
+            frame.release();
+            done++;
+            discarded++;
+        }
+        mDoneCount = done;
+        drop(mFlushReason, discarded);
+    }
+
+    /**
+     * Credits the token bucket and sends queued packets until it runs dry.
+     * A packet is sent whenever the bucket isn't empty, and may overdraw it.
+     * Each frame is preceded by a sender report when one is due, and each
+     * packet followed by the parity at this peer's level of any FEC group it
+     * completes. A packet that fails to send is logged and skipped, the same
+     * as one lost in transit. Pacer thread only.
+     *
+     * @param tokens Bytes to credit.
+     * @param burst Most the bucket holds.
+     * @return Bytes sent since the last call, retransmissions included.
+     */
+    int pump(double tokens, double burst) {
+        int retransmitted = mRetransmitDebt.getAndSet(0);
+        mTokens = Math.min(burst, mTokens + tokens) - retransmitted;
+        double start = mTokens;
+        flush();
+
+        int fecLevel = mFecEnabled ? mFecLevel : 0;
+        ClassMetrics classMetrics = mClassMetrics;
+        while (mTokens > 0) {
+            PacketizedFrame frame = mFrame;
+            if (frame == null) {
+                frame = mQueue.poll();
+                if (frame == null) {
+                    break;
+                }
+                mFrame = frame;
+                mNextPacket = 0;
+                mFrameTimestamp = mTimestampOffset + (int)frame.getRtpTime();
+                if (mLastReportUsec < 0 ||
+                        frame.getPtsUsec() - mLastReportUsec >= SENDER_REPORT_INTERVAL_USEC) {
+                    mTokens -= sendReport(frame.getWallClockUsec(), mFrameTimestamp);
+                    mLastReportUsec = frame.getPtsUsec();
+                }
+            }
+
+            int i = mNextPacket++;
+            int length = frame.getPacketLength(i);
+            ByteBuffer packet = frame.preparePacket(i, mSequence, mFrameTimestamp, mSsrc);
+            long id = frame.getPacketId(i);
+            if (id >= 0) {
+                mSentIds.set(mSequence & (SENT_ID_COUNT - 1), id << 16 | mSequence);
+            }
+            if (id != mRunNextId) {
+                mRunFirstId = id;
+                mRunFirstSeq = mSequence;
+            }
+            mRunNextId = id + 1;
+            mSequence = (mSequence + 1) & 0xffff;
+            try {
+                mPeer.send(packet);
+            } catch (IOException e) {
+                Log.w(TAG, "Send to " + mPeer + " failed: " + e);
+            }
+            mTokens -= length;
+            mBacklog.addAndGet(-length);
+            mPacketCount++;
+            mOctetCount += length - RtpPacketizer.HEADER_SIZE;
+            sPackets.inc();
+            sOctets.add(length - RtpPacketizer.HEADER_SIZE);
+            if (classMetrics != null) {
+                classMetrics.packets.inc();
+                classMetrics.octets.add(length - RtpPacketizer.HEADER_SIZE);
+            }
+
+            if (fecLevel != 0) {
+                mTokens -= sendParity(frame, fecLevel, i);
+            }
+
+            if (mNextPacket == frame.getPacketCount()) {
+                mFrame = null;
+                frame.release();
+                mDoneCount++;
+            }
+        }
+        return (int)(start - mTokens) + retransmitted;
+    }
+
+    /**
+     * Releases everything queued without sending it. Pacer thread only,
+     * once the sender is closed or the pacer is.
+     */
+    void drain() {
+        PacketizedFrame frame = mFrame;
+        mFrame = null;
+        while (frame != null) {
+            frame.release();
+            frame = mQueue.poll();
+        }
+        mBacklog.set(0);
+    }
+
+    /*
+     * Sends the parity of any group at our level completed by packet
+     * <code>index</code>, provided we sent the whole group. Returns the bytes
+     * sent.
+     */
+    private int sendParity(PacketizedFrame frame, int level, int index) {
+        int sent = 0;
+        for (int i = 0; i < frame.getParityCount(); i++) {
+            FecParity parity = frame.getParity(i);
+            if (parity.getAfterPacket() != index || parity.getLevel() != level ||
+                    parity.getFirstId() < mRunFirstId) {
+                continue;
+            }
+            int seqBase = (mRunFirstSeq + (int)(parity.getFirstId() - mRunFirstId)) & 0xffff;
+            ByteBuffer packet = parity.preparePacket(mFecSequence, mFecSsrc, seqBase,
+                    mTimestampOffset);
+            mFecSequence = (mFecSequence + 1) & 0xffff;
+            sent += packet.remaining();
+            try {
+                mPeer.send(packet);
+                sFecSent.inc();
+            } catch (IOException e) {
+                Log.w(TAG, "FEC send to " + mPeer + " failed: " + e);
+            }
+        }
+        return sent;
+    }
+
+    /*
+     * Compound SR + SDES (RFC 3550, 6.4.1 and 6.5), mapping the frame's wall
+     * clock time to its RTP timestamp. Returns its length.
+     */
+    private int sendReport(long wallClockUsec, int timestamp) {
+        ByteBuffer r = mReport;
+        r.clear();
+
+        long seconds = wallClockUsec / 1000000 + NTP_OFFSET;
+        long fraction = ((wallClockUsec % 1000000) << 32) / 1000000;
+        r.put((byte)0x80).put((byte)RTCP_SR).putShort((short)6);
+        r.putInt(mSsrc);
+        r.putInt((int)seconds).putInt((int)fraction);
+        r.putInt(timestamp);
+        r.putInt((int)mPacketCount).putInt((int)mOctetCount);
+
+        int sdesStart = r.position();
+        r.put((byte)0x81).put((byte)RTCP_SDES).putShort((short)0);
+        r.putInt(mSsrc);
+        r.put((byte)SDES_CNAME).put((byte)CNAME.length).put(CNAME);
+        /* Terminating null item, padded to a 32 bit boundary. */
+        do {
+            r.put((byte)0);
+        } while ((r.position() & 3) != 0);
+        r.putShort(sdesStart + 2, (short)((r.position() - sdesStart) / 4 - 1));
+
+        r.flip();
+        int length = r.remaining();
+        try {
+            mPeer.send(r);
+            sReports.inc();
+        } catch (IOException e) {
+            Log.w(TAG, "Sender report to " + mPeer + " failed: " + e);
+        }
+        return length;
+    }
+
+    /**
+     * Handles a compound RTCP packet from the peer, acting on any generic
+     * NACKs for our stream.
+     */
+    public void onRtcpPacket(ByteBuffer packet) {
+        int offset = packet.position();
+        int end = packet.limit();
+        while (offset + 12 <= end) {
+            int first = packet.get(offset) & 0xff;
+            int type = packet.get(offset + 1) & 0xff;
+            int length = ((packet.getShort(offset + 2) & 0xffff) + 1) * 4;
+            if (offset + length > end) {
+                break;
+            }
+            if (type == RTCP_SR || type == RTCP_RR) {
+                int reportCount = first & 0x1f;
+                int block = offset + (type == RTCP_SR ? 28 : 8);
+                for (int i = 0; i < reportCount && block + 24 <= offset + length; i++) {
+                    if (packet.getInt(block) == mSsrc) {
+                        onLossReport((packet.get(block + 4) & 0xff) / 256.0);
+                    }
+                    block += 24;
+                }
+            } else if (type == RTCP_RTPFB && (first & 0x1f) == RTPFB_GENERIC_NACK &&
+                    packet.getInt(offset + 8) == mSsrc) {
+                /* Each entry is a lost packet and a bitmask of the 16 after it. */
+                for (int fci = offset + 12; fci + 4 <= offset + length; fci += 4) {
+                    int lost = packet.getShort(fci) & 0xffff;
+                    int mask = packet.getShort(fci + 2) & 0xffff;
+                    retransmit(lost);
+                    for (int bit = 0; bit < 16; bit++) {
+                        if ((mask & (1 << bit)) != 0) {
+                            retransmit((lost + bit + 1) & 0xffff);
+                        }
+                    }
+                }
+            }
+            offset += length;
+        }
+    }
+
+    /*
+     * Smooths the fraction lost since the peer's last report, so that only
+     * steady loss moves the FEC level.
+     */
+    private void onLossReport(double fraction) {
+        mLoss = mLoss < 0 ? fraction : (mLoss + fraction) / 2;
+        if (!mFecEnabled) {
+            return;
+        }
+        int level = 0;
+        for (int i = 1; i < FEC_LOSS_THRESHOLDS.length; i++) {
+            if (mLoss >= FEC_LOSS_THRESHOLDS[i]) {
+                level = i;
+            }
+        }
+        if (level != mFecLevel) {
+            Log.d(TAG, this + ": loss " + String.format("%.1f", mLoss * 100) +
+                    "%, FEC level " + level);
+            mFecLevel = level;
+        }
+    }
+
+    private void retransmit(int sequence) {
+        sNacked.inc();
+        if (mClosed) {
+            return;
+        }
+
+        PacketHistory history = mHistory;
+        long packed = mSentIds.get(sequence & (SENT_ID_COUNT - 1));
+        ByteBuffer rtx = mRtxPacket;
+        rtx.clear();
+        rtx.position(RtpPacketizer.HEADER_SIZE + 2);
+        if (history == null || packed == -1 || (int)(packed & 0xffff) != sequence ||
+                !history.read(packed >>> 16, rtx, mRtxInfo)) {
+            sRetransmitExpired.inc();
+            return;
+        }
+
+        int length = rtx.position();
+        if (!takeRetransmitTokens(length)) {
+            sRetransmitLimited.inc();
+            return;
+        }
+
+        rtx.put(0, (byte)0x80);
+        rtx.put(1, (byte)((mRtxInfo.marker ? 0x80 : 0) | RTX_PAYLOAD_TYPE));
+        rtx.putShort(2, (short)mRtxSequence);
+        rtx.putInt(4, mTimestampOffset + (int)mRtxInfo.rtpTime);
+        rtx.putInt(8, mRtxSsrc);
+        rtx.putShort(RtpPacketizer.HEADER_SIZE, (short)sequence);
+        mRtxSequence = (mRtxSequence + 1) & 0xffff;
+
+        rtx.flip();
+        mRetransmitDebt.addAndGet(length);
+        try {
+            mPeer.send(rtx);
+            sRetransmitted.inc();
+        } catch (IOException e) {
+            Log.w(TAG, "Retransmission to " + mPeer + " failed: " + e);
+        }
+    }
+
+    private boolean takeRetransmitTokens(int bytes) {
+        long now = System.nanoTime();
+        int limit = mRetransmitLimit;
+        mRetransmitTokens = Math.min(limit,
+                mRetransmitTokens + (now - mLastRefillNanos) * limit / 1e9);
+        mLastRefillNanos = now;
+        if (mRetransmitTokens < bytes) {
+            return false;
+        }
+        mRetransmitTokens -= bytes;
+        return true;
+    }
+
+    /**
+     * Stops sending; anything still queued is dropped. The peer is left
+     * open.
+     */
+    public void close() {
+        mClosed = true;
+        mPacer.wake();
+    }
+
+    @Override
+    public String toString() {
+        return "RtpSender" + mPeer.getParticipant();
+    }
+}
@@ -303,7 +303,8 @@ public abstract class AbstractRtspServer extends Thread {
         }
     }
 
-    private static class RtspServerConnection extends DefaultHttpServerConnection {
+    /* Package-private so the benchmarks can drive the parser directly. */
+    static class RtspServerConnection extends DefaultHttpServerConnection {
         @Override
         protected HttpMessageParser createRequestParser(SessionInputBuffer buffer,
                 HttpRequestFactory requestFactory, HttpParams params) {
@@ -317,7 +318,7 @@ public abstract class AbstractRtspServer extends Thread {
         }
     }
 
-    private static class RtspRequestFactory implements HttpRequestFactory {
+    static class RtspRequestFactory implements HttpRequestFactory {
         private static final String[] SUPPORTED_METHODS = {
             RtspMethods.OPTIONS,
             RtspMethods.DESCRIBE,
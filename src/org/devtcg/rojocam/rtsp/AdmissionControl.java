@@ -0,0 +1,26 @@
+package org.devtcg.rojocam.rtsp;
+
+/**
+ * Decides whether the server can take on another session; see
+ * {@link SimpleRtspServer#setAdmissionControl(AdmissionControl)}.
+ * <p>
+ * An admitted session holds a reservation until its cost can be measured or
+ * it goes away: the server calls {@link #release} exactly once for it, when
+ * it starts playing, is torn down, or fails to set up. Until then its cost
+ * must be counted by whatever judges the next request.
+ */
+public interface AdmissionControl {
+    /**
+     * Called for every SETUP, before the session is created. Refused
+     * requests get 453 Not Enough Bandwidth.
+     *
+     * @return True if a new session of the given class can be served without
+     *         degrading those already running, in which case it is reserved.
+     */
+    public boolean admit(PriorityClass priority);
+
+    /**
+     * Gives back the reservation of a session that was admitted.
+     */
+    public void release(PriorityClass priority);
+}
@@ -4,5 +4,6 @@ import java.net.InetAddress;
 
 public interface MediaHandler {
     public String onDescribe(String feedUri);
-    public MediaSession createSession(InetAddress client, RtpTransport transport);
+    public MediaSession createSession(InetAddress client, RtpTransport transport,
+            PriorityClass priority, MediaSession.Terminator terminator);
 }
@@ -5,10 +5,28 @@ import java.io.IOException;
 /**
  * This interface is to be implemented to concretely bind RTSP methods to an
  * RTP/RTCP stream.
+ * <p>
+ * {@link #onSetup} and {@link #onPlay} may block until the media is actually
+ * ready, so that the RTSP response goes out exactly when the stream can be
+ * delivered. Throwing an IOException from either fails the request.
  */
 public interface MediaSession {
+    /**
+     * Given to each session by the server, for ending it from outside of any
+     * request, e.g. because the peer said goodbye over RTCP.
+     */
+    public interface Terminator {
+        /**
+         * Ends the session as a TEARDOWN would, {@link #onTeardown}
+         * included, either on the calling thread or by a request in
+         * progress on the session. May be called from any thread, more than
+         * once.
+         */
+        public void terminate(String reason);
+    }
+
     public RtpTransport onSetup(String feedUri) throws IOException;
-    public void onPlay(String feedUri);
+    public void onPlay(String feedUri) throws IOException;
     public void onPause(String feedUri);
     public void onTeardown(String feedUri);
 }
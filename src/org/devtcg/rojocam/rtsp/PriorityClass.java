@@ -0,0 +1,64 @@
+package org.devtcg.rojocam.rtsp;
+
+/**
+ * How much a session's viewer matters when there isn't enough to go around.
+ * Sessions ask for a class with a <code>priority</code> parameter on the
+ * request URI, for example <code>rtsp://host:5454/test1.rtp?priority=recorder</code>;
+ * see {@link SimpleRtspServer#setRecorderKey(String)} for restricting who may
+ * ask for {@link #RECORDER}.
+ * <p>
+ * Each class has its own weight in sharing the uplink and its own send queue
+ * limits, so that best-effort viewers fall behind, and are degraded, first.
+ */
+public enum PriorityClass {
+    /** Recording clients, such as an NVR, which must not lose frames. */
+    RECORDER("recorder", 4, 1024 * 1024, 5000),
+
+    /** Casual viewers, served with what is left. */
+    BEST_EFFORT("best_effort", 1, 256 * 1024, 1000);
+
+    public static final PriorityClass DEFAULT = BEST_EFFORT;
+
+    private final String mName;
+    private final int mWeight;
+    private final int mMaxBacklogBytes;
+    private final int mMaxBacklogMsec;
+
+    private PriorityClass(String name, int weight, int maxBacklogBytes, int maxBacklogMsec) {
+        mName = name;
+        mWeight = weight;
+        mMaxBacklogBytes = maxBacklogBytes;
+        mMaxBacklogMsec = maxBacklogMsec;
+    }
+
+    /**
+     * @return The class by its URI parameter value, or null if there is no
+     *         such class.
+     */
+    public static PriorityClass fromName(String name) {
+        for (PriorityClass priority: values()) {
+            if (priority.mName.equalsIgnoreCase(name)) {
+                return priority;
+            }
+        }
+        return null;
+    }
+
+    /** Name in URIs and metrics. */
+    public String getName() {
+        return mName;
+    }
+
+    /** Weight in sharing the uplink budget. */
+    public int getWeight() {
+        return mWeight;
+    }
+
+    public int getMaxBacklogBytes() {
+        return mMaxBacklogBytes;
+    }
+
+    public int getMaxBacklogMsec() {
+        return mMaxBacklogMsec;
+    }
+}
@@ -59,6 +59,19 @@ public class RtpTransport {
                 if (desc.clientRtpPort == 0) {
                     throw new ParseException("Unparseable client ports: " + segment, 0);
                 }
+            } else if (segment.startsWith("server_port=")) {
+                /* Only in replies, which clients parse. */
+                String[] ports = segment.substring(12).split("-", 2);
+                try {
+                    desc.serverRtpPort = Integer.parseInt(ports[0]);
+                    if (ports.length > 1) {
+                        desc.serverRtcpPort = Integer.parseInt(ports[1]);
+                    }
+                } catch (NumberFormatException e) {
+                }
+                if (desc.serverRtpPort == 0) {
+                    throw new ParseException("Unparseable server ports: " + segment, 0);
+                }
             } else {
                 if (segment.equals("unicast")) {
                     desc.destType = DestinationType.UNICAST;
@@ -8,4 +8,6 @@ public interface RtspHeaders {
     public static final String SESSION = "Session";
     public static final String RANGE = "Range";
     public static final String ACCEPT = "Accept";
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String WWW_AUTHENTICATE = "WWW-Authenticate";
 }
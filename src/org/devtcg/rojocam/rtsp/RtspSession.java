@@ -1,19 +1,52 @@
 package org.devtcg.rojocam.rtsp;
 
 import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * A session's state, which any connection presenting its id may change.
+ * Changes are made by compare-and-set, so that of two racing requests only
+ * one acts on the media; the other sees the state it lost to.
+ * <p>
+ * Acting on the media may block, so a request holds the session in a
+ * transient state ({@link RtspState#isTransient()}) while it does. A
+ * TEARDOWN arriving meanwhile ends the session at once, but leaves tearing
+ * down the media to the request in progress, which finds out when it fails
+ * to leave its transient state. Either way the media is torn down exactly
+ * once: by whoever calls {@link #beginTeardown()} and is told to, or by
+ * whoever fails a {@link #transition}.
+ */
 public class RtspSession {
     private static final SecureRandom sRandom = new SecureRandom();
 
     private final String mSessionId;
-    private RtspState mState;
-    private MediaSession mMediaSession;
+    private final AtomicReference<RtspState> mState;
+    private volatile MediaSession mMediaSession;
+    private volatile PriorityClass mPriority = PriorityClass.DEFAULT;
+    private final AtomicReference<AdmissionControl> mReservation =
+            new AtomicReference<AdmissionControl>();
 
     /**
-     * RTSP server states according to RFC2326.
+     * RTSP server states according to RFC2326, plus those a session is in
+     * while the media catches up with a request, and the final one.
      */
     public enum RtspState {
-        READY, PLAYING
+        SETTING_UP(true), READY(false), STARTING(true), PLAYING(false), PAUSING(true),
+        TORN_DOWN(false);
+
+        private final boolean mTransient;
+
+        private RtspState(boolean isTransient) {
+            mTransient = isTransient;
+        }
+
+        /**
+         * Whether a request is acting on the media, and is to tear it down
+         * should the session end meanwhile.
+         */
+        public boolean isTransient() {
+            return mTransient;
+        }
     }
 
     public RtspSession(RtspState state) {
@@ -22,7 +55,7 @@ public class RtspSession {
 
     public RtspSession(String sessionId, RtspState state) {
         mSessionId = sessionId;
-        mState = state;
+        mState = new AtomicReference<RtspState>(state);
     }
 
     public String getSessionId() {
@@ -30,11 +63,36 @@ public class RtspSession {
     }
 
     public RtspState getState() {
-        return mState;
+        return mState.get();
     }
 
-    public void setState(RtspState state) {
-        mState = state;
+    /**
+     * Moves from <code>from</code> to <code>to</code>, if the session is
+     * still in <code>from</code>.
+     * <p>
+     * If <code>from</code> is transient and this fails, the session was torn
+     * down meanwhile and the caller must now tear down the media.
+     */
+    public boolean transition(RtspState from, RtspState to) {
+        return mState.compareAndSet(from, to);
+    }
+
+    /**
+     * Ends the session, unless it already ended.
+     *
+     * @return True if the caller must now tear down the media; false if the
+     *         session had already ended, or a request in progress will.
+     */
+    public boolean beginTeardown() {
+        while (true) {
+            RtspState state = mState.get();
+            if (state == RtspState.TORN_DOWN) {
+                return false;
+            }
+            if (mState.compareAndSet(state, RtspState.TORN_DOWN)) {
+                return !state.isTransient();
+            }
+        }
     }
 
     public void setMediaSession(MediaSession media) {
@@ -45,6 +103,30 @@ public class RtspSession {
         return mMediaSession;
     }
 
+    public void setPriority(PriorityClass priority) {
+        mPriority = priority;
+    }
+
+    public PriorityClass getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Records that <code>admission</code> holds a reservation for this
+     * session.
+     */
+    public void setReservation(AdmissionControl admission) {
+        mReservation.set(admission);
+    }
+
+    /**
+     * Returns the admission control holding this session's reservation, at
+     * most once; null if there is none or it was already taken.
+     */
+    public AdmissionControl takeReservation() {
+        return mReservation.getAndSet(null);
+    }
+
     private static String generateSessionId() {
         return Long.toHexString(sRandom.nextLong());
     }
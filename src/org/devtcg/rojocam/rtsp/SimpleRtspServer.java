@@ -7,18 +7,23 @@ import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolException;
+import org.apache.http.RequestLine;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.SocketHttpServerConnection;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.devtcg.rojocam.rtsp.RtspSession.RtspState;
+import org.devtcg.rojocam.util.Metrics;
 
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Very crude RTSP implementation designed only to support the bare minimum
@@ -27,10 +32,30 @@ import java.util.HashMap;
 public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestHandler {
     private static final String TAG = SimpleRtspServer.class.getSimpleName();
 
+    /* Request URI parameter choosing a session's PriorityClass. */
+    private static final String PARAM_PRIORITY = "priority";
+
+    /* Challenge sent with a 401, to which clients answer with Basic credentials. */
+    private static final String AUTHENTICATE_CHALLENGE = "Basic realm=\"rojocam\"";
+
+    private static final Metrics.Counter sPriorityRefused =
+            Metrics.counter("rtsp.priority_refused");
+    private static final Metrics.Counter sAdmissionRefused =
+            Metrics.counter("rtsp.admission_refused");
+    private static final Metrics.Counter sStateConflicts =
+            Metrics.counter("rtsp.state_conflicts");
+
     private final HashMap<String, HttpRequestHandler> mMethodHandlers;
 
-    /* XXX: Sessions are not expired on a timer, only by graceful TEARDOWN. */
-    private final HashMap<String, RtspSession> mSessions = new HashMap<String, RtspSession>();
+    /*
+     * XXX: Sessions are not expired on a timer, only by graceful TEARDOWN or
+     * by their media (see MediaSession.Terminator).
+     *
+     * Looked up on every request, from every connection's worker; see
+     * RtspSession for how concurrent requests on one session are resolved.
+     */
+    private final ConcurrentHashMap<String, RtspSession> mSessions =
+            new ConcurrentHashMap<String, RtspSession>();
 
     /*
      * XXX: Weak abstraction attempting to map RTSP request URIs with some
@@ -39,6 +64,9 @@ public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestH
      */
     private MediaHandler mMediaHandler;
 
+    private volatile String mRecorderKey;
+    private volatile AdmissionControl mAdmissionControl;
+
     public SimpleRtspServer() {
         /* Catch-all request handler. */
         setRequestHandler(this);
@@ -55,15 +83,34 @@ public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestH
 
     @Override
     protected void onPreShutdown() {
-        synchronized (mSessions) {
-            for (RtspSession session: mSessions.values()) {
+        /* Sessions amid a request are torn down by that request. */
+        for (RtspSession session: mSessions.values()) {
+            if (session.beginTeardown()) {
                 Log.i(TAG, "Force terminating session " + session.getSessionId());
-                session.getMediaSession().onTeardown(null);
+                endSession(session);
             }
-            mSessions.clear();
         }
     }
 
+    /**
+     * Requires sessions asking for {@link PriorityClass#RECORDER} to also
+     * give this key, as the password of Basic credentials in the
+     * Authorization header (any user name will do); clients are challenged
+     * for it. Null, the default, lets any session ask. May be changed at any
+     * time, taking effect from the next SETUP.
+     */
+    public void setRecorderKey(String key) {
+        mRecorderKey = key;
+    }
+
+    /**
+     * Consults <code>control</code> before setting up each session. Null,
+     * the default, admits everyone.
+     */
+    public void setAdmissionControl(AdmissionControl control) {
+        mAdmissionControl = control;
+    }
+
     public synchronized void registerMedia(String feedUri, MediaHandler handler) {
         mMediaHandler = handler;
     }
@@ -76,11 +123,64 @@ public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestH
         return mMediaHandler;
     }
 
-    private RtspSession beginSession() {
-        RtspSession session = new RtspSession(RtspState.READY);
-        synchronized (mSessions) {
-            mSessions.put(session.getSessionId(), session);
+    /*
+     * Returns the class the request asks for, the default if none, or null
+     * if it may not have the one it asks for.
+     */
+    private PriorityClass getPriority(HttpRequest request) {
+        String uri = request.getRequestLine().getUri();
+        String name = StringUtils.getQueryParameter(uri, PARAM_PRIORITY);
+        if (name == null) {
+            return PriorityClass.DEFAULT;
+        }
+        PriorityClass priority = PriorityClass.fromName(name);
+        if (priority == null) {
+            Log.d(TAG, "Unknown priority class " + name + "; using the default");
+            return PriorityClass.DEFAULT;
+        }
+        String key = mRecorderKey;
+        if (priority == PriorityClass.RECORDER && key != null &&
+                !isKey(key, request.getFirstHeader(RtspHeaders.AUTHORIZATION))) {
+            return null;
+        }
+        return priority;
+    }
+
+    private static boolean isKey(String key, Header authorization) {
+        String password = authorization != null ?
+                StringUtils.getBasicPassword(authorization.getValue()) : null;
+        if (password == null) {
+            return false;
+        }
+        try {
+            /* Takes as long however much of the key was guessed right. */
+            return MessageDigest.isEqual(key.getBytes("UTF-8"), password.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
         }
+    }
+
+    /*
+     * Renders a request line without its URI's query, which is the client's
+     * to put anything in.
+     */
+    private static String redact(RequestLine requestLine) {
+        String uri = requestLine.getUri();
+        int query = uri.indexOf('?');
+        if (query >= 0) {
+            uri = uri.substring(0, query) + "?...";
+        }
+        return requestLine.getMethod() + " " + uri + " " + requestLine.getProtocolVersion();
+    }
+
+    /*
+     * @param admission Holds a reservation for the session, or null.
+     */
+    private RtspSession beginSession(PriorityClass priority, AdmissionControl admission) {
+        RtspSession session = new RtspSession(RtspState.SETTING_UP);
+        session.setPriority(priority);
+        session.setReservation(admission);
+        mSessions.put(session.getSessionId(), session);
         return session;
     }
 
@@ -89,21 +189,87 @@ public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestH
         if (sessionHeader == null) {
             return null;
         } else {
-            synchronized (mSessions) {
-                return mSessions.get(sessionHeader.getValue());
-            }
+            return mSessions.get(sessionHeader.getValue());
         }
     }
 
+    /*
+     * Forgets a session that has been torn down and tears down its media.
+     * Only for whoever RtspSession says is to do so.
+     */
     private void endSession(RtspSession session) {
-        synchronized (mSessions) {
-            mSessions.remove(session.getSessionId());
+        mSessions.remove(session.getSessionId(), session);
+        releaseReservation(session);
+        MediaSession media = session.getMediaSession();
+        if (media != null) {
+            try {
+                media.onTeardown(null);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Media failed to tear down session " + session.getSessionId(), e);
+            }
+        }
+    }
+
+    private MediaSession.Terminator newTerminator(final RtspSession session) {
+        return new MediaSession.Terminator() {
+            public void terminate(String reason) {
+                /* As for TEARDOWN, a request amid acting on the media tears it down. */
+                if (session.beginTeardown()) {
+                    Log.i(TAG, "Terminating session " + session.getSessionId() + ": " + reason);
+                    endSession(session);
+                }
+            }
+        };
+    }
+
+    /*
+     * Takes a session out of the transient state a failed media call left it
+     * in, back to the stable one it is now in; or, if it was torn down
+     * meanwhile, tears down its media.
+     */
+    private void recover(RtspSession session, RtspState from, RtspState to) {
+        if (!session.transition(from, to)) {
+            endSession(session);
+        }
+    }
+
+    /*
+     * Gives up on a session whose media failed to set up. There is nothing
+     * to tear down, whether or not a TEARDOWN raced us.
+     */
+    private void abandonSession(RtspSession session) {
+        session.transition(RtspState.SETTING_UP, RtspState.TORN_DOWN);
+        mSessions.remove(session.getSessionId(), session);
+        releaseReservation(session);
+    }
+
+    /*
+     * Once a session plays, its cost is measured rather than reserved; see
+     * AdmissionControl.
+     */
+    private static void releaseReservation(RtspSession session) {
+        AdmissionControl admission = session.takeReservation();
+        if (admission != null) {
+            admission.release(session.getPriority());
+        }
+    }
+
+    /*
+     * Answers a request that found the session in a state it can't act on:
+     * already ended, or amid another request.
+     */
+    private static void refuseInState(HttpResponse response, RtspSession session) {
+        sStateConflicts.inc();
+        if (session.getState() == RtspState.TORN_DOWN) {
+            response.setStatusCode(RtspStatus.SC_SESSION_NOT_FOUND);
+        } else {
+            response.setStatusCode(RtspStatus.SC_METHOD_NOT_VALID_IN_THIS_STATE);
         }
     }
 
     public void handle(HttpRequest request, HttpResponse response, HttpContext context)
             throws HttpException, IOException {
-        System.out.println("Got request: " + request.getRequestLine());
+        Log.d(TAG, "Got request: " + redact(request.getRequestLine()));
         String method = request.getRequestLine().getMethod();
 
         HttpRequestHandler handler = mMethodHandlers.get(method);
@@ -162,9 +328,47 @@ public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestH
                 if (transport.lowerTransport == RtpTransport.Transport.UDP &&
                         transport.clientRtpPort != 0 &&
                         transport.destType == RtpTransport.DestinationType.UNICAST) {
-                    RtspSession session = beginSession();
-                    session.setMediaSession(getHandler().createSession(conn.getRemoteAddress(), transport));
-                    RtpTransport serverTransport = session.getMediaSession().onSetup(null);
+                    PriorityClass priority = getPriority(request);
+                    if (priority == null) {
+                        Log.w(TAG, "Refused recorder priority to " + conn.getRemoteAddress());
+                        sPriorityRefused.inc();
+                        response.addHeader(RtspHeaders.WWW_AUTHENTICATE, AUTHENTICATE_CHALLENGE);
+                        response.setStatusCode(HttpStatus.SC_UNAUTHORIZED);
+                        return;
+                    }
+                    AdmissionControl admission = mAdmissionControl;
+                    if (admission != null && !admission.admit(priority)) {
+                        Log.w(TAG, "Refused " + priority.getName() + " session for " +
+                                conn.getRemoteAddress() + ": no capacity left");
+                        sAdmissionRefused.inc();
+                        Metrics.counter("rtsp.admission_refused." + priority.getName()).inc();
+                        response.setStatusCode(RtspStatus.SC_NOT_ENOUGH_BANDWIDTH);
+                        return;
+                    }
+                    RtspSession session = beginSession(priority, admission);
+                    RtpTransport serverTransport;
+                    try {
+                        session.setMediaSession(getHandler().createSession(
+                                conn.getRemoteAddress(), transport, priority,
+                                newTerminator(session)));
+                        serverTransport = session.getMediaSession().onSetup(null);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Media setup failed: " + e.getMessage());
+                        abandonSession(session);
+                        response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+                        return;
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Media setup failed", e);
+                        abandonSession(session);
+                        response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+                        return;
+                    }
+                    if (!session.transition(RtspState.SETTING_UP, RtspState.READY)) {
+                        /* Shut down while setting up. */
+                        endSession(session);
+                        response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+                        return;
+                    }
                     response.addHeader(RtspHeaders.SESSION, session.getSessionId());
                     response.addHeader(RtspHeaders.TRANSPORT, serverTransport.toString());
                     response.setStatusCode(HttpStatus.SC_OK);
@@ -195,10 +399,33 @@ public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestH
     private class PlayHandler extends InSessionHandler {
         public void handle(HttpRequest request, HttpResponse response, HttpContext context, RtspSession session)
                 throws HttpException, IOException {
-            if (session.getState() != RtspState.PLAYING) {
-                session.setState(RtspState.PLAYING);
+            if (!session.transition(RtspState.READY, RtspState.STARTING)) {
+                if (session.getState() == RtspState.PLAYING) {
+                    response.setStatusCode(HttpStatus.SC_OK);
+                } else {
+                    refuseInState(response, session);
+                }
+                return;
+            }
+            try {
                 session.getMediaSession().onPlay(null);
+            } catch (IOException e) {
+                Log.w(TAG, "Media failed to play: " + e.getMessage());
+                recover(session, RtspState.STARTING, RtspState.READY);
+                response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+                return;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Media failed to play", e);
+                recover(session, RtspState.STARTING, RtspState.READY);
+                response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+                return;
             }
+            if (!session.transition(RtspState.STARTING, RtspState.PLAYING)) {
+                endSession(session);
+                response.setStatusCode(RtspStatus.SC_SESSION_NOT_FOUND);
+                return;
+            }
+            releaseReservation(session);
             response.setStatusCode(HttpStatus.SC_OK);
         }
     }
@@ -206,9 +433,27 @@ public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestH
     private class PauseHandler extends InSessionHandler {
         public void handle(HttpRequest request, HttpResponse response, HttpContext context, RtspSession session)
                 throws HttpException, IOException {
-            if (session.getState() == RtspState.PLAYING) {
-                session.setState(RtspState.READY);
+            if (!session.transition(RtspState.PLAYING, RtspState.PAUSING)) {
+                if (session.getState() == RtspState.READY) {
+                    response.setStatusCode(HttpStatus.SC_OK);
+                } else {
+                    refuseInState(response, session);
+                }
+                return;
+            }
+            try {
                 session.getMediaSession().onPause(null);
+            } catch (RuntimeException e) {
+                /* Still playing, as far as we know; a retry or TEARDOWN can follow. */
+                Log.e(TAG, "Media failed to pause", e);
+                recover(session, RtspState.PAUSING, RtspState.PLAYING);
+                response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+                return;
+            }
+            if (!session.transition(RtspState.PAUSING, RtspState.READY)) {
+                endSession(session);
+                response.setStatusCode(RtspStatus.SC_SESSION_NOT_FOUND);
+                return;
             }
             response.setStatusCode(HttpStatus.SC_OK);
         }
@@ -217,8 +462,11 @@ public class SimpleRtspServer extends AbstractRtspServer implements HttpRequestH
     private class TeardownHandler extends InSessionHandler {
         public void handle(HttpRequest request, HttpResponse response, HttpContext context, RtspSession session)
                 throws HttpException, IOException {
-            session.getMediaSession().onTeardown(null);
-            endSession(session);
+            /* If a request is amid acting on the media, it tears it down. */
+            if (session.beginTeardown()) {
+                endSession(session);
+            }
+            response.setStatusCode(HttpStatus.SC_OK);
         }
     }
 }
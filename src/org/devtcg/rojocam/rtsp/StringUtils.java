@@ -1,5 +1,7 @@
 package org.devtcg.rojocam.rtsp;
 
+import java.io.UnsupportedEncodingException;
+
 public class StringUtils {
     public static String join(String[] array, String delimiter) {
         if (array.length == 0) {
@@ -14,6 +16,87 @@ public class StringUtils {
         return b.toString();
     }
 
+    /**
+     * Finds a parameter in the query of a request URI. Clients append the
+     * track's path to whatever URI the stream was opened with, so a value
+     * ends at the first '/' as well as at the next parameter.
+     *
+     * @return The value, or null if the parameter is absent.
+     */
+    public static String getQueryParameter(String uri, String name) {
+        int query = uri.indexOf('?');
+        if (query < 0) {
+            return null;
+        }
+        for (String param: uri.substring(query + 1).split("&")) {
+            int eq = param.indexOf('=');
+            if (eq >= 0 && param.substring(0, eq).equals(name)) {
+                String value = param.substring(eq + 1);
+                int slash = value.indexOf('/');
+                return slash >= 0 ? value.substring(0, slash) : value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Extracts the password from the value of an Authorization header using
+     * the Basic scheme (RFC 2617), whatever the user name.
+     *
+     * @return The password, or null if the value isn't valid Basic
+     *         credentials.
+     */
+    public static String getBasicPassword(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+        byte[] decoded = decodeBase64(authorization.substring(6).trim());
+        if (decoded == null) {
+            return null;
+        }
+        String credentials;
+        try {
+            credentials = new String(decoded, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        int colon = credentials.indexOf(':');
+        return colon >= 0 ? credentials.substring(colon + 1) : null;
+    }
+
+    private static final String BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /**
+     * Decodes standard base64, padded or not.
+     *
+     * @return The decoded bytes, or null if <code>encoded</code> isn't
+     *         base64.
+     */
+    public static byte[] decodeBase64(String encoded) {
+        int length = encoded.length();
+        while (length > 0 && encoded.charAt(length - 1) == '=') {
+            length--;
+        }
+        byte[] decoded = new byte[length * 6 / 8];
+        int bits = 0;
+        int bitCount = 0;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            int value = BASE64_ALPHABET.indexOf(encoded.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                decoded[n++] = (byte)(bits >> bitCount);
+            }
+        }
+        return decoded;
+    }
+
     private static final char[] HEX_CHAR_TABLE = {
         '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f',
     };
@@ -0,0 +1,137 @@
+package org.devtcg.rojocam.util;
+
+/**
+ * Timeline shared by everything produced with one codec context: encoder
+ * PTS, the RTP timestamps derived from them and the wall clock mapping
+ * published in RTCP sender reports. The codec refuses a PTS that doesn't
+ * advance by at least one tick of its time base, so the clock lives as long
+ * as the context does, across capture sessions, and stamps frames on that
+ * tick grid.
+ * <p>
+ * Capture times are only known when the preview callback runs, so they carry
+ * the callback's scheduling jitter. {@link #stamp(long)} runs them through a
+ * simple alpha-beta filter that tracks the frame period and absorbs that
+ * jitter, so that peers see evenly spaced timestamps and can get away with
+ * small jitter buffers. Real discontinuities (dropped frames, a stalled
+ * camera) exceed the resync threshold and are passed through unsmoothed.
+ * <p>
+ * PTS are microseconds since the clock was created. {@link #getEpochUsec()}
+ * gives the wall clock time of PTS zero, which every RTP peer uses for its
+ * sender reports so that all of them agree.
+ */
+public class MediaClock {
+    /* Fraction of the prediction error applied to the timestamp. */
+    private static final double ALPHA = 0.125;
+
+    /* Fraction of the prediction error applied to the period estimate. */
+    private static final double BETA = 0.01;
+
+    /* Errors larger than this many periods resync rather than smooth. */
+    private static final int RESYNC_PERIODS = 3;
+
+    private static final Metrics.Timer sJitter = Metrics.timer("clock.capture_jitter");
+    private static final Metrics.Counter sResyncs = Metrics.counter("clock.resyncs");
+    private static final Metrics.Counter sNoTick = Metrics.counter("clock.dropped_no_tick");
+
+    /** Returned by {@link #stamp(long)} for a frame that can't be encoded. */
+    public static final long NO_PTS = -1;
+
+    private final long mOriginNanos;
+    private final long mEpochUsec;
+    private final int mTicksPerSecond;
+
+    /* Guarded by this; the filter runs on capture times, before snapping. */
+    private long mLastRawUsec = -1;
+    private long mLastUsec = -1;
+    private double mPeriodUsec;
+    private long mLastTick = -1;
+
+    /**
+     * @param ticksPerSecond Inverse of the codec's time base, which is the
+     *            least a PTS may advance by.
+     */
+    public MediaClock(int ticksPerSecond) {
+        if (ticksPerSecond < 1) {
+            throw new IllegalArgumentException("ticksPerSecond must be positive");
+        }
+        mOriginNanos = System.nanoTime();
+        mEpochUsec = System.currentTimeMillis() * 1000;
+        mTicksPerSecond = ticksPerSecond;
+    }
+
+    /**
+     * Wall clock time, in microseconds since the Unix epoch, that corresponds
+     * to a PTS of zero.
+     */
+    public long getEpochUsec() {
+        return mEpochUsec;
+    }
+
+    /**
+     * Returns the current (unsmoothed) position of the clock.
+     */
+    public long nowUsec() {
+        return (System.nanoTime() - mOriginNanos) / 1000;
+    }
+
+    /**
+     * Converts a frame's capture time into its PTS, which falls on a tick of
+     * the codec's time base and at least one tick after the previous PTS. A
+     * source faster than the codec's frame rate will have frames that land on
+     * a tick already taken; those get {@link #NO_PTS} and must be dropped,
+     * rather than pushed onto later ticks and the clock run ahead of capture
+     * time. Synchronized, since successive capture sessions stamp from
+     * threads of their own.
+     *
+     * @param captureNanos Capture time on the {@link System#nanoTime()}
+     *            timeline, taken as early as possible after the frame
+     *            arrived.
+     * @return PTS in microseconds since the clock was created, or
+     *         {@link #NO_PTS}.
+     */
+    public synchronized long stamp(long captureNanos) {
+        long raw = (captureNanos - mOriginNanos) / 1000;
+        long stamped;
+
+        if (mLastUsec < 0) {
+            stamped = raw;
+        } else if (mPeriodUsec == 0) {
+            mPeriodUsec = raw - mLastRawUsec;
+            stamped = raw;
+        } else {
+            double predicted = mLastUsec + mPeriodUsec;
+            double error = raw - predicted;
+            if (Math.abs(error) > RESYNC_PERIODS * mPeriodUsec) {
+                sResyncs.inc();
+                stamped = raw;
+            } else {
+                stamped = (long)(predicted + ALPHA * error);
+                mPeriodUsec += BETA * error;
+            }
+            sJitter.update(Math.abs(raw - stamped) / 1000);
+        }
+
+        if (stamped <= mLastUsec) {
+            stamped = mLastUsec + 1;
+        }
+        mLastRawUsec = raw;
+        mLastUsec = stamped;
+
+        /* Nearest tick, as the codec rounds when rescaling. */
+        long tick = (stamped * mTicksPerSecond + 500000) / 1000000;
+        if (tick <= mLastTick) {
+            sNoTick.inc();
+            return NO_PTS;
+        }
+        mLastTick = tick;
+        return tick * 1000000 / mTicksPerSecond;
+    }
+
+    /**
+     * Maps a PTS from this clock onto the wall clock, as used for RTCP
+     * sender reports.
+     */
+    public long toWallClockUsec(long ptsUsec) {
+        return mEpochUsec + ptsUsec;
+    }
+}
@@ -0,0 +1,152 @@
+package org.devtcg.rojocam.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of simple named counters and timers. Instruments are
+ * created on first use and live forever, so callers should look them up once
+ * and hold on to the result.
+ * <p>
+ * Gauges are the exception: they sample a value owned by someone else, are
+ * registered explicitly and replace any previous gauge of the same name.
+ */
+public class Metrics {
+    private static final ConcurrentHashMap<String, Counter> sCounters =
+            new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentHashMap<String, Timer> sTimers =
+            new ConcurrentHashMap<String, Timer>();
+    private static final ConcurrentHashMap<String, Gauge> sGauges =
+            new ConcurrentHashMap<String, Gauge>();
+
+    private Metrics() {}
+
+    public static Counter counter(String name) {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = sCounters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    public static Timer timer(String name) {
+        Timer timer = sTimers.get(name);
+        if (timer == null) {
+            Timer newTimer = new Timer();
+            timer = sTimers.putIfAbsent(name, newTimer);
+            if (timer == null) {
+                timer = newTimer;
+            }
+        }
+        return timer;
+    }
+
+    public static void gauge(String name, Gauge gauge) {
+        sGauges.put(name, gauge);
+    }
+
+    /**
+     * Samples a gauge.
+     *
+     * @return The gauge's value, or <code>defaultValue</code> if no gauge
+     *         of that name has been registered.
+     */
+    public static long getGaugeValue(String name, long defaultValue) {
+        Gauge gauge = sGauges.get(name);
+        return gauge != null ? gauge.getValue() : defaultValue;
+    }
+
+    /**
+     * Renders every instrument as <code>name value</code> lines, sorted by
+     * name.
+     */
+    public static String dump() {
+        TreeMap<String, String> lines = new TreeMap<String, String>();
+        for (Map.Entry<String, Counter> entry: sCounters.entrySet()) {
+            lines.put(entry.getKey(), String.valueOf(entry.getValue().get()));
+        }
+        for (Map.Entry<String, Timer> entry: sTimers.entrySet()) {
+            lines.put(entry.getKey(), entry.getValue().toString());
+        }
+        for (Map.Entry<String, Gauge> entry: sGauges.entrySet()) {
+            lines.put(entry.getKey(), String.valueOf(entry.getValue().getValue()));
+        }
+
+        StringBuilder b = new StringBuilder();
+        for (Map.Entry<String, String> line: lines.entrySet()) {
+            b.append(line.getKey()).append(' ').append(line.getValue()).append('\n');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Current value of something measured elsewhere, read whenever the
+     * metrics are dumped.
+     */
+    public interface Gauge {
+        public long getValue();
+    }
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void inc() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Records durations in milliseconds.
+     */
+    public static class Timer {
+        private long mCount;
+        private long mTotal;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax;
+        private long mLast;
+
+        public synchronized void update(long millis) {
+            mCount++;
+            mTotal += millis;
+            mMin = Math.min(mMin, millis);
+            mMax = Math.max(mMax, millis);
+            mLast = millis;
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getMean() {
+            return mCount > 0 ? mTotal / mCount : 0;
+        }
+
+        /** Sum of every recorded duration, for taking means over an interval. */
+        public synchronized long getTotal() {
+            return mTotal;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (mCount == 0) {
+                return "count=0";
+            }
+            return "count=" + mCount + " mean=" + (mTotal / mCount) + "ms min=" + mMin +
+                    "ms max=" + mMax + "ms last=" + mLast + "ms";
+        }
+    }
+}
@@ -1,16 +1,54 @@
 package org.devtcg.rojocam.util;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+/**
+ * Creates an instance on the first {@link #acquire()} and destroys it after
+ * the last matching {@link #release()}.
+ * <p>
+ * An optional linger keeps the instance on standby for a while after the
+ * last release so that a client reconnecting shortly after does not pay the
+ * full cost of {@link #onCreate()} again. Lingering instances are destroyed
+ * from the main thread.
+ */
 public abstract class ReferenceCounter<T> {
     private static final String TAG = ReferenceCounter.class.getSimpleName();
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     private int mCount;
     private T mInstance;
 
+    private long mLingerMillis;
+    private boolean mLingering;
+
+    public ReferenceCounter() {
+        this(0);
+    }
+
+    /**
+     * @param lingerMillis How long to keep the instance after the last
+     *            release. Zero destroys it immediately.
+     */
+    public ReferenceCounter(long lingerMillis) {
+        mLingerMillis = lingerMillis;
+    }
+
+    public synchronized void setLinger(long lingerMillis) {
+        mLingerMillis = lingerMillis;
+    }
+
     public synchronized T acquire() {
         if (mCount == 0) {
-            mInstance = onCreate();
+            if (mLingering) {
+                mHandler.removeCallbacks(mExpireStandby);
+                mLingering = false;
+                onReuse(mInstance);
+            } else {
+                mInstance = onCreate();
+            }
         }
         mCount++;
         return mInstance;
@@ -22,11 +60,37 @@ public abstract class ReferenceCounter<T> {
         }
         mCount--;
         if (mCount == 0) {
-            onDestroy(mInstance);
-            mInstance = null;
+            if (mLingerMillis > 0) {
+                mLingering = true;
+                mHandler.postDelayed(mExpireStandby, mLingerMillis);
+            } else {
+                destroyInstance();
+            }
         }
     }
 
+    /**
+     * Destroys the instance now if it is only being kept on standby.
+     */
+    public synchronized void expireStandby() {
+        if (mLingering) {
+            mHandler.removeCallbacks(mExpireStandby);
+            mLingering = false;
+            destroyInstance();
+        }
+    }
+
+    private void destroyInstance() {
+        onDestroy(mInstance);
+        mInstance = null;
+    }
+
+    private final Runnable mExpireStandby = new Runnable() {
+        public void run() {
+            expireStandby();
+        }
+    };
+
     public synchronized boolean isAcquired() {
         return mCount > 0;
     }
@@ -34,6 +98,13 @@ public abstract class ReferenceCounter<T> {
     protected abstract T onCreate();
     protected abstract void onDestroy(T instance);
 
+    /**
+     * Invoked when an instance on standby is acquired again instead of a new
+     * one being created.
+     */
+    protected void onReuse(T instance) {
+    }
+
     @Override
     protected void finalize() throws Throwable {
         if (mCount > 0) {
@@ -0,0 +1,133 @@
+package org.devtcg.rojocam.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future completed explicitly by its owner, with support for completion
+ * listeners so that callers can either block on the result or chain work onto
+ * it.
+ */
+public class SettableFuture<V> implements Future<V> {
+    private boolean mDone;
+    private boolean mCancelled;
+    private V mValue;
+    private Throwable mException;
+
+    private ArrayList<Runnable> mListeners = new ArrayList<Runnable>();
+
+    /**
+     * @return True if this call completed the future, false if it had already
+     *         been completed.
+     */
+    public boolean set(V value) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mValue = value;
+            mDone = true;
+            notifyAll();
+        }
+        runListeners();
+        return true;
+    }
+
+    /**
+     * @return True if this call completed the future, false if it had already
+     *         been completed.
+     */
+    public boolean setException(Throwable exception) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mException = exception;
+            mDone = true;
+            notifyAll();
+        }
+        runListeners();
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mCancelled = true;
+            mDone = true;
+            notifyAll();
+        }
+        runListeners();
+        return true;
+    }
+
+    /**
+     * Runs the listener once this future completes, on the thread that
+     * completes it. If the future is already complete the listener is run
+     * immediately on the calling thread.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private void runListeners() {
+        ArrayList<Runnable> listeners;
+        synchronized (this) {
+            listeners = mListeners;
+            mListeners = null;
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).run();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return getValueLocked();
+    }
+
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getValueLocked();
+    }
+
+    private V getValueLocked() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mException != null) {
+            throw new ExecutionException(mException);
+        }
+        return mValue;
+    }
+}
@@ -0,0 +1,188 @@
+package org.devtcg.rojocam.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue between exactly one producer thread and one consumer thread.
+ * <p>
+ * {@link #offer} and {@link #poll} take no locks and allocate nothing; they
+ * only publish the head and tail counters. Either side may instead block, the
+ * consumer in {@link #take()} until something arrives and the producer in
+ * {@link #put} until there is room. A blocked side is parked and woken by the
+ * other, or by {@link #close()}.
+ * <p>
+ * Occupancy is tracked for diagnostics: {@link #size()} is the current depth
+ * and {@link #getHighWaterMark()} the deepest the queue has been.
+ */
+public class SpscQueue<E> {
+    private final AtomicReferenceArray<E> mBuffer;
+    private final int mCapacity;
+
+    /* Next slot to read; written only by the consumer. */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /* Next slot to write; written only by the producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile Thread mConsumerWaiter;
+    private volatile Thread mProducerWaiter;
+    private volatile boolean mClosed;
+
+    private volatile int mHighWaterMark;
+
+    public SpscQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+        mBuffer = new AtomicReferenceArray<E>(capacity);
+    }
+
+    /**
+     * Adds an element if there is room. Producer thread only.
+     *
+     * @return False if the queue is full or closed.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        if (mClosed) {
+            return false;
+        }
+        long tail = mTail.get();
+        int depth = (int)(tail - mHead.get());
+        if (depth == mCapacity) {
+            return false;
+        }
+        mBuffer.set((int)(tail % mCapacity), element);
+        mTail.set(tail + 1);
+        if (depth + 1 > mHighWaterMark) {
+            mHighWaterMark = depth + 1;
+        }
+
+        Thread waiter = mConsumerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an element, waiting for room if necessary. Producer thread only.
+     *
+     * @return False if the queue was closed (or the thread interrupted) before
+     *         the element could be added.
+     */
+    public boolean put(E element) {
+        while (true) {
+            if (offer(element)) {
+                return true;
+            }
+            if (mClosed || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+
+            mProducerWaiter = Thread.currentThread();
+            try {
+                /* Re-check after announcing ourselves so a racing poll can't be missed. */
+                if (size() == mCapacity && !mClosed) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                mProducerWaiter = null;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, if any. Consumer thread only.
+     */
+    public E poll() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        int index = (int)(head % mCapacity);
+        E element = mBuffer.get(index);
+        mBuffer.set(index, null);
+        mHead.set(head + 1);
+
+        Thread waiter = mProducerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return element;
+    }
+
+    /**
+     * Removes the oldest element, waiting for one if necessary. Consumer
+     * thread only.
+     *
+     * @return The element, or null once the queue has been closed and
+     *         drained, or if the thread was interrupted.
+     */
+    public E take() {
+        while (true) {
+            E element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (mClosed || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+
+            mConsumerWaiter = Thread.currentThread();
+            try {
+                /* Re-check after announcing ourselves so a racing offer can't be missed. */
+                if (isEmpty() && !mClosed) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                mConsumerWaiter = null;
+            }
+        }
+    }
+
+    /**
+     * Refuses further offers and wakes both sides. Elements already queued
+     * can still be taken. May be called from any thread.
+     */
+    public void close() {
+        mClosed = true;
+        Thread waiter = mConsumerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        waiter = mProducerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    /**
+     * Current number of queued elements. Exact only when called from the
+     * producer or consumer thread.
+     */
+    public int size() {
+        return (int)(mTail.get() - mHead.get());
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+}
@@ -0,0 +1,210 @@
+package org.devtcg.rojocam.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Subscriber set tuned for a single hot dispatch loop with occasional,
+ * concurrent adds and removes.
+ * <p>
+ * Subscribers occupy index-stable slots. The dispatcher walks the slots with
+ * {@link #getSlotCount()} and {@link #get(int)}, which take no locks and
+ * allocate nothing. Removal only retires a slot, so dispatch skips it at
+ * once. The slot is freed for reuse later, when the dispatcher calls
+ * {@link #reclaim()} between passes. Every slot carries a generation counter,
+ * bumped when the slot is reclaimed, so a stale handle cannot remove whoever
+ * took the slot over.
+ * <p>
+ * Writers (add, remove and reclaim) serialize on an internal lock.
+ */
+public class SubscriberTable<T> {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final int FREE = 0;
+    private static final int LIVE = 1;
+    private static final int RETIRED = 2;
+
+    private final Object mLock = new Object();
+
+    /* Replaced (never modified in size) when the table grows. */
+    private volatile Slots<T> mSlots = new Slots<T>(INITIAL_CAPACITY);
+
+    /* One past the highest slot ever used. */
+    private volatile int mSlotCount;
+
+    private volatile boolean mHasRetired;
+
+    /* Written under mLock. */
+    private volatile int mSize;
+
+    /**
+     * Adds a subscriber unless it is already present.
+     *
+     * @return A handle (see {@link #handleSlot(long)}) for the subscriber's
+     *         slot.
+     */
+    public long add(T subscriber) {
+        synchronized (mLock) {
+            Slots<T> slots = mSlots;
+            int free = -1;
+            for (int i = 0; i < mSlotCount; i++) {
+                int state = slots.states.get(i);
+                if (state == LIVE && slots.entries.get(i) == subscriber) {
+                    return makeHandle(i, slots.generations.get(i));
+                } else if (state == FREE && free < 0) {
+                    free = i;
+                }
+            }
+
+            if (free < 0) {
+                free = mSlotCount;
+                if (free == slots.capacity) {
+                    slots = slots.grow(slots.capacity * 2);
+                    mSlots = slots;
+                }
+                mSlotCount = free + 1;
+            }
+
+            slots.entries.set(free, subscriber);
+            slots.states.set(free, LIVE);
+            mSize++;
+            return makeHandle(free, slots.generations.get(free));
+        }
+    }
+
+    /**
+     * Retires the given subscriber, if present. Dispatch stops seeing it
+     * immediately but the slot is not reused until {@link #reclaim()}.
+     */
+    public boolean remove(T subscriber) {
+        synchronized (mLock) {
+            Slots<T> slots = mSlots;
+            for (int i = 0; i < mSlotCount; i++) {
+                if (slots.states.get(i) == LIVE && slots.entries.get(i) == subscriber) {
+                    retireLocked(slots, i);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Retires the subscriber identified by a handle from {@link #add} or
+     * {@link #getHandle(int)}. Stale handles are ignored.
+     */
+    public boolean remove(long handle) {
+        int slot = handleSlot(handle);
+        synchronized (mLock) {
+            Slots<T> slots = mSlots;
+            if (slot < mSlotCount && slots.states.get(slot) == LIVE &&
+                    slots.generations.get(slot) == handleGeneration(handle)) {
+                retireLocked(slots, slot);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void retireLocked(Slots<T> slots, int slot) {
+        slots.states.set(slot, RETIRED);
+        mSize--;
+        mHasRetired = true;
+    }
+
+    /**
+     * Frees retired slots for reuse. Call from the dispatching thread between
+     * passes, when it holds no reference to any slot's subscriber. Cheap when
+     * there is nothing to do.
+     */
+    public void reclaim() {
+        if (!mHasRetired) {
+            return;
+        }
+        synchronized (mLock) {
+            Slots<T> slots = mSlots;
+            for (int i = 0; i < mSlotCount; i++) {
+                if (slots.states.get(i) == RETIRED) {
+                    slots.entries.set(i, null);
+                    slots.generations.incrementAndGet(i);
+                    slots.states.set(i, FREE);
+                }
+            }
+            while (mSlotCount > 0 && slots.states.get(mSlotCount - 1) == FREE) {
+                mSlotCount--;
+            }
+            mHasRetired = false;
+        }
+    }
+
+    /**
+     * Upper bound (exclusive) for slot indices passed to {@link #get(int)}.
+     */
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    /**
+     * Returns the live subscriber in the given slot, or null if the slot is
+     * free, retired or out of range.
+     */
+    public T get(int slot) {
+        Slots<T> slots = mSlots;
+        if (slot >= slots.capacity || slots.states.get(slot) != LIVE) {
+            return null;
+        }
+        return slots.entries.get(slot);
+    }
+
+    /**
+     * Returns a handle for whatever currently occupies the slot, suitable for
+     * {@link #remove(long)}.
+     */
+    public long getHandle(int slot) {
+        return makeHandle(slot, mSlots.generations.get(slot));
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private static long makeHandle(int slot, int generation) {
+        return ((long)generation << 32) | (slot & 0xffffffffL);
+    }
+
+    public static int handleSlot(long handle) {
+        return (int)handle;
+    }
+
+    public static int handleGeneration(long handle) {
+        return (int)(handle >>> 32);
+    }
+
+    private static class Slots<T> {
+        public final int capacity;
+        public final AtomicReferenceArray<T> entries;
+        public final AtomicIntegerArray states;
+        public final AtomicIntegerArray generations;
+
+        public Slots(int capacity) {
+            this.capacity = capacity;
+            entries = new AtomicReferenceArray<T>(capacity);
+            states = new AtomicIntegerArray(capacity);
+            generations = new AtomicIntegerArray(capacity);
+        }
+
+        public Slots<T> grow(int newCapacity) {
+            Slots<T> grown = new Slots<T>(newCapacity);
+            for (int i = 0; i < capacity; i++) {
+                grown.entries.set(i, entries.get(i));
+                grown.states.set(i, states.get(i));
+                grown.generations.set(i, generations.get(i));
+            }
+            return grown;
+        }
+    }
+}